@@ -0,0 +1,433 @@
+package ly.count.android.sdk;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static androidx.test.InstrumentationRegistry.getContext;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+@RunWith(AndroidJUnit4.class)
+public class BinaryRecordFormatTests {
+    ModuleLog mockLog;
+    File eventQueueFile;
+    File requestQueueLogDirectory;
+
+    @Before
+    public void setUp() {
+        mockLog = mock(ModuleLog.class);
+        eventQueueFile = EventQueueFile.queueFile(getContext().getFilesDir());
+        requestQueueLogDirectory = RequestQueueFileLog.logDirectory(getContext().getFilesDir());
+        EventQueueFile.deleteFile(eventQueueFile);
+        RequestQueueFileLog.deleteLog(requestQueueLogDirectory);
+
+        CountlyStore store = new CountlyStore(getContext(), mockLog);
+        store.clear();
+    }
+
+    @After
+    public void tearDown() {
+        EventQueueFile.deleteFile(eventQueueFile);
+        RequestQueueFileLog.deleteLog(requestQueueLogDirectory);
+    }
+
+    EventQueueFile openQueueFile() {
+        EventQueueFile queueFile = new EventQueueFile(eventQueueFile, mockLog);
+        assertTrue(queueFile.open());
+        return queueFile;
+    }
+
+    static Event createEvent(int index, String previousEventId) {
+        Event event = new Event("key_" + (index % 3), 1_700_000_000_000L + index, index % 24, index % 7);
+        event.count = index + 1;
+        event.sum = index % 2 == 0 ? 0 : index * 1.5;
+        event.dur = index % 3 == 0 ? 0 : index * 0.25;
+        event.id = "AbCdEfGh" + (1_700_000_000_000L + index);
+        event.pvid = "view_a";
+        event.cvid = "view_b";
+        event.peid = previousEventId;
+
+        Map<String, Object> segmentation = new LinkedHashMap<>();
+        segmentation.put("screen", "Home ü");
+        segmentation.put("index", index);
+        segmentation.put("ratio", 0.5);
+        segmentation.put("flag", index % 2 == 0);
+        event.compactSegmentation = EventSegmentation.from(segmentation);
+        return event;
+    }
+
+    static void assertSameEvent(Event expected, Event actual) {
+        assertEquals(expected.key, actual.key);
+        assertEquals(expected.count, actual.count);
+        assertEquals(expected.sum, actual.sum, 0);
+        assertEquals(expected.dur, actual.dur, 0);
+        assertEquals(expected.timestamp, actual.timestamp);
+        assertEquals(expected.hour, actual.hour);
+        assertEquals(expected.dow, actual.dow);
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.pvid, actual.pvid);
+        assertEquals(expected.cvid, actual.cvid);
+        assertEquals(expected.peid, actual.peid);
+        assertEquals(expected.segmentation, actual.segmentation);
+        assertEquals(expected.segmentationInt, actual.segmentationInt);
+        assertEquals(expected.segmentationDouble, actual.segmentationDouble);
+        assertEquals(expected.segmentationBoolean, actual.segmentationBoolean);
+    }
+
+    /**
+     * Decoded requests should be exactly the same as the encoded ones, also for values that are not URL-encoded the standard way
+     */
+    @Test
+    public void requestRoundTrip() throws IOException {
+        String[] requests = {
+            "",
+            "a",
+            "a=",
+            "&",
+            "a&&b=",
+            "app_key=abc&timestamp=1700000000000&hour=12&dow=3&tz=-120&sdk_version=24.7.0&sdk_name=java-native-android&device_id=a+b%2F",
+            "events=%5B%7B%22key%22%3A%22a+b%22%2C%22count%22%3A1%7D%5D&custom=%E2%82%AC",
+            "x=01&y=-0&z=-&w=123456789012345678901&q=%2f&r=%41&s=a%2&t=%&u=ü&k==b=c",
+            "timestamp=-9223372036854775808&t=999999999999999999"
+        };
+
+        for (String request : requests) {
+            byte[] encoded = BinaryRecordFormat.encodeRequest(request);
+            assertEquals(BinaryRecordFormat.FORMAT_VERSION, encoded[0]);
+            assertEquals(request, BinaryRecordFormat.decodeRequest(encoded, 0, encoded.length));
+        }
+
+        String eventRequest = "app_key=abc&timestamp=1700000000000&hour=12&dow=3&events=%5B%7B%22key%22%3A%22a%22%2C%22count%22%3A1%2C%22segmentation%22%3A%7B%22screen%22%3A%22Home%22%7D%7D%5D";
+        assertTrue(BinaryRecordFormat.encodeRequest(eventRequest).length < eventRequest.length() / 2);
+    }
+
+    /**
+     * Event records should be read back with the same values and the segmentation in the same maps as 'Event.fromJSON' creates.
+     * Strings that are already in the table should not be written again.
+     */
+    @Test
+    public void eventRecords() throws IOException {
+        BinaryRecordFormat.StringTable writeTable = new BinaryRecordFormat.StringTable();
+        BinaryRecordFormat.Output out = new BinaryRecordFormat.Output(64);
+
+        Event first = createEvent(1, null);
+        BinaryRecordFormat.writeEvent(first, writeTable, out);
+        int firstRecordEnd = out.size;
+        int stringCount = writeTable.size();
+
+        Event second = createEvent(5, first.id);
+        second.compactSegmentation = null;
+        second.segmentation = new HashMap<>();
+        second.segmentation.put("screen", "Home ü");
+        second.segmentationDouble = new HashMap<>();
+        second.segmentationDouble.put("ratio", 1.0);
+        BinaryRecordFormat.writeEvent(second, writeTable, out);
+
+        //only the key and ID of the second event are new
+        assertEquals(stringCount + 2, writeTable.size());
+
+        BinaryRecordFormat.StringTable readTable = new BinaryRecordFormat.StringTable();
+        Event readFirst = BinaryRecordFormat.readEvent(new BinaryRecordFormat.Input(out.bytes, 0, firstRecordEnd), readTable, false);
+        Event readSecond = BinaryRecordFormat.readEvent(new BinaryRecordFormat.Input(out.bytes, firstRecordEnd, out.size - firstRecordEnd), readTable, false);
+
+        first.compactSegmentation = null;
+        first.segmentation = new HashMap<>();
+        first.segmentation.put("screen", "Home ü");
+        first.segmentationInt = new HashMap<>();
+        first.segmentationInt.put("index", 1);
+        first.segmentationDouble = new HashMap<>();
+        first.segmentationDouble.put("ratio", 0.5);
+        first.segmentationBoolean = new HashMap<>();
+        first.segmentationBoolean.put("flag", false);
+        assertSameEvent(first, readFirst);
+
+        assertSameEvent(second, readSecond);
+        assertEquals(readFirst.id, readSecond.peid);
+
+        try {
+            BinaryRecordFormat.readEvent(new BinaryRecordFormat.Input(out.bytes, 0, firstRecordEnd - 1), new BinaryRecordFormat.StringTable(), false);
+            throw new AssertionError("Expected an exception for a truncated record");
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * A failed append should leave the file, the string table and the stored events as they were
+     */
+    @Test
+    public void failedAppend() throws IOException {
+        EventQueueFile queueFile = openQueueFile();
+        queueFile.append(createEvent(0, null));
+        long tailOffset = queueFile.tailOffset;
+        int stringCount = queueFile.strings.size();
+
+        RandomAccessFile writable = queueFile.queueFile;
+        queueFile.queueFile = new RandomAccessFile(eventQueueFile, "r");
+        queueFile.append(createEvent(1, "previous_id"));
+        queueFile.queueFile.close();
+        queueFile.queueFile = writable;
+
+        assertEquals(1, queueFile.size());
+        assertEquals(tailOffset, queueFile.tailOffset);
+        assertEquals(stringCount, queueFile.strings.size());
+
+        //the strings of the dropped event are written again with the next record that uses them
+        queueFile.append(createEvent(1, "previous_id"));
+        queueFile.close();
+
+        queueFile = openQueueFile();
+        assertEquals(2, queueFile.size());
+        assertEquals("previous_id", queueFile.readAll().get(1).peid);
+        queueFile.close();
+    }
+
+    /**
+     * A value that can't be sent as JSON should end the stored event at the same point as its JSON representation:
+     * a non-finite segmentation value drops the segmentation, sum and duration, a non-finite sum drops the sum and duration
+     */
+    @Test
+    public void nonFiniteValues() throws IOException {
+        Event compact = createEvent(5, null);
+        Map<String, Object> segmentation = new LinkedHashMap<>();
+        segmentation.put("screen", "Home");
+        segmentation.put("nan", Double.NaN);
+        compact.compactSegmentation = EventSegmentation.from(segmentation);
+
+        Event separate = createEvent(5, null);
+        separate.compactSegmentation = null;
+        separate.segmentation = new HashMap<>();
+        separate.segmentation.put("screen", "Home");
+        separate.segmentationDouble = new HashMap<>();
+        separate.segmentationDouble.put("infinity", Double.POSITIVE_INFINITY);
+
+        Event nonFiniteSum = createEvent(5, null);
+        nonFiniteSum.sum = Double.NaN;
+
+        for (Event event : new Event[] { compact, separate, nonFiniteSum }) {
+            Event read = BinaryRecordFormat.readEvent(writeSingleEvent(event), new BinaryRecordFormat.StringTable(), false);
+            assertEquals(toJson(event), toJson(read));
+        }
+
+        Event read = BinaryRecordFormat.readEvent(writeSingleEvent(compact), new BinaryRecordFormat.StringTable(), false);
+        assertNull(read.segmentation);
+        assertTrue(Double.isNaN(read.sum));
+        assertEquals(0, read.dur, 0);
+
+        read = BinaryRecordFormat.readEvent(writeSingleEvent(nonFiniteSum), new BinaryRecordFormat.StringTable(), false);
+        assertEquals("Home ü", read.segmentation.get("screen"));
+        assertTrue(Double.isNaN(read.sum));
+        assertEquals(0, read.dur, 0);
+    }
+
+    private static BinaryRecordFormat.Input writeSingleEvent(Event event) {
+        BinaryRecordFormat.Output out = new BinaryRecordFormat.Output(64);
+        BinaryRecordFormat.writeEvent(event, new BinaryRecordFormat.StringTable(), out);
+        return new BinaryRecordFormat.Input(out.bytes, 0, out.size);
+    }
+
+    private static String toJson(Event event) {
+        EventJsonWriter writer = new EventJsonWriter(new StringBuilder(), false);
+        writer.writeEvent(event);
+        return writer.out.toString();
+    }
+
+    /**
+     * Events should survive reopening the file, a partially written record at the end is cut off
+     */
+    @Test
+    public void eventQueueFile() throws IOException {
+        EventQueueFile queueFile = openQueueFile();
+        assertTrue(queueFile.isEmpty());
+
+        String previousId = null;
+        for (int a = 0; a < 20; a++) {
+            Event event = createEvent(a, previousId);
+            queueFile.append(event);
+            previousId = event.id;
+        }
+        List<Event> appended = queueFile.readAll();
+        queueFile.close();
+
+        RandomAccessFile raf = new RandomAccessFile(eventQueueFile, "rw");
+        long validLength = raf.length();
+        raf.seek(validLength);
+        raf.write(new byte[] { 40, 1, 2 });
+        raf.close();
+
+        queueFile = openQueueFile();
+        assertEquals(validLength, eventQueueFile.length());
+        List<Event> loaded = queueFile.readAll();
+        assertEquals(20, loaded.size());
+        for (int a = 0; a < loaded.size(); a++) {
+            assertSameEvent(appended.get(a), loaded.get(a));
+        }
+
+        //appending after reopening continues with the loaded string table
+        queueFile.append(createEvent(20, previousId));
+        queueFile.replaceAll(queueFile.readAll().subList(10, 21));
+        queueFile.append(createEvent(21, null));
+        queueFile.close();
+
+        queueFile = openQueueFile();
+        assertEquals(12, queueFile.size());
+        assertEquals(appended.get(10).id, queueFile.readAll().get(0).id);
+        assertEquals(createEvent(21, null).id, queueFile.readAll().get(11).id);
+
+        queueFile.clear();
+        queueFile.close();
+        queueFile = openQueueFile();
+        assertTrue(queueFile.isEmpty());
+        queueFile.close();
+    }
+
+    /**
+     * A store with the binary record format should create the same event batch as a store with the JSON event queue
+     */
+    @Test
+    public void binaryStore() {
+        CountlyStore jsonStore = new CountlyStore(getContext(), mockLog);
+        CountlyStore binaryStore = new CountlyStore(getContext(), mockLog, false, false, true);
+        assertTrue(binaryStore.eventQueueFile != null);
+        assertTrue(binaryStore.requestQueueLog != null);
+
+        String previousId = null;
+        for (int a = 0; a < 5; a++) {
+            Event event = createEvent(a, previousId);
+            previousId = event.id;
+            jsonStore.addEvent(event);
+            binaryStore.addEvent(event);
+        }
+
+        assertEquals(5, binaryStore.getEventQueueSize());
+        assertArrayEquals(jsonStore.getEvents(), binaryStore.getEvents());
+
+        List<Event> toRemove = new ArrayList<>();
+        toRemove.add(binaryStore.getEventList().get(0));
+        binaryStore.removeEvents(toRemove);
+        jsonStore.removeEvents(toRemove);
+        assertEquals(4, binaryStore.getEventQueueSize());
+        binaryStore.eventQueueFile.close();
+
+        binaryStore.requestQueueLog.close();
+        binaryStore = new CountlyStore(getContext(), mockLog, false, false, true);
+        assertEquals(4, binaryStore.getEventQueueSize());
+        assertEquals(jsonStore.getEventsForRequestAndEmptyEventQueue(), binaryStore.getEventsForRequestAndEmptyEventQueue());
+        assertEquals(0, binaryStore.getEventQueueSize());
+
+        binaryStore.addRequest("app_key=a&timestamp=1", false);
+        assertArrayEquals(new String[] { "app_key=a&timestamp=1" }, binaryStore.getRequests());
+        assertTrue(binaryStore.requestQueueLog.records.peekFirst().compact);
+        binaryStore.eventQueueFile.close();
+        binaryStore.requestQueueLog.close();
+    }
+
+    /**
+     * Stored events and requests should be converted to the record format in use and back again
+     */
+    @Test
+    public void migrateRecordFormat() {
+        CountlyStore jsonStore = new CountlyStore(getContext(), mockLog, false, true);
+        jsonStore.addEvent(createEvent(0, null));
+        jsonStore.addRequest("a=1", false);
+        jsonStore.addRequest("b=2", false);
+        jsonStore.requestQueueLog.close();
+
+        CountlyStore binaryStore = new CountlyStore(getContext(), mockLog, false, true, true);
+        binaryStore.addEvent(createEvent(1, null));
+        assertEquals(3, binaryStore.migrateRecordFormat());
+        assertEquals(0, binaryStore.migrateRecordFormat());
+        assertEquals(2, binaryStore.getEventQueueSize());
+        assertEquals(createEvent(0, null).id, binaryStore.getEventList().get(0).id);
+        assertArrayEquals(new String[] { "a=1", "b=2" }, binaryStore.getRequests());
+        binaryStore.eventQueueFile.close();
+        binaryStore.requestQueueLog.close();
+
+        jsonStore = new CountlyStore(getContext(), mockLog, false, true);
+        assertEquals(0, jsonStore.getEventQueueSize());
+        jsonStore.addEvent(createEvent(2, null));
+        assertEquals(4, jsonStore.migrateRecordFormat());
+        assertFalse(eventQueueFile.exists());
+        assertEquals(3, jsonStore.getEventQueueSize());
+        assertEquals(3, jsonStore.getEvents().length);
+        assertArrayEquals(new String[] { "a=1", "b=2" }, jsonStore.getRequests());
+        assertEquals(0, jsonStore.migrateRecordFormat());
+        jsonStore.requestQueueLog.close();
+    }
+
+    /**
+     * The binary record format should not be used in explicit storage mode
+     */
+    @Test
+    public void explicitModeIgnoresBinaryFormat() {
+        CountlyStore store = new CountlyStore(getContext(), mockLog, true, false, true);
+        assertNull(store.eventQueueFile);
+        assertNull(store.requestQueueLog);
+    }
+
+    /**
+     * The request queue byte limit should be compared with the size of the compact records, not the request length
+     */
+    @Test
+    public void byteLimitUsesRecordSize() {
+        CountlyStore store = new CountlyStore(getContext(), mockLog, false, true, true);
+        String[] requests = new String[4];
+        for (int a = 0; a < requests.length; a++) {
+            requests[a] = "app_key=abc&timestamp=170000000000" + a + "&hour=12&dow=3";
+        }
+
+        int recordSize = store.requestQueueLog.createRecord(requests[0]).length;
+        assertTrue(recordSize < RequestQueueFileLog.RECORD_HEADER_SIZE + requests[0].length());
+
+        store.setRequestQueueByteLimit(3 * recordSize);
+        store.addRequest(requests[0], false);
+        store.addRequest(requests[1], false);
+        store.addRequest(requests[2], false);
+        assertArrayEquals(new String[] { requests[0], requests[1], requests[2] }, store.getRequests());
+        assertEquals(3 * recordSize, store.requestQueueLog.liveBytes());
+
+        store.addRequest(requests[3], false);
+        assertArrayEquals(new String[] { requests[1], requests[2], requests[3] }, store.getRequests());
+        store.requestQueueLog.close();
+    }
+
+    /**
+     * A full event queue should take less than half the space in the binary format than as JSON, and be read back completely
+     */
+    @Test
+    public void storedSize() throws IOException {
+        List<Event> events = new ArrayList<>();
+        String previousId = null;
+        for (int a = 0; a < 1000; a++) {
+            Event event = createEvent(a, previousId);
+            previousId = event.id;
+            events.add(event);
+        }
+
+        String json = CountlyStore.joinEvents(events, CountlyStore.DELIMITER);
+        EventQueueFile queueFile = openQueueFile();
+        queueFile.replaceAll(events);
+        queueFile.close();
+        long binarySize = eventQueueFile.length();
+
+        queueFile = openQueueFile();
+        assertEquals(1000, queueFile.size());
+        queueFile.close();
+
+        assertTrue(binarySize * 2 < json.length());
+    }
+}
@@ -31,6 +31,10 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.HashMap;
 import java.util.Map;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -38,11 +42,14 @@ import org.junit.runner.RunWith;
 import static ly.count.android.sdk.UtilsNetworking.sha256Hash;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.anyString;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.isNull;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
@@ -187,18 +194,20 @@ public class ConnectionProcessorTests {
     @Test
     public void testRun_storeReturnsNullConnections() throws IOException {
         connectionProcessor = spy(connectionProcessor);
-        when(mockStore.getRequests()).thenReturn(null);
+        when(mockStore.peekRequest()).thenReturn(null);
         connectionProcessor.run();
-        verify(mockStore).getRequests();
+        verify(mockStore).peekRequest();
+        verify(mockStore, times(0)).getRequestQueueSize();
         verify(connectionProcessor, times(0)).urlConnectionForServerRequest(anyString(), isNull(String.class));
     }
 
     @Test
     public void testRun_storeReturnsEmptyConnections() throws IOException {
         connectionProcessor = spy(connectionProcessor);
-        when(mockStore.getRequests()).thenReturn(new String[0]);
+        when(mockStore.peekRequest()).thenReturn(null);
+        when(mockStore.getRequestQueueSize()).thenReturn(0);
         connectionProcessor.run();
-        verify(mockStore).getRequests();
+        verify(mockStore).peekRequest();
         verify(connectionProcessor, times(0)).urlConnectionForServerRequest(anyString(), isNull(String.class));
     }
 
@@ -245,7 +254,8 @@ public class ConnectionProcessorTests {
     public void testRun_storeHasSingleConnection() throws IOException {
         final String eventData = "blahblahblah";
         connectionProcessor = spy(connectionProcessor);
-        when(mockStore.getRequests()).thenReturn(new String[] { eventData }, new String[0]);
+        when(mockStore.peekRequest()).thenReturn(eventData, (String) null);
+        when(mockStore.getRequestQueueSize()).thenReturn(1, 0);
         when(mockDeviceId.getDeviceId()).thenReturn(testDeviceId);
         final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
         final CountlyResponseStream testInputStream = new CountlyResponseStream("Success");
@@ -254,7 +264,7 @@ public class ConnectionProcessorTests {
         doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForServerRequest(eventData + "&device_id=" + testDeviceId + "&rr=0", null);
         connectionProcessor.run();
 
-        verify(mockStore, times(2)).getRequests();
+        verify(mockStore, times(2)).peekRequest();
         verify(connectionProcessor).urlConnectionForServerRequest(eventData + "&device_id=" + testDeviceId + "&rr=0", null);
         verify(mockURLConnection).connect();
         verify(mockURLConnection).getInputStream();
@@ -262,14 +272,15 @@ public class ConnectionProcessorTests {
         assertTrue(testInputStream.fullyRead());
         verify(mockStore).removeRequest(eventData);
         assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
+        verify(mockURLConnection, times(0)).disconnect();
     }
 
     @Test
     public void testRun_storeHasSingleConnection_butHTTPResponseCodeWasNot2xx() throws IOException {
         final String eventData = "blahblahblah";
         connectionProcessor = spy(connectionProcessor);
-        when(mockStore.getRequests()).thenReturn(new String[] { eventData }, new String[0]);
+        when(mockStore.peekRequest()).thenReturn(eventData, (String) null);
+        when(mockStore.getRequestQueueSize()).thenReturn(1, 0);
         when(mockDeviceId.getDeviceId()).thenReturn(testDeviceId);
         final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
         final CountlyResponseStream testInputStream = new CountlyResponseStream("Success");
@@ -278,7 +289,7 @@ public class ConnectionProcessorTests {
         doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForServerRequest(eventData + "&device_id=" + testDeviceId + "&rr=0", null);
         connectionProcessor.run();
 
-        verify(mockStore, times(1)).getRequests();
+        verify(mockStore, times(1)).peekRequest();
         verify(connectionProcessor).urlConnectionForServerRequest(eventData + "&device_id=" + testDeviceId + "&rr=0", null);
         verify(mockURLConnection).connect();
         verify(mockURLConnection).getInputStream();
@@ -286,14 +297,15 @@ public class ConnectionProcessorTests {
         assertTrue(testInputStream.fullyRead());
         verify(mockStore, times(0)).removeRequest(eventData);
         assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
+        verify(mockURLConnection, times(0)).disconnect();
     }
 
     @Test
     public void testRun_storeHasSingleConnection_butResponseWasNotJSON() throws IOException {
         final String eventData = "blahblahblah";
         connectionProcessor = spy(connectionProcessor);
-        when(mockStore.getRequests()).thenReturn(new String[] { eventData }, new String[0]);
+        when(mockStore.peekRequest()).thenReturn(eventData, (String) null);
+        when(mockStore.getRequestQueueSize()).thenReturn(1, 0);
         when(mockDeviceId.getDeviceId()).thenReturn(testDeviceId);
         final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
         final TestInputStream testInputStream = new TestInputStream();
@@ -302,7 +314,7 @@ public class ConnectionProcessorTests {
         doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForServerRequest(eventData + "&device_id=" + testDeviceId + "&rr=0", null);
         connectionProcessor.run();
 
-        verify(mockStore, times(1)).getRequests();
+        verify(mockStore, times(1)).peekRequest();
         verify(connectionProcessor).urlConnectionForServerRequest(eventData + "&device_id=" + testDeviceId + "&rr=0", null);
         verify(mockURLConnection).connect();
         verify(mockURLConnection).getInputStream();
@@ -310,14 +322,15 @@ public class ConnectionProcessorTests {
         assertTrue(testInputStream.fullyRead());
         verify(mockStore, times(0)).removeRequest(eventData);
         assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
+        verify(mockURLConnection, times(0)).disconnect();
     }
 
     @Test
     public void testRun_storeHasSingleConnection_butResponseJSONWasNotSuccess() throws IOException {
         final String eventData = "blahblahblah";
         connectionProcessor = spy(connectionProcessor);
-        when(mockStore.getRequests()).thenReturn(new String[] { eventData }, new String[0]);
+        when(mockStore.peekRequest()).thenReturn(eventData, (String) null);
+        when(mockStore.getRequestQueueSize()).thenReturn(1, 0);
         when(mockDeviceId.getDeviceId()).thenReturn(testDeviceId);
         final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
         final CountlyResponseStream testInputStream = new CountlyResponseStream("Failed");
@@ -325,7 +338,7 @@ public class ConnectionProcessorTests {
         when(mockURLConnection.getResponseCode()).thenReturn(200);
         doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForServerRequest(eventData + "&device_id=" + testDeviceId + "&rr=0", null);
         connectionProcessor.run();
-        verify(mockStore, times(2)).getRequests();
+        verify(mockStore, times(2)).peekRequest();
         verify(connectionProcessor).urlConnectionForServerRequest(eventData + "&device_id=" + testDeviceId + "&rr=0", null);
         verify(mockURLConnection).connect();
         verify(mockURLConnection).getInputStream();
@@ -333,7 +346,7 @@ public class ConnectionProcessorTests {
         verify(mockURLConnection).getResponseCode();
         verify(mockStore, times(1)).removeRequest(eventData);
         assertTrue(testInputStream.closed);
-        verify(mockURLConnection).disconnect();
+        verify(mockURLConnection, times(0)).disconnect();
     }
 
     @Test
@@ -341,7 +354,8 @@ public class ConnectionProcessorTests {
         final String eventData1 = "blahblahblah";
         final String eventData2 = "123523523432";
         connectionProcessor = spy(connectionProcessor);
-        when(mockStore.getRequests()).thenReturn(new String[] { eventData1, eventData2 }, new String[] { eventData2 }, new String[0]);
+        when(mockStore.peekRequest()).thenReturn(eventData1, eventData2, null);
+        when(mockStore.getRequestQueueSize()).thenReturn(2, 1, 0);
         when(mockDeviceId.getDeviceId()).thenReturn(testDeviceId);
         final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
         final CountlyResponseStream testInputStream1 = new CountlyResponseStream("Success");
@@ -351,7 +365,7 @@ public class ConnectionProcessorTests {
         doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForServerRequest(eventData2 + "&device_id=" + testDeviceId + "&rr=0", null);
         when(mockURLConnection.getResponseCode()).thenReturn(200, 200);
         connectionProcessor.run();
-        verify(mockStore, times(3)).getRequests();
+        verify(mockStore, times(3)).peekRequest();
         verify(connectionProcessor).urlConnectionForServerRequest(eventData1 + "&device_id=" + testDeviceId + "&rr=1", null);
         verify(connectionProcessor).urlConnectionForServerRequest(eventData2 + "&device_id=" + testDeviceId + "&rr=0", null);
         verify(mockURLConnection, times(2)).connect();
@@ -363,7 +377,118 @@ public class ConnectionProcessorTests {
         verify(mockStore).removeRequest(eventData2);
         assertTrue(testInputStream1.closed);
         assertTrue(testInputStream2.closed);
-        verify(mockURLConnection, times(2)).disconnect();
+        verify(mockURLConnection, times(0)).disconnect();
+    }
+
+    /**
+     * If the response could not be read until the end, the connection can't be reused and has to be disconnected
+     */
+    @Test
+    public void testRun_responseNotConsumedDisconnects() throws IOException {
+        final String eventData = "blahblahblah";
+        connectionProcessor = spy(connectionProcessor);
+        when(mockStore.peekRequest()).thenReturn(eventData, (String) null);
+        when(mockStore.getRequestQueueSize()).thenReturn(1, 0);
+        when(mockDeviceId.getDeviceId()).thenReturn(testDeviceId);
+        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
+        final TestInputStream2 testInputStream = new TestInputStream2();
+        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
+        when(mockURLConnection.getResponseCode()).thenReturn(200);
+        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForServerRequest(eventData + "&device_id=" + testDeviceId + "&rr=0", null);
+        connectionProcessor.run();
+
+        verify(mockStore, times(0)).removeRequest(eventData);
+        assertTrue(testInputStream.closed);
+        verify(mockURLConnection).disconnect();
+    }
+
+    /**
+     * The same socket factory should be used for the same SSL context so that pooled connections can be reused
+     */
+    @Test
+    public void socketFactoryIsReused() throws Exception {
+        SSLContext context1 = SSLContext.getInstance("TLS");
+        context1.init(null, null, null);
+        SSLContext context2 = SSLContext.getInstance("TLS");
+        context2.init(null, null, null);
+
+        SSLSocketFactory factory1 = ConnectionProcessor.getSocketFactory(context1);
+        assertSame(factory1, ConnectionProcessor.getSocketFactory(context1));
+
+        SSLSocketFactory factory2 = ConnectionProcessor.getSocketFactory(context2);
+        assertSame(factory2, ConnectionProcessor.getSocketFactory(context2));
+        assertNotSame(factory1, factory2);
+    }
+
+    /**
+     * Consecutive requests from the start of the queue should be sent together,
+     * a request that changes the device ID should stop the bulk and only the sent requests should be removed
+     */
+    @Test
+    public void testRun_bulkUpload() throws IOException, JSONException {
+        final String request1 = "app_key=abc&begin_session=1";
+        final String request2 = "app_key=abc&events=%5B%7B%22key%22%3A%22a+b%22%7D%5D";
+        final String request3 = "app_key=abc&device_id=newId";
+        connectionProcessor.maxRequestsPerBulk = 5;
+        connectionProcessor = spy(connectionProcessor);
+        when(mockStore.peekRequest()).thenReturn(request1, (String) null);
+        when(mockStore.getRequestQueueSize()).thenReturn(3);
+        when(mockStore.peekRequests(5)).thenReturn(new String[] { request1, request2, request3 });
+        when(mockDeviceId.getDeviceId()).thenReturn(testDeviceId);
+        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
+        final CountlyResponseStream testInputStream = new CountlyResponseStream("Success");
+        when(mockURLConnection.getInputStream()).thenReturn(testInputStream);
+        when(mockURLConnection.getResponseCode()).thenReturn(200);
+
+        String expectedRequests = new JSONArray()
+            .put(ConnectionProcessor.requestToJson(request1 + "&device_id=" + testDeviceId + "&rr=2"))
+            .put(ConnectionProcessor.requestToJson(request2 + "&device_id=" + testDeviceId + "&rr=1"))
+            .toString();
+        assertEquals("[{\"app_key\":\"abc\",\"begin_session\":\"1\",\"device_id\":\"123\",\"rr\":\"2\"},"
+            + "{\"app_key\":\"abc\",\"events\":\"[{\\\"key\\\":\\\"a b\\\"}]\",\"device_id\":\"123\",\"rr\":\"1\"}]", expectedRequests);
+
+        final String expectedData = "requests=" + UtilsNetworking.urlEncodeString(expectedRequests);
+        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForServerRequest(expectedData, "/i/bulk", true);
+        connectionProcessor.run();
+
+        verify(connectionProcessor).urlConnectionForServerRequest(expectedData, "/i/bulk", true);
+        verify(connectionProcessor, times(0)).urlConnectionForServerRequest(anyString(), isNull(String.class));
+        verify(mockURLConnection).connect();
+        assertTrue(testInputStream.fullyRead());
+        assertTrue(testInputStream.closed);
+        verify(mockURLConnection, times(0)).disconnect();
+        verify(mockStore).removeRequest(request1);
+        verify(mockStore).removeRequest(request2);
+        verify(mockStore, times(0)).removeRequest(request3);
+    }
+
+    /**
+     * Nothing should be removed if the bulk request fails, and a single eligible request is not sent in bulk
+     */
+    @Test
+    public void testRun_bulkUploadFailedOrNotApplicable() throws IOException {
+        final String request1 = "app_key=abc&begin_session=1";
+        final String request2 = "app_key=abc&end_session=1";
+        connectionProcessor.maxRequestsPerBulk = 5;
+        connectionProcessor = spy(connectionProcessor);
+        when(mockStore.peekRequest()).thenReturn(request1);
+        when(mockStore.getRequestQueueSize()).thenReturn(2);
+        when(mockStore.peekRequests(5)).thenReturn(new String[] { request1, request2 });
+        when(mockDeviceId.getDeviceId()).thenReturn(testDeviceId);
+        final HttpURLConnection mockURLConnection = mock(HttpURLConnection.class);
+        when(mockURLConnection.getInputStream()).thenReturn(new CountlyResponseStream("Success"));
+        when(mockURLConnection.getResponseCode()).thenReturn(500);
+        doReturn(mockURLConnection).when(connectionProcessor).urlConnectionForServerRequest(anyString(), eq("/i/bulk"), eq(true));
+        connectionProcessor.run();
+
+        verify(connectionProcessor).urlConnectionForServerRequest(anyString(), eq("/i/bulk"), eq(true));
+        verify(mockStore, times(0)).removeRequest(anyString());
+        verify(healthTrackerMock).logFailedNetworkRequest(eq(500), anyString());
+
+        when(mockStore.peekRequests(anyInt())).thenReturn(new String[] { request1 });
+        assertEquals(0, connectionProcessor.sendBulk(1, null));
+        when(mockStore.peekRequests(anyInt())).thenReturn(new String[] { request1, "app_key=abc&override_id=old" });
+        assertEquals(0, connectionProcessor.sendBulk(2, null));
     }
 
     private static class TestInputStream2 extends InputStream {
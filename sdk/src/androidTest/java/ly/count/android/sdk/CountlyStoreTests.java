@@ -30,6 +30,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.After;
@@ -44,6 +47,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
@@ -505,6 +509,35 @@ public class CountlyStoreTests {
         assertArrayEquals(new String[] { requestEntries[1], requestEntries[2] }, store.getRequests());
     }
 
+    /**
+     * Validating that 'peekRequest' and 'getRequestQueueSize' follow the request queue
+     * and that changes made by another store instance are picked up
+     */
+    @Test
+    public void peekRequestAndQueueSize() {
+        assertNull(store.peekRequest());
+        assertEquals(0, store.getRequestQueueSize());
+
+        store.addRequest(requestEntries[0], false);
+        store.addRequest(requestEntries[1], false);
+        assertEquals(requestEntries[0], store.peekRequest());
+        assertEquals(2, store.getRequestQueueSize());
+
+        CountlyStore secondStore = new CountlyStore(getContext(), mock(ModuleLog.class));
+        secondStore.removeRequest(requestEntries[0]);
+        secondStore.addRequest(requestEntries[2], false);
+
+        assertEquals(requestEntries[1], store.peekRequest());
+        assertEquals(2, store.getRequestQueueSize());
+        assertArrayEquals(new String[] { requestEntries[1], requestEntries[2] }, store.getRequests());
+
+        store.deleteOldestRequest();
+        store.deleteOldestRequest();
+        store.deleteOldestRequest();
+        assertNull(store.peekRequest());
+        assertEquals(0, secondStore.getRequestQueueSize());
+    }
+
     /**
      * Validating that the max request queue size is respected,
      * And that it removes the oldest entry when it is about to be exceeded
@@ -726,6 +759,254 @@ public class CountlyStoreTests {
         Assert.assertEquals(0, sp.getEventQueueSize());
     }
 
+    /**
+     * Validate that 'addEvent' appends to the stored event queue without parsing the existing entries
+     * and that the event queue size follows the appended events
+     */
+    @Test
+    public void addEventAppendsToStoredQueue() {
+        store.setEventData("a:::b");
+        assertEquals(2, sp.getEventQueueSize());
+
+        final Event event1 = CreateEvent(eKeys[0]);
+        store.addEvent(event1);
+        assertEquals(3, sp.getEventQueueSize());
+        assertArrayEquals(new String[] { "a", "b", event1.toJSON().toString() }, store.getEvents());
+
+        final List<Event> expected = new ArrayList<>(1);
+        expected.add(event1);
+        assertEquals(expected, store.getEventList());
+
+        sp.getEventsForRequestAndEmptyEventQueue();
+        assertEquals(0, sp.getEventQueueSize());
+        assertEquals(0, store.getEvents().length);
+    }
+
+    /**
+     * Validate that the event queue size is kept up to date by all event queue changes
+     * and that a new store instance restores it from storage
+     */
+    @Test
+    public void eventQueueSizeMaintained() {
+        final Event event1 = CreateEvent(eKeys[0]);
+        final Event event2 = CreateEvent(eKeys[1]);
+        event2.timestamp = 10;
+        store.addEvent(event1);
+        store.addEvent(event2);
+        assertEquals(2, sp.getEventQueueSize());
+
+        final List<Event> eventsToRemove = new ArrayList<>(1);
+        eventsToRemove.add(event1);
+        store.removeEvents(eventsToRemove);
+        assertEquals(1, sp.getEventQueueSize());
+
+        store.setEventData("a:::b:::c");
+        assertEquals(3, sp.getEventQueueSize());
+        assertEquals(3, new CountlyStore(getContext(), mock(ModuleLog.class)).getEventQueueSize());
+
+        store.setEventData(null);
+        assertEquals(0, sp.getEventQueueSize());
+
+        store.setEventData("a");
+        store.clear();
+        assertEquals(0, sp.getEventQueueSize());
+        assertEquals(0, new CountlyStore(getContext(), mock(ModuleLog.class)).getEventQueueSize());
+    }
+
+    /**
+     * Validate that with write coalescing, writes are visible through the store right away,
+     * reach preferences only after the window or a write that needs to be in sync
+     */
+    @Test
+    public void writeCoalescing() {
+        final SharedPreferences prefs = getContext().getSharedPreferences(countlyStoreName, Context.MODE_PRIVATE);
+        //the window is long enough to not end during the test, the flush at its end is triggered directly
+        store.setWriteCoalescingWindow(60_000);
+
+        store.addRequest(requestEntries[0], false);
+        store.setEventData("a:::b");
+        assertArrayEquals(new String[] { requestEntries[0] }, store.getRequests());
+        assertArrayEquals(new String[] { "a", "b" }, store.getEvents());
+        assertNull(prefs.getString("CONNECTIONS", null));
+        assertNull(prefs.getString("EVENTS", null));
+
+        store.addRequest(requestEntries[1], true);
+        assertEquals(requestEntries[0] + CountlyStore.DELIMITER + requestEntries[1], prefs.getString("CONNECTIONS", null));
+        assertEquals("a:::b", prefs.getString("EVENTS", null));
+
+        store.addRequest(requestEntries[2], false);
+        assertEquals(requestEntries[0] + CountlyStore.DELIMITER + requestEntries[1], prefs.getString("CONNECTIONS", null));
+
+        store.flushPendingWrites(false);
+        assertEquals(requestEntries[0] + CountlyStore.DELIMITER + requestEntries[1] + CountlyStore.DELIMITER + requestEntries[2], prefs.getString("CONNECTIONS", null));
+
+        //halting writes what is still pending and stops the storage thread
+        store.addRequest(requestEntries[3], false);
+        store.halt();
+        assertNull(store.storageExecutor);
+        assertEquals(requestEntries[0] + CountlyStore.DELIMITER + requestEntries[1] + CountlyStore.DELIMITER + requestEntries[2] + CountlyStore.DELIMITER + requestEntries[3],
+            prefs.getString("CONNECTIONS", null));
+
+        store.setWriteCoalescingWindow(0);
+    }
+
+    /**
+     * Validate that 'countEntries' gives the same result as splitting
+     */
+    @Test
+    public void countEntries() {
+        assertEquals(0, CountlyStore.countEntries(""));
+        assertEquals(1, CountlyStore.countEntries("a"));
+        assertEquals(2, CountlyStore.countEntries("a:::b"));
+        assertEquals(4, CountlyStore.countEntries("a::::::b:::c"));
+        assertEquals("a::::::b:::c".split(CountlyStore.DELIMITER).length, CountlyStore.countEntries("a::::::b:::c"));
+    }
+
+    /**
+     * Metadata of a stored request should be parsed once and dropped when the request is removed,
+     * requests that are not stored should not be cached
+     */
+    @Test
+    public void requestMetadataCache() {
+        store.addRequest("app_key=a&device_id=b", false);
+        String stored = store.peekRequest();
+
+        RequestMetadata metadata = store.getRequestMetadata(stored);
+        assertTrue(metadata.has(RequestMetadata.FLAG_DEVICE_ID));
+        assertSame(metadata, store.getRequestMetadata(stored));
+
+        assertTrue(store.getRequestMetadata("app_key=a&crash=1").has(RequestMetadata.FLAG_CRASH));
+        assertEquals(1, store.requestMetadataCache.size());
+
+        store.addRequest("app_key=a&events=1", false);
+        assertEquals(2, store.requestMetadataCache.size());
+        store.deleteOldestRequest();
+        assertEquals(1, store.requestMetadataCache.size());
+        stored = store.peekRequest();
+
+        store.removeRequest(stored);
+        assertEquals(0, store.requestMetadataCache.size());
+    }
+
+    /**
+     * Rewriters should be applied in order in one pass, in place and on the storage thread when requested
+     */
+    @Test
+    public void rewriteRequests() throws InterruptedException {
+        store.addRequest("app_key=a&x=1", false);
+        store.addRequest("app_key=b&x=2", false);
+        store.addRequest("app_key=a&x=3", false);
+
+        RequestRewriter removeB = new RequestRewriter() {
+            @Override public String rewrite(String request, RequestMetadata metadata) {
+                return "b".equals(metadata.appKey(request)) ? null : request;
+            }
+        };
+        RequestRewriter replaceKey = new RequestRewriter() {
+            @Override public String rewrite(String request, RequestMetadata metadata) {
+                return metadata.replaceAppKey(request, "c");
+            }
+        };
+
+        assertEquals(3, store.rewriteRequests(removeB, replaceKey));
+        assertArrayEquals(new String[] { "app_key=c&x=1", "app_key=c&x=3" }, store.getRequests());
+        assertEquals(0, store.rewriteRequests(removeB));
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger changedCount = new AtomicInteger(-1);
+        store.rewriteRequestsInBackground(new RequestRewriter.Callback() {
+            @Override public void onRequestsRewritten(int changedRequests) {
+                changedCount.set(changedRequests);
+                latch.countDown();
+            }
+        }, new RequestRewriter() {
+            @Override public String rewrite(String request, RequestMetadata metadata) {
+                return request.endsWith("3") ? null : request;
+            }
+        });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, changedCount.get());
+        assertArrayEquals(new String[] { "app_key=c&x=1" }, store.getRequests());
+    }
+
+    /**
+     * With priorities, critical requests should go first, but never across a device ID change,
+     * and the oldest bulk request should be dropped first when the queue is full
+     */
+    @Test
+    public void requestPriorityLanes() {
+        final String events1 = "app_key=a&events=1";
+        final String session = "app_key=a&begin_session=1";
+        final String events2 = "app_key=a&events=2";
+        final String crash = "app_key=a&crash=1";
+        final String idChange = "app_key=a&device_id=b";
+        final String laterCrash = "app_key=a&crash=2";
+
+        store.setRequestPriorityEnabled(true);
+        store.setLimits(5);
+        store.addRequest(events1, false);
+        store.addRequest(session, false);
+        store.addRequest(events2, false);
+        store.addRequest(crash, false);
+        store.addRequest(idChange, false);
+
+        assertEquals(crash, store.peekRequest());
+        store.removeRequest(crash);
+        assertEquals(session, store.peekRequest());
+        store.removeRequest(session);
+        assertEquals(events1, store.peekRequest());
+
+        //the crash after the device ID change has to wait for it
+        store.addRequest(laterCrash, false);
+        store.addRequest(session, false);
+        store.addRequest(crash, false);
+        assertArrayEquals(new String[] { events2, idChange, laterCrash, session, crash }, store.getRequests());
+        assertEquals(events2, store.peekRequest());
+        store.removeRequest(events2);
+        assertEquals(idChange, store.peekRequest());
+        store.removeRequest(idChange);
+        assertEquals(laterCrash, store.peekRequest());
+
+        store.setRequestPriorityEnabled(false);
+        assertEquals(laterCrash, store.peekRequest());
+        store.removeRequest(laterCrash);
+        assertEquals(session, store.peekRequest());
+    }
+
+    /**
+     * With a byte limit, the oldest requests should be dropped until the new one fits,
+     * a request that is larger than the limit on its own is still stored
+     */
+    @Test
+    public void requestQueueByteLimit() {
+        char[] payload = new char[100];
+        Arrays.fill(payload, 'a');
+        final String r1 = "r1=" + new String(payload);
+        final String r2 = "r2=" + new String(payload);
+        final String r3 = "r3=" + new String(payload);
+
+        store.setRequestQueueByteLimit(250);
+        store.addRequest(r1, false);
+        store.addRequest(r2, false);
+        assertArrayEquals(new String[] { r1, r2 }, store.getRequests());
+
+        store.addRequest(r3, false);
+        assertArrayEquals(new String[] { r2, r3 }, store.getRequests());
+
+        final String large = "large=" + new String(new char[300]).replace('\0', 'b');
+        store.addRequest(large, false);
+        assertArrayEquals(new String[] { large }, store.getRequests());
+
+        store.addRequest(r1, false);
+        assertArrayEquals(new String[] { r1 }, store.getRequests());
+
+        store.setRequestQueueByteLimit(0);
+        store.addRequest(large, false);
+        store.addRequest(r2, false);
+        assertArrayEquals(new String[] { r1, large, r2 }, store.getRequests());
+    }
+
     @Test
     public void getSetServerConfig() {
         store.clear();
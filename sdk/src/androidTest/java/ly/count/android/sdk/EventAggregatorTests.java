@@ -0,0 +1,95 @@
+package ly.count.android.sdk;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(AndroidJUnit4.class)
+public class EventAggregatorTests {
+    EventQueueProvider eventQueue;
+    EventAggregator aggregator;
+
+    @Before
+    public void setUp() {
+        eventQueue = mock(EventQueueProvider.class);
+        aggregator = new EventAggregator(eventQueue, 10_000, mock(ModuleLog.class));
+    }
+
+    /**
+     * Events with the same key, segmentation and view should be merged into the first event of their group
+     */
+    @Test
+    public void mergesIdenticalEvents() {
+        Map<String, Object> segmentation = new HashMap<>();
+        segmentation.put("direction", "down");
+
+        assertTrue(aggregator.record("scroll", segmentation, 1, 2.0, 0.5, 1000, 10, 3, "id1", "view", "prev"));
+        segmentation.put("direction", "up");
+        assertTrue(aggregator.record("scroll", segmentation, 1, 1.0, 0.0, 1100, 10, 3, "id2", "view", "id1"));
+
+        Map<String, Object> sameSegmentation = new HashMap<>();
+        sameSegmentation.put("direction", "down");
+        assertFalse(aggregator.record("scroll", sameSegmentation, 3, 4.0, 1.5, 1200, 10, 3, "id3", "view", "id2"));
+
+        //a different view or key starts a new group
+        assertTrue(aggregator.record("scroll", sameSegmentation, 1, 0, 0, 1300, 10, 3, "id4", "other", "id2"));
+        assertTrue(aggregator.record("tick", null, 1, 0, 0, 1400, 10, 3, "id5", null, "id4"));
+        assertFalse(aggregator.record("tick", new HashMap<String, Object>(), 1, 0, 0, 1500, 10, 3, "id6", null, "id5"));
+        assertEquals(4, aggregator.size());
+
+        assertEquals(4, aggregator.flush(2000, true));
+        assertEquals(0, aggregator.size());
+
+        verify(eventQueue).recordEventToEventQueue("scroll", sameSegmentation, 4, 6.0, 2.0, 1000, 10, 3, "id1", null, "view", "prev");
+        verify(eventQueue).recordEventToEventQueue("tick", null, 2, 0, 0, 1400, 10, 3, "id5", null, null, "id4");
+        verify(eventQueue, times(4)).recordEventToEventQueue(anyString(), any(), anyInt(), anyDouble(), anyDouble(), anyLong(), anyInt(), anyInt(), anyString(), any(), any(), any());
+    }
+
+    /**
+     * Without forcing, the events should only be written after the window has passed
+     */
+    @Test
+    public void window() {
+        assertEquals(0, aggregator.flush(0, true));
+
+        aggregator.record("tick", null, 1, 0, 0, 1000, 10, 3, "id1", null, null);
+        assertEquals(0, aggregator.flush(10_999, false));
+        assertEquals(1, aggregator.flush(11_000, false));
+
+        //the next window starts with the next event
+        aggregator.record("tick", null, 1, 0, 0, 50_000, 10, 3, "id2", null, null);
+        assertEquals(0, aggregator.flush(59_999, false));
+
+        aggregator.clear();
+        assertEquals(0, aggregator.flush(100_000, true));
+        verify(eventQueue, times(1)).recordEventToEventQueue(anyString(), any(), anyInt(), anyDouble(), anyDouble(), anyLong(), anyInt(), anyInt(), anyString(), any(), any(), any());
+    }
+
+    /**
+     * A group whose count would overflow should be written out and a new one started
+     */
+    @Test
+    public void countOverflow() {
+        aggregator.record("tick", null, Integer.MAX_VALUE - 1, 0, 0, 1000, 10, 3, "id1", null, null);
+        assertTrue(aggregator.record("tick", null, 2, 0, 0, 1100, 10, 3, "id2", null, null));
+        verify(eventQueue).recordEventToEventQueue("tick", null, Integer.MAX_VALUE - 1, 0, 0, 1000, 10, 3, "id1", null, null, null);
+
+        aggregator.flush(1200, true);
+        verify(eventQueue).recordEventToEventQueue("tick", null, 2, 0, 0, 1100, 10, 3, "id2", null, null, null);
+    }
+}
@@ -0,0 +1,89 @@
+package ly.count.android.sdk;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+@RunWith(AndroidJUnit4.class)
+public class EventBatchingPolicyTests {
+    ModuleLog mockLog;
+
+    @Before
+    public void setUp() {
+        mockLog = mock(ModuleLog.class);
+    }
+
+    /**
+     * Without measurements the values should be in the middle of the bounds,
+     * a good connection should move them to the lower and a bad one to the upper bound
+     */
+    @Test
+    public void followsNetworkConditions() {
+        EventBatchingPolicy policy = new EventBatchingPolicy(10, 110, 30_000, 130_000, 0, mockLog);
+        assertEquals(60, policy.eventThreshold());
+        assertEquals(80_000, policy.flushIntervalMs);
+
+        for (int a = 0; a < 20; a++) {
+            policy.onRequestCompleted(100, 20_000, true);
+        }
+        assertEquals(10, policy.eventThreshold());
+        assertEquals(30_000, policy.flushIntervalMs);
+
+        //slow round trips
+        for (int a = 0; a < 20; a++) {
+            policy.onRequestCompleted(5000, 200, true);
+        }
+        assertEquals(110, policy.eventThreshold());
+        assertEquals(130_000, policy.flushIntervalMs);
+    }
+
+    /**
+     * Failures and low throughput on large payloads should increase the batch size even with fast round trips
+     */
+    @Test
+    public void failuresAndThroughput() {
+        EventBatchingPolicy policy = new EventBatchingPolicy(10, 110, 0, 0, 0, mockLog);
+        for (int a = 0; a < 20; a++) {
+            policy.onRequestCompleted(10, 100, false);
+        }
+        assertEquals(110, policy.eventThreshold());
+
+        policy = new EventBatchingPolicy(10, 110, 0, 0, 0, mockLog);
+        for (int a = 0; a < 20; a++) {
+            //4 KB/s
+            policy.onRequestCompleted(1000, 4096, true);
+        }
+        assertTrue(EventBatchingPolicy.scale(policy.averageRttMs, EventBatchingPolicy.GOOD_RTT_MS, EventBatchingPolicy.POOR_RTT_MS) < 0.5);
+        assertEquals(110, policy.eventThreshold());
+
+        //small payloads don't say much about the throughput
+        policy = new EventBatchingPolicy(10, 110, 0, 0, 0, mockLog);
+        policy.onRequestCompleted(300, 100, true);
+        assertEquals(10, policy.eventThreshold());
+    }
+
+    @Test
+    public void flushInterval() {
+        EventBatchingPolicy policy = new EventBatchingPolicy(5, 5, 60_000, 60_000, 1000, mockLog);
+        assertFalse(policy.shouldFlushOnTimer(60_999));
+        assertTrue(policy.shouldFlushOnTimer(61_000));
+
+        policy.onEventsFlushed(61_000);
+        assertFalse(policy.shouldFlushOnTimer(61_000));
+        assertTrue(policy.shouldFlushOnTimer(121_000));
+    }
+
+    @Test
+    public void invalidBounds() {
+        EventBatchingPolicy policy = new EventBatchingPolicy(-5, -10, -1000, -2000, 0, mockLog);
+        assertEquals(1, policy.eventThreshold());
+        assertEquals(0, policy.flushIntervalMs);
+        assertTrue(policy.toString().contains("threshold:[1]"));
+    }
+}
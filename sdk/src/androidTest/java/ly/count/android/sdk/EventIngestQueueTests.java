@@ -0,0 +1,156 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+@RunWith(AndroidJUnit4.class)
+public class EventIngestQueueTests {
+
+    static EventIngestQueue.PendingEvent pendingEvent(String key) {
+        return new EventIngestQueue.PendingEvent(key, null, 1, 0, 0, UtilsTime.Instant.get(1000));
+    }
+
+    /**
+     * Events from multiple threads should all be written on the writer thread,
+     * keeping the order in which each thread added them
+     */
+    @Test
+    public void multipleProducers() throws InterruptedException {
+        final int producers = 4;
+        final int eventsPerProducer = 500;
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> writerThreads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch allWritten = new CountDownLatch(producers * eventsPerProducer);
+
+        final EventIngestQueue queue = new EventIngestQueue(new Object(), new EventIngestQueue.EventWriter() {
+            @Override public void writeEvent(@NonNull EventIngestQueue.PendingEvent event) {
+                written.add(event.key);
+                writerThreads.add(Thread.currentThread().getName());
+                allWritten.countDown();
+            }
+        }, mock(ModuleLog.class));
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(new Runnable() {
+                @Override public void run() {
+                    for (int a = 0; a < eventsPerProducer; a++) {
+                        queue.add(pendingEvent(producer + "_" + a));
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(allWritten.await(5, TimeUnit.SECONDS));
+        assertEquals(producers * eventsPerProducer, written.size());
+
+        int[] nextIndex = new int[producers];
+        for (String key : written) {
+            String[] parts = key.split("_");
+            int producer = Integer.parseInt(parts[0]);
+            assertEquals(nextIndex[producer]++, Integer.parseInt(parts[1]));
+        }
+
+        for (String threadName : writerThreads) {
+            assertEquals("Countly-EventWriter", threadName);
+        }
+    }
+
+    /**
+     * Draining should write the pending events on the calling thread while holding the write lock,
+     * a failing event should not stop the others
+     */
+    @Test
+    public void drainOnCallingThread() {
+        final Object lock = new Object();
+        final List<String> written = new ArrayList<>();
+        EventIngestQueue queue = new EventIngestQueue(lock, new EventIngestQueue.EventWriter() {
+            @Override public void writeEvent(@NonNull EventIngestQueue.PendingEvent event) {
+                assertTrue(Thread.holdsLock(lock));
+                if (event.key.equals("bad")) {
+                    throw new IllegalStateException("bad event");
+                }
+                written.add(event.key);
+            }
+        }, mock(ModuleLog.class));
+
+        //the writer thread can't write while the lock is held
+        synchronized (lock) {
+            queue.add(pendingEvent("a"));
+            queue.add(pendingEvent("bad"));
+            queue.add(pendingEvent("b"));
+
+            assertEquals(2, queue.drain());
+            assertEquals(0, queue.size());
+            assertEquals(0, queue.drain());
+        }
+
+        assertEquals("a", written.get(0));
+        assertEquals("b", written.get(1));
+
+        queue.clear();
+    }
+
+    /**
+     * Halting should write the pending events and stop the writer thread
+     */
+    @Test
+    public void halt() throws InterruptedException {
+        final List<String> written = new ArrayList<>();
+        Object lock = new Object();
+        EventIngestQueue queue = new EventIngestQueue(lock, new EventIngestQueue.EventWriter() {
+            @Override public void writeEvent(@NonNull EventIngestQueue.PendingEvent event) {
+                written.add(event.key);
+            }
+        }, mock(ModuleLog.class));
+
+        ExecutorService writerExecutor;
+        synchronized (lock) {
+            queue.add(pendingEvent("a"));
+            writerExecutor = queue.writerExecutor;
+            queue.halt();
+        }
+
+        assertNull(queue.writerExecutor);
+        assertTrue(writerExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, written.size());
+        assertEquals("a", written.get(0));
+    }
+
+    @Test
+    public void clear() {
+        final List<String> written = new ArrayList<>();
+        Object lock = new Object();
+        EventIngestQueue queue = new EventIngestQueue(lock, new EventIngestQueue.EventWriter() {
+            @Override public void writeEvent(@NonNull EventIngestQueue.PendingEvent event) {
+                written.add(event.key);
+            }
+        }, mock(ModuleLog.class));
+
+        synchronized (lock) {
+            queue.add(pendingEvent("a"));
+            queue.clear();
+            assertEquals(0, queue.drain());
+        }
+        assertEquals(0, written.size());
+    }
+}
@@ -0,0 +1,185 @@
+package ly.count.android.sdk;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class EventJsonReaderTests {
+
+    @Before
+    public void setUp() {
+        Countly.sharedInstance().setLoggingEnabled(true);
+    }
+
+    static void assertSameEvent(Event expected, Event actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+
+        assertEquals(expected.key, actual.key);
+        assertEquals(expected.count, actual.count);
+        assertEquals(Double.doubleToLongBits(expected.sum), Double.doubleToLongBits(actual.sum));
+        assertEquals(Double.doubleToLongBits(expected.dur), Double.doubleToLongBits(actual.dur));
+        assertEquals(expected.timestamp, actual.timestamp);
+        assertEquals(expected.hour, actual.hour);
+        assertEquals(expected.dow, actual.dow);
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.pvid, actual.pvid);
+        assertEquals(expected.cvid, actual.cvid);
+        assertEquals(expected.peid, actual.peid);
+        assertEquals(expected.segmentation, actual.segmentation);
+        assertEquals(expected.segmentationInt, actual.segmentationInt);
+        assertEquals(expected.segmentationDouble, actual.segmentationDouble);
+        assertEquals(expected.segmentationBoolean, actual.segmentationBoolean);
+    }
+
+    /**
+     * The reader should give the same result as 'fromJSON' for the given JSON
+     */
+    static void validateSameAsLegacy(String json) throws JSONException {
+        assertSameEvent(Event.fromJSON(new JSONObject(json)), EventJsonReader.readEvent(json));
+    }
+
+    Event fullEvent(String key) {
+        Event event = new Event(key, 1_579_463_653_876L, 12, 3);
+        event.count = 5;
+        event.sum = 3.25;
+        event.dur = 10.5;
+        event.id = "id_" + key;
+        event.pvid = "pv/id";
+        event.cvid = "cv id";
+        event.peid = "pe\"id\\";
+
+        event.segmentation = new HashMap<>();
+        event.segmentation.put("str", "value with spaces & symbols =?/\\\n\t\u0001");
+        event.segmentation.put("unicode", "äöü 日本 😀");
+        event.segmentation.put("empty", "");
+        event.segmentationInt = new HashMap<>();
+        event.segmentationInt.put("int", -42);
+        event.segmentationInt.put("max", Integer.MAX_VALUE);
+        event.segmentationDouble = new HashMap<>();
+        event.segmentationDouble.put("double", 1.5);
+        event.segmentationDouble.put("wholeDouble", 7.0);
+        event.segmentationDouble.put("small", 1.0E-7);
+        event.segmentationDouble.put("large", 1.0E20);
+        event.segmentationDouble.put("negativeZero", -0.0);
+        event.segmentationBoolean = new HashMap<>();
+        event.segmentationBoolean.put("bool", true);
+        event.segmentationBoolean.put("other", false);
+        return event;
+    }
+
+    /**
+     * Events written by the writer and by 'toJSON' should be read back the same way as 'fromJSON' reads them
+     */
+    @Test
+    public void roundTrip() throws JSONException {
+        List<Event> events = new ArrayList<>();
+        events.add(fullEvent("full"));
+        events.add(new Event("minimal", 0, 0, 0));
+        Event negative = new Event("negative", 5, 1, 2);
+        negative.sum = -0.5;
+        negative.dur = -3;
+        negative.count = Integer.MIN_VALUE;
+        events.add(negative);
+
+        HashMap<String, Object> compact = new HashMap<>();
+        compact.put("a", 1);
+        compact.put("b", 2.5);
+        compact.put("c", "x");
+        compact.put("d", true);
+        Event compactEvent = new Event("compact", 10, 1, 1);
+        compactEvent.compactSegmentation = EventSegmentation.from(compact);
+        events.add(compactEvent);
+
+        for (Event event : events) {
+            validateSameAsLegacy(EventJsonWriter.eventJson(event));
+            validateSameAsLegacy(event.toJSON().toString());
+            assertEquals(event.toJSON().toString(), EventJsonWriter.eventJson(event));
+        }
+
+        Event read = EventJsonReader.readEvent(EventJsonWriter.eventJson(fullEvent("full")));
+        assertEquals(fullEvent("full"), read);
+        assertEquals("value with spaces & symbols =?/\\\n\t\u0001", read.segmentation.get("str"));
+        //integral doubles are written without a fraction and read back as integers, like org.json does
+        assertEquals(Integer.valueOf(7), read.segmentationInt.get("wholeDouble"));
+        assertEquals(Integer.valueOf(0), read.segmentationInt.get("negativeZero"));
+    }
+
+    /**
+     * JSON that the SDK doesn't write itself should still be read the same way as 'fromJSON' reads it
+     */
+    @Test
+    public void unusualJson() throws JSONException {
+        String[] inputs = {
+            "{}",
+            "{\"count\":1}",
+            "{\"key\":\"\"}",
+            "{\"key\":null,\"count\":1}",
+            "{\"key\":5}",
+            "{\"key\":\"a\",\"key\":\"b\"}",
+            " { \"key\" : \"a\" , \"count\" : 2.9 , \"hour\" : \"3\" } trailing",
+            "{\"key\":\"a\",\"count\":1e2,\"timestamp\":12.7,\"sum\":5,\"dur\":null}",
+            "{\"key\":\"a\",\"timestamp\":9223372036854775807,\"count\":4294967297}",
+            "{\"key\":\"a\",\"id\":null,\"pvid\":3,\"cvid\":true}",
+            "{\"key\":\"a\",\"segmentation\":null}",
+            "{\"key\":\"a\",\"segmentation\":{}}",
+            "{\"key\":\"a\",\"segmentation\":\"text\"}",
+            "{\"key\":\"a\",\"segmentation\":{\"n\":null,\"o\":{\"x\":[1,\"}\"]},\"arr\":[],\"long\":2147483648,\"exp\":1E3,\"s\":\"\\u00e4\\/\\q\"}}",
+            "{\"key\":\"a\",\"segmentation\":{\"x\":1,\"x\":\"y\"}}",
+            "{\"key\":\"a\",\"segmentation\":{\"octal\":010,\"hex\":0x10,\"neg\":-0}}",
+            "{\"key\":\"a\",\"extra\":{\"nested\":[{\"key\":\"b\"}]},\"count\":3}",
+            "{key:\"unquoted\";\"count\"=1}",
+            "{\"key\":\"a\",\"segmentation\":{\"b\":True,\"c\":NULL}}",
+        };
+
+        for (String input : inputs) {
+            try {
+                validateSameAsLegacy(input);
+            } catch (AssertionError e) {
+                throw new AssertionError("Different result for: " + input, e);
+            }
+        }
+    }
+
+    /**
+     * Invalid JSON should throw like org.json does
+     */
+    @Test
+    public void invalidJson() {
+        String[] inputs = { "", "[]", "{\"key\":\"a\"", "{\"key\":\"a", "not json" };
+
+        for (String input : inputs) {
+            try {
+                EventJsonReader.readEvent(input);
+                fail("Expected an exception for: " + input);
+            } catch (JSONException ignored) {
+            }
+        }
+    }
+
+    /**
+     * The stored event queue should be written the same way as before
+     */
+    @Test
+    public void joinEvents() {
+        List<Event> events = new ArrayList<>();
+        events.add(fullEvent("a"));
+        events.add(new Event("b", 1, 2, 3));
+
+        assertEquals(fullEvent("a").toJSON().toString() + ":::" + new Event("b", 1, 2, 3).toJSON().toString(), CountlyStore.joinEvents(events, ":::"));
+        assertEquals("", CountlyStore.joinEvents(new ArrayList<Event>(), ":::"));
+    }
+}
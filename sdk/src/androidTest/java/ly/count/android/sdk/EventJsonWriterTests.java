@@ -0,0 +1,248 @@
+package ly.count.android.sdk;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONArray;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(AndroidJUnit4.class)
+public class EventJsonWriterTests {
+
+    @Before
+    public void setUp() {
+        Countly.sharedInstance().setLoggingEnabled(true);
+    }
+
+    /**
+     * The way the batch was created before the streaming writer
+     */
+    String legacyBatch(List<Event> events) throws UnsupportedEncodingException {
+        final JSONArray eventArray = new JSONArray();
+        for (Event e : events) {
+            eventArray.put(e.toJSON());
+        }
+        return URLEncoder.encode(eventArray.toString(), "UTF-8");
+    }
+
+    void validateSameAsLegacy(List<Event> events) throws UnsupportedEncodingException {
+        assertEquals(legacyBatch(events), EventJsonWriter.urlEncodedEventArray(events));
+    }
+
+    List<Event> eventList(Event... events) {
+        List<Event> list = new ArrayList<>();
+        for (Event e : events) {
+            list.add(e);
+        }
+        return list;
+    }
+
+    Event fullEvent(String key) {
+        Event event = new Event(key, 1_579_463_653_876L, 12, 3);
+        event.count = 5;
+        event.sum = 3.25;
+        event.dur = 10;
+        event.id = "id_" + key;
+        event.pvid = "pv/id";
+        event.cvid = "cv id";
+        event.peid = "pe\"id";
+
+        event.segmentation = new HashMap<>();
+        event.segmentation.put("str", "value with spaces & symbols =?/\\");
+        event.segmentation.put("unicode", "äöü 日本 😀");
+        event.segmentationInt = new HashMap<>();
+        event.segmentationInt.put("int", -42);
+        event.segmentationDouble = new HashMap<>();
+        event.segmentationDouble.put("double", 1.5);
+        event.segmentationDouble.put("wholeDouble", 7.0);
+        event.segmentationDouble.put("small", 1.0E-7);
+        event.segmentationBoolean = new HashMap<>();
+        event.segmentationBoolean.put("bool", true);
+        return event;
+    }
+
+    @Test
+    public void emptyBatch() throws UnsupportedEncodingException {
+        validateSameAsLegacy(new ArrayList<Event>());
+    }
+
+    @Test
+    public void minimalEvents() throws UnsupportedEncodingException {
+        validateSameAsLegacy(eventList(new Event("a", 1, 0, 0), new Event("b", 2, 23, 6)));
+        validateSameAsLegacy(eventList(new Event()));
+    }
+
+    @Test
+    public void fullEvents() throws UnsupportedEncodingException {
+        validateSameAsLegacy(eventList(fullEvent("first"), fullEvent("second key"), fullEvent("")));
+    }
+
+    /**
+     * Control characters, escaped characters and unpaired surrogates
+     */
+    @Test
+    public void specialCharacters() throws UnsupportedEncodingException {
+        Event event = new Event("\t\b\n\r\f\u0001\u001F\"\\/ *-._~!'()", 3, 1, 1);
+        event.segmentation = new HashMap<>();
+        event.segmentation.put("lone", "a\uD83Db");
+        event.segmentation.put("lone2", "\uDE00c");
+        event.segmentation.put("end", "d\uD83D");
+        validateSameAsLegacy(eventList(event));
+    }
+
+    /**
+     * Numbers that org.json formats in a special way
+     */
+    @Test
+    public void numberFormatting() throws UnsupportedEncodingException {
+        Event event = new Event("n", Long.MAX_VALUE, 0, 0);
+        event.count = Integer.MIN_VALUE;
+        event.sum = -0.0;
+        event.dur = 1.0E20;
+        event.segmentationDouble = new HashMap<>();
+        event.segmentationDouble.put("negZero", -0.0);
+        event.segmentationDouble.put("big", 123456789012345.0);
+        event.segmentationDouble.put("bigger", 1.0E300);
+        event.segmentationDouble.put("fraction", 0.1 + 0.2);
+        validateSameAsLegacy(eventList(event));
+    }
+
+    /**
+     * Values that make org.json throw, cut the event short
+     */
+    @Test
+    public void invalidValues() throws UnsupportedEncodingException {
+        Event nanSum = new Event("a", 1, 0, 0);
+        nanSum.sum = Double.NaN;
+        nanSum.dur = 5;
+
+        Event infiniteDur = new Event("b", 1, 0, 0);
+        infiniteDur.dur = Double.POSITIVE_INFINITY;
+
+        Event nanDur = new Event("c", 1, 0, 0);
+        nanDur.dur = Double.NaN;
+
+        Event nanSegmentation = fullEvent("d");
+        nanSegmentation.segmentationDouble.put("nan", Double.NaN);
+
+        Event nullSegmentationKey = fullEvent("e");
+        nullSegmentationKey.segmentation.put(null, "v");
+
+        validateSameAsLegacy(eventList(nanSum, infiniteDur, nanDur, nanSegmentation, nullSegmentationKey));
+    }
+
+    /**
+     * Null values are left out, and the same key in multiple segmentation maps keeps its first position
+     */
+    @Test
+    public void nullAndDuplicateSegmentation() throws UnsupportedEncodingException {
+        Event event = new Event(null, 1, 0, 0);
+        event.segmentation = new LinkedHashMap<>();
+        event.segmentation.put("dup", "first");
+        event.segmentation.put("nullValue", null);
+        event.segmentation.put("removed", "x");
+        event.segmentationInt = new LinkedHashMap<>();
+        event.segmentationInt.put("removed", null);
+        event.segmentationInt.put("dup", 4);
+        event.segmentationBoolean = new LinkedHashMap<>();
+        event.segmentationBoolean.put("removed", false);
+
+        Event onlyNullValues = new Event("k", 1, 0, 0);
+        onlyNullValues.segmentation = new HashMap<>();
+        onlyNullValues.segmentation.put("a", null);
+
+        Event emptyMaps = new Event("k", 1, 0, 0);
+        emptyMaps.segmentation = new HashMap<>();
+        emptyMaps.segmentationInt = new HashMap<>();
+
+        validateSameAsLegacy(eventList(event, onlyNullValues, emptyMaps));
+    }
+
+    /**
+     * Many events in one batch
+     */
+    @Test
+    public void largeBatch() throws UnsupportedEncodingException {
+        List<Event> events = new ArrayList<>();
+        for (int a = 0; a < 200; a++) {
+            Event event = fullEvent("key" + a);
+            event.timestamp += a;
+            events.add(event);
+        }
+        validateSameAsLegacy(events);
+    }
+
+    @Test
+    public void numberToString() {
+        assertEquals("-0", EventJsonWriter.numberToString(-0.0));
+        assertEquals("0", EventJsonWriter.numberToString(0.0));
+        assertEquals("3", EventJsonWriter.numberToString(3.0));
+        assertEquals("3.5", EventJsonWriter.numberToString(3.5));
+        assertEquals("1.0E20", EventJsonWriter.numberToString(1.0E20));
+        assertEquals("-12", EventJsonWriter.numberToString(-12));
+        assertEquals(Long.toString(Long.MIN_VALUE), EventJsonWriter.numberToString(Long.MIN_VALUE));
+    }
+
+    /**
+     * The compact segmentation should be written like 'toJSON' writes it and keep the order of the source map.
+     * Unsupported values and 'null' keys are left out.
+     */
+    @Test
+    public void compactSegmentation() throws UnsupportedEncodingException {
+        Map<String, Object> source = new LinkedHashMap<>();
+        source.put("str", "a/b c");
+        source.put("int", -42);
+        source.put("double", 1.5);
+        source.put("wholeDouble", 7.0);
+        source.put("negativeZero", -0.0);
+        source.put("bool", false);
+        source.put("unsupported", new Object());
+        source.put(null, "no key");
+
+        Event event = new Event("k", 10, 1, 2);
+        event.compactSegmentation = EventSegmentation.from(source);
+        assertEquals(6, event.compactSegmentation.size);
+
+        assertEquals("{\"key\":\"k\",\"count\":0,\"timestamp\":10,\"hour\":1,\"dow\":2,\"segmentation\":{\"str\":\"a\\/b c\",\"int\":-42,\"double\":1.5,\"wholeDouble\":7,\"negativeZero\":-0,"
+            + "\"bool\":false},\"sum\":0}", EventJsonWriter.eventJson(event));
+        assertEquals(event.toJSON().toString(), EventJsonWriter.eventJson(event));
+        validateSameAsLegacy(eventList(event));
+
+        //org.json would throw on the NaN value
+        source.put("nan", Double.NaN);
+        event.compactSegmentation = EventSegmentation.from(source);
+        assertEquals(event.toJSON().toString(), EventJsonWriter.eventJson(event));
+
+        Map<String, Object> onlyUnsupported = new HashMap<>();
+        onlyUnsupported.put("list", new ArrayList<>());
+        assertNull(EventSegmentation.from(onlyUnsupported));
+        assertNull(EventSegmentation.from(null));
+    }
+
+    /**
+     * Making sure that the JSON is written unencoded when URL encoding is not requested
+     */
+    @Test
+    public void unencodedOutput() {
+        Map<String, String> segmentation = new HashMap<>();
+        segmentation.put("a b", "c/d");
+        Event event = new Event("k", 10, 1, 2);
+        event.segmentation = segmentation;
+
+        EventJsonWriter writer = new EventJsonWriter(new StringBuilder(), false);
+        writer.writeEvent(event);
+        writer.finish();
+        assertEquals(event.toJSON().toString(), writer.out.toString());
+        assertEquals("{\"key\":\"k\",\"count\":0,\"timestamp\":10,\"hour\":1,\"dow\":2,\"segmentation\":{\"a b\":\"c\\/d\"},\"sum\":0}", writer.out.toString());
+    }
+}
@@ -0,0 +1,229 @@
+package ly.count.android.sdk;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(AndroidJUnit4.class)
+public class HttpTransportTests {
+    CountlyStore mockStore;
+    DeviceIdProvider mockDeviceId;
+    ModuleLog moduleLog;
+    HealthTracker healthTrackerMock;
+    ConfigurationProvider configurationProviderFake;
+    RequestInfoProvider rip;
+
+    /**
+     * A connection that is answered by the stub server instead of the network
+     */
+    static class StubConnection extends HttpURLConnection {
+        final StubServer server;
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int responseCode;
+        byte[] response;
+        boolean disconnected = false;
+
+        StubConnection(URL url, StubServer server) {
+            super(url);
+            this.server = server;
+        }
+
+        @Override public void connect() {
+            connected = true;
+        }
+
+        @Override public OutputStream getOutputStream() {
+            return body;
+        }
+
+        @Override public int getResponseCode() {
+            respond();
+            return responseCode;
+        }
+
+        @Override public InputStream getInputStream() throws IOException {
+            respond();
+            if (responseCode >= 400) {
+                throw new IOException("Response code " + responseCode);
+            }
+            return new ByteArrayInputStream(response);
+        }
+
+        @Override public InputStream getErrorStream() {
+            respond();
+            return new ByteArrayInputStream(response);
+        }
+
+        void respond() {
+            if (response == null) {
+                server.handle(this);
+            }
+        }
+
+        @Override public void disconnect() {
+            disconnected = true;
+        }
+
+        @Override public boolean usingProxy() {
+            return false;
+        }
+    }
+
+    /**
+     * Records the received requests and answers them with a fixed response
+     */
+    static class StubServer implements HttpTransport {
+        final List<StubConnection> connections = new ArrayList<>();
+        final List<String> receivedRequests = new ArrayList<>();
+        int responseCode = 200;
+        String responseBody = "{\"result\":\"Success\"}";
+
+        @Override public HttpURLConnection openConnection(URL url) {
+            StubConnection connection = new StubConnection(url, this);
+            connections.add(connection);
+            return connection;
+        }
+
+        void handle(StubConnection connection) {
+            String request = connection.getRequestMethod() + " " + connection.getURL().getPath();
+            if ("POST".equals(connection.getRequestMethod())) {
+                request += " " + new String(connection.body.toByteArray());
+            } else {
+                request += "?" + connection.getURL().getQuery();
+            }
+            receivedRequests.add(request);
+
+            connection.responseCode = responseCode;
+            connection.response = responseBody.getBytes();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        configurationProviderFake = new ConfigurationProvider() {
+            @Override public boolean getNetworkingEnabled() {
+                return true;
+            }
+
+            @Override public boolean getTrackingEnabled() {
+                return true;
+            }
+        };
+
+        Countly.sharedInstance().setLoggingEnabled(true);
+        mockStore = mock(CountlyStore.class);
+        mockDeviceId = mock(DeviceIdProvider.class);
+        moduleLog = mock(ModuleLog.class);
+        healthTrackerMock = mock(HealthTracker.class);
+
+        rip = new RequestInfoProvider() {
+            @Override public boolean isHttpPostForced() {
+                return false;
+            }
+
+            @Override public boolean isDeviceAppCrawler() {
+                return false;
+            }
+
+            @Override public boolean ifShouldIgnoreCrawlers() {
+                return false;
+            }
+        };
+
+        when(mockDeviceId.getDeviceId()).thenReturn("123");
+        ConnectionProcessor.salt = null;
+    }
+
+    ConnectionProcessor createProcessor(HttpTransport transport) {
+        ConnectionProcessor cp = new ConnectionProcessor("http://server", mockStore, mockDeviceId, configurationProviderFake, rip, null, null, moduleLog, healthTrackerMock);
+        cp.httpTransport = transport;
+        return cp;
+    }
+
+    /**
+     * The request queue should be sent through the provided transport
+     */
+    @Test
+    public void requestQueueUsesTransport() {
+        StubServer server = new StubServer();
+        when(mockStore.peekRequest()).thenReturn("a=1", "b=2", null);
+        when(mockStore.getRequestQueueSize()).thenReturn(2, 1, 0);
+
+        createProcessor(server).run();
+
+        assertEquals(2, server.receivedRequests.size());
+        assertEquals("GET /i?a=1&device_id=123&rr=1&checksum256=" + UtilsNetworking.sha256Hash("a=1&device_id=123&rr=1" + null), server.receivedRequests.get(0));
+        assertEquals("GET /i?b=2&device_id=123&rr=0&checksum256=" + UtilsNetworking.sha256Hash("b=2&device_id=123&rr=0" + null), server.receivedRequests.get(1));
+        verify(mockStore).removeRequest("a=1");
+        verify(mockStore).removeRequest("b=2");
+
+        for (StubConnection connection : server.connections) {
+            assertFalse(connection.disconnected);
+        }
+    }
+
+    /**
+     * POST bodies should be written to the transport connection and failed requests should stay in the queue
+     */
+    @Test
+    public void postAndFailure() {
+        StubServer server = new StubServer();
+        server.responseCode = 500;
+        server.responseBody = "{\"error\":\"down\"}";
+        final String crashRequest = "app_key=a&crash=abc";
+        when(mockStore.peekRequest()).thenReturn(crashRequest);
+        when(mockStore.getRequestQueueSize()).thenReturn(1);
+
+        createProcessor(server).run();
+
+        String expectedBody = crashRequest + "&device_id=123&rr=0";
+        assertEquals(1, server.receivedRequests.size());
+        assertEquals("POST /i " + expectedBody + "&checksum256=" + UtilsNetworking.sha256Hash(expectedBody + null), server.receivedRequests.get(0));
+        verify(mockStore, times(0)).removeRequest(crashRequest);
+        verify(healthTrackerMock).logFailedNetworkRequest(500, "{\"error\":\"down\"}");
+    }
+
+    /**
+     * Immediate requests should go through the same transport
+     */
+    @Test
+    public void immediateRequestUsesTransport() {
+        StubServer server = new StubServer();
+        server.responseBody = "{\"key\":\"value\"}";
+        ConnectionProcessor cp = createProcessor(server);
+
+        ImmediateRequestMaker maker = new ImmediateRequestMaker();
+        maker.L = moduleLog;
+        JSONObject response = maker.performRequest("method=rc", "/o/sdk", cp, false, true);
+
+        assertEquals("value", response.optString("key"));
+        assertEquals(1, server.receivedRequests.size());
+        assertTrue(server.receivedRequests.get(0).startsWith("GET /o/sdk?method=rc&checksum256="));
+    }
+
+    @Test
+    public void defaultTransport() throws IOException {
+        HttpURLConnection connection = new DefaultHttpTransport().openConnection(new URL("http://server/i?a=1"));
+        assertEquals("http://server/i?a=1", connection.getURL().toString());
+        assertFalse(connection.getDoOutput());
+    }
+}
@@ -0,0 +1,165 @@
+package ly.count.android.sdk;
+
+import android.os.Looper;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(AndroidJUnit4.class)
+public class ImmediateRequestMakerTests {
+    ModuleLog moduleLog;
+    DeviceIdProvider mockDeviceId;
+
+    @Before
+    public void setUp() {
+        Countly.sharedInstance().setLoggingEnabled(true);
+        moduleLog = mock(ModuleLog.class);
+        mockDeviceId = mock(DeviceIdProvider.class);
+        when(mockDeviceId.getDeviceId()).thenReturn("123");
+        ImmediateRequestMaker.requestTimeoutMs = ImmediateRequestMaker.DEFAULT_TIMEOUT_MS;
+    }
+
+    @After
+    public void tearDown() {
+        ImmediateRequestMaker.cancelAll();
+        ImmediateRequestMaker.requestTimeoutMs = ImmediateRequestMaker.DEFAULT_TIMEOUT_MS;
+    }
+
+    ConnectionProcessor createProcessor(HttpTransport transport) {
+        ConfigurationProvider configProvider = new ConfigurationProvider() {
+            @Override public boolean getNetworkingEnabled() {
+                return true;
+            }
+
+            @Override public boolean getTrackingEnabled() {
+                return true;
+            }
+        };
+        RequestInfoProvider rip = new RequestInfoProvider() {
+            @Override public boolean isHttpPostForced() {
+                return false;
+            }
+
+            @Override public boolean isDeviceAppCrawler() {
+                return false;
+            }
+
+            @Override public boolean ifShouldIgnoreCrawlers() {
+                return false;
+            }
+        };
+
+        ConnectionProcessor cp = new ConnectionProcessor("http://server", mock(CountlyStore.class), mockDeviceId, configProvider, rip, null, null, moduleLog, mock(HealthTracker.class));
+        cp.httpTransport = transport;
+        return cp;
+    }
+
+    /**
+     * The request should run on a SDK thread, use the configured timeout and call back on the main thread
+     */
+    @Test
+    public void resultDeliveredOnMainThread() throws InterruptedException {
+        final AtomicReference<String> requestThread = new AtomicReference<>();
+        final AtomicReference<HttpURLConnection> openedConnection = new AtomicReference<>();
+        final HttpTransportTests.StubServer server = new HttpTransportTests.StubServer() {
+            @Override public HttpURLConnection openConnection(URL url) {
+                requestThread.set(Thread.currentThread().getName());
+                HttpURLConnection connection = super.openConnection(url);
+                openedConnection.set(connection);
+                return connection;
+            }
+        };
+        server.responseBody = "{\"key\":\"value\"}";
+        ImmediateRequestMaker.requestTimeoutMs = 1234;
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<JSONObject> result = new AtomicReference<>();
+        final AtomicBoolean onMainThread = new AtomicBoolean(false);
+
+        new ImmediateRequestMaker().doWork("method=rc", "/o/sdk", createProcessor(server), false, true, new ImmediateRequestMaker.InternalImmediateRequestCallback() {
+            @Override public void callback(JSONObject checkResponse) {
+                onMainThread.set(Looper.myLooper() == Looper.getMainLooper());
+                result.set(checkResponse);
+                latch.countDown();
+            }
+        }, moduleLog);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(onMainThread.get());
+        assertNotNull(result.get());
+        assertEquals("value", result.get().optString("key"));
+        assertTrue(requestThread.get().startsWith("Countly-ImmediateRequest-"));
+        assertEquals(1234, openedConnection.get().getConnectTimeout());
+        assertEquals(1234, openedConnection.get().getReadTimeout());
+    }
+
+    /**
+     * Cancelled requests should not call their callback
+     */
+    @Test
+    public void cancelAll() throws InterruptedException {
+        final CountDownLatch requestStarted = new CountDownLatch(1);
+        final CountDownLatch releaseRequest = new CountDownLatch(1);
+        HttpTransport blockingTransport = new HttpTransport() {
+            @Override public HttpURLConnection openConnection(URL url) throws IOException {
+                requestStarted.countDown();
+                try {
+                    releaseRequest.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+                return new HttpTransportTests.StubServer().openConnection(url);
+            }
+        };
+
+        final CountDownLatch callbackCalled = new CountDownLatch(1);
+        new ImmediateRequestMaker().doWork("method=rc", "/o/sdk", createProcessor(blockingTransport), false, true, new ImmediateRequestMaker.InternalImmediateRequestCallback() {
+            @Override public void callback(JSONObject checkResponse) {
+                callbackCalled.countDown();
+            }
+        }, moduleLog);
+
+        assertTrue(requestStarted.await(5, TimeUnit.SECONDS));
+        ImmediateRequestMaker.cancelAll();
+        releaseRequest.countDown();
+
+        assertFalse(callbackCalled.await(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * If networking is disabled, the callback should still be called with 'null'
+     */
+    @Test
+    public void networkingDisabled() throws InterruptedException {
+        HttpTransportTests.StubServer server = new HttpTransportTests.StubServer();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean resultWasNull = new AtomicBoolean(false);
+
+        new ImmediateRequestMaker().doWork("method=rc", "/o/sdk", createProcessor(server), false, false, new ImmediateRequestMaker.InternalImmediateRequestCallback() {
+            @Override public void callback(JSONObject checkResponse) {
+                resultWasNull.set(checkResponse == null);
+                latch.countDown();
+            }
+        }, moduleLog);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(resultWasNull.get());
+        assertEquals(0, server.receivedRequests.size());
+    }
+}
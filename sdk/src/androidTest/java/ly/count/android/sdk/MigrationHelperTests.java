@@ -3,6 +3,7 @@ package ly.count.android.sdk;
 import android.content.SharedPreferences;
 import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 import ly.count.android.sdk.internal.RemoteConfigValueStore;
@@ -40,7 +41,7 @@ public class MigrationHelperTests {
     ModuleLog mockLog;
     CountlyStore cs;
     StorageProvider sp;
-    final int latestSchemaVersion = 3;
+    final int latestSchemaVersion = 4;
 
     @Before
     public void setUp() {
@@ -522,6 +523,85 @@ public class MigrationHelperTests {
         Assert.assertNull(sp.getString(MigrationHelper.legacyCACHED_PUSH_MESSAGING_MODE, null));
     }
 
+    /**
+     * Events stored as JSON by earlier versions should be moved to the binary event queue, if it is used.
+     * Requests in preferences are converted when they are moved to the request queue log.
+     */
+    @Test
+    public void performMigration3To4_1() {
+        File eventQueueFile = EventQueueFile.queueFile(getContext().getFilesDir());
+        File requestQueueLogDirectory = RequestQueueFileLog.logDirectory(getContext().getFilesDir());
+        EventQueueFile.deleteFile(eventQueueFile);
+
+        cs.addEvent(new Event("a", 1, 2, 3));
+        cs.addEvent(new Event("b", 4, 2, 3));
+        cs.addRequest("a=1", false);
+
+        CountlyStore binaryStore = new CountlyStore(getContext(), mockLog, false, false, true);
+        assertEquals(0, binaryStore.getEventQueueSize());
+
+        MigrationHelper mh = new MigrationHelper(binaryStore, mockLog, getApplicationContext());
+        mh.performMigration3To4(new HashMap<>());
+
+        assertEquals(2, binaryStore.getEventQueueSize());
+        assertEquals("a", binaryStore.getEventList().get(0).key);
+        assertEquals("b", binaryStore.getEventList().get(1).key);
+        assertEquals(0, cs.getEvents().length);
+        assertFalse(binaryStore.recordFormatChanged());
+        //requests in preferences are left to the request queue storage migration
+        assertEquals(1, cs.getRequests().length);
+
+        binaryStore.setDataSchemaVersion(latestSchemaVersion);
+        mh.doWork(new HashMap<>());
+        assertEquals(0, cs.getRequests().length);
+        assertEquals(1, binaryStore.getRequests().length);
+        assertEquals("a=1", binaryStore.getRequests()[0]);
+        assertTrue(binaryStore.requestQueueLog.records.peekFirst().compact);
+
+        binaryStore.clear();
+        binaryStore.eventQueueFile.close();
+        binaryStore.requestQueueLog.close();
+        EventQueueFile.deleteFile(eventQueueFile);
+        RequestQueueFileLog.deleteLog(requestQueueLogDirectory);
+    }
+
+    /**
+     * Stored data should only be converted on start if the binary record format was enabled or disabled since the last run
+     */
+    @Test
+    public void performRecordFormatMigration_1() {
+        File eventQueueFile = EventQueueFile.queueFile(getContext().getFilesDir());
+        File requestQueueLogDirectory = RequestQueueFileLog.logDirectory(getContext().getFilesDir());
+        EventQueueFile.deleteFile(eventQueueFile);
+
+        cs.setDataSchemaVersion(latestSchemaVersion);
+        MigrationHelper mh = new MigrationHelper(cs, mockLog, getApplicationContext());
+        mh.doWork(new HashMap<>());
+        assertFalse(cs.recordFormatChanged());
+
+        CountlyStore binaryStore = new CountlyStore(getContext(), mockLog, false, false, true);
+        assertTrue(binaryStore.recordFormatChanged());
+        binaryStore.addEvent(new Event("a", 1, 2, 3));
+
+        mh = new MigrationHelper(binaryStore, mockLog, getApplicationContext());
+        mh.doWork(new HashMap<>());
+        assertFalse(binaryStore.recordFormatChanged());
+        binaryStore.eventQueueFile.close();
+        binaryStore.requestQueueLog.close();
+
+        //switching back moves the events to preferences again
+        CountlyStore jsonStore = new CountlyStore(getContext(), mockLog);
+        assertTrue(jsonStore.recordFormatChanged());
+        mh = new MigrationHelper(jsonStore, mockLog, getApplicationContext());
+        mh.doWork(new HashMap<>());
+        assertFalse(jsonStore.recordFormatChanged());
+        assertFalse(eventQueueFile.exists());
+        assertEquals(1, jsonStore.getEvents().length);
+
+        EventQueueFile.deleteFile(eventQueueFile);
+        RequestQueueFileLog.deleteLog(requestQueueLogDirectory);
+    }
+
     /**
      * Create a legacy entry
      *
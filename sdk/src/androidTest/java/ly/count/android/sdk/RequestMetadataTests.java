@@ -0,0 +1,78 @@
+package ly.count.android.sdk;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+@RunWith(AndroidJUnit4.class)
+public class RequestMetadataTests {
+
+    @Test
+    public void regularRequest() {
+        String request = "app_key=abc&timestamp=1&events=%5B%5D";
+        RequestMetadata metadata = RequestMetadata.parse(request);
+
+        assertEquals(RequestMetadata.FLAG_EVENTS, metadata.flags);
+        assertEquals("abc", metadata.appKey(request));
+        assertNull(metadata.deviceId(request));
+        assertSame(request, metadata.replaceDeviceId(request, "x"));
+        assertEquals("app_key=new%20key&timestamp=1&events=%5B%5D", metadata.replaceAppKey(request, "new%20key"));
+    }
+
+    @Test
+    public void deviceIdTags() {
+        String change = "app_key=abc&session_duration=5&device_id=new+id";
+        RequestMetadata metadata = RequestMetadata.parse(change);
+        assertTrue(metadata.has(RequestMetadata.FLAG_DEVICE_ID));
+        assertFalse(metadata.has(RequestMetadata.FLAG_OVERRIDE_ID | RequestMetadata.FLAG_TEMPORARY_DEVICE_ID));
+        assertEquals("new+id", metadata.deviceId(change));
+
+        String temporary = "app_key=abc&device_id=" + DeviceId.temporaryCountlyDeviceId;
+        metadata = RequestMetadata.parse(temporary);
+        assertTrue(metadata.has(RequestMetadata.FLAG_DEVICE_ID | RequestMetadata.FLAG_TEMPORARY_DEVICE_ID));
+        assertEquals("app_key=abc&device_id=real", metadata.replaceDeviceId(temporary, "real"));
+
+        metadata = RequestMetadata.parse("app_key=abc&end_session=1&override_id=" + DeviceId.temporaryCountlyDeviceId);
+        assertEquals(RequestMetadata.FLAG_OVERRIDE_ID | RequestMetadata.FLAG_TEMPORARY_OVERRIDE_ID, metadata.flags);
+
+        //tags are only recognised as whole parameters after the first one
+        assertEquals(0, RequestMetadata.parse("device_id=1&old_device_id=2&crash_id=3&x=device_id%3D4").flags);
+    }
+
+    @Test
+    public void otherFlags() {
+        assertEquals(RequestMetadata.FLAG_CRASH, RequestMetadata.parse("app_key=abc&crash=%7B%7D").flags);
+        assertEquals(RequestMetadata.FLAG_PICTURE_PATH, RequestMetadata.parse("app_key=abc&user_details&picturePath=%2Fa.png").flags);
+
+        //empty and malformed requests
+        assertEquals(0, RequestMetadata.parse("").flags);
+        assertNull(RequestMetadata.parse("&&=&app_key").appKey("&&=&app_key"));
+    }
+
+    @Test
+    public void priority() {
+        assertEquals(RequestMetadata.PRIORITY_CRITICAL, RequestMetadata.parse("app_key=a&crash=%7B%7D").priority());
+        assertEquals(RequestMetadata.PRIORITY_CRITICAL, RequestMetadata.parse("app_key=a&consent=%7B%7D").priority());
+        assertEquals(RequestMetadata.PRIORITY_CRITICAL, RequestMetadata.parse("app_key=a&device_id=b").priority());
+        assertEquals(RequestMetadata.PRIORITY_NORMAL, RequestMetadata.parse("app_key=a&begin_session=1").priority());
+        assertEquals(RequestMetadata.PRIORITY_BULK, RequestMetadata.parse("app_key=a&events=%5B%5D").priority());
+        assertEquals(RequestMetadata.PRIORITY_BULK, RequestMetadata.parse("app_key=a&count=1&apm=%7B%7D").priority());
+
+        assertTrue(RequestMetadata.parse("app_key=a&override_id=b").isOrderingBarrier());
+        assertFalse(RequestMetadata.parse("app_key=a&crash=%7B%7D").isOrderingBarrier());
+    }
+
+    @Test
+    public void storageWithoutMetadata() {
+        StorageProvider storage = mock(StorageProvider.class);
+        RequestMetadata metadata = RequestMetadata.of(storage, "app_key=abc&device_id=1");
+        assertTrue(metadata.has(RequestMetadata.FLAG_DEVICE_ID));
+    }
+}
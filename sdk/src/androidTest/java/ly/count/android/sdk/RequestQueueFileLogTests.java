@@ -0,0 +1,374 @@
+package ly.count.android.sdk;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static androidx.test.InstrumentationRegistry.getContext;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+@RunWith(AndroidJUnit4.class)
+public class RequestQueueFileLogTests {
+    ModuleLog mockLog;
+    File logDirectory;
+
+    @Before
+    public void setUp() {
+        mockLog = mock(ModuleLog.class);
+        logDirectory = RequestQueueFileLog.logDirectory(getContext().getFilesDir());
+        RequestQueueFileLog.deleteLog(logDirectory);
+
+        CountlyStore store = new CountlyStore(getContext(), mockLog);
+        store.clear();
+    }
+
+    @After
+    public void tearDown() {
+        RequestQueueFileLog.deleteLog(logDirectory);
+    }
+
+    RequestQueueFileLog openLog() {
+        RequestQueueFileLog log = new RequestQueueFileLog(logDirectory, mockLog);
+        assertTrue(log.open());
+        return log;
+    }
+
+    /**
+     * Appended requests should be returned in order and survive reopening the log
+     */
+    @Test
+    public void appendAndReopen() {
+        RequestQueueFileLog log = openLog();
+        assertTrue(log.isEmpty());
+        assertNull(log.peek());
+
+        log.append("a=1", false);
+        log.append("b=2&c=ü", true);
+        log.append("d=3", false);
+
+        assertEquals(3, log.size());
+        assertEquals("a=1", log.peek());
+        assertArrayEquals(new String[] { "a=1", "b=2&c=ü", "d=3" }, log.readAll());
+        log.close();
+
+        log = openLog();
+        assertArrayEquals(new String[] { "a=1", "b=2&c=ü", "d=3" }, log.readAll());
+        log.close();
+    }
+
+    /**
+     * Removing the oldest request should only move the head and be visible after reopening
+     */
+    @Test
+    public void removeFirst() {
+        RequestQueueFileLog log = openLog();
+        log.append("a", false);
+        log.append("b", false);
+        log.append("c", false);
+
+        assertEquals("a", log.removeFirst());
+        assertEquals("b", log.peek());
+        assertEquals(2, log.size());
+        log.close();
+
+        log = openLog();
+        assertArrayEquals(new String[] { "b", "c" }, log.readAll());
+        assertEquals("b", log.removeFirst());
+        assertEquals("c", log.removeFirst());
+        assertNull(log.removeFirst());
+        assertTrue(log.isEmpty());
+        log.close();
+
+        log = openLog();
+        assertTrue(log.isEmpty());
+        log.close();
+    }
+
+    /**
+     * Removing a request from the middle of the queue and replacing the whole queue
+     */
+    @Test
+    public void removeAndReplace() {
+        RequestQueueFileLog log = openLog();
+        log.append("a", false);
+        log.append("b", false);
+        log.append("c", false);
+
+        assertTrue(log.remove("b"));
+        assertFalse(log.remove("x"));
+        assertArrayEquals(new String[] { "a", "c" }, log.readAll());
+
+        log.replaceAll(Arrays.asList("x", "y"));
+        log.append("z", false);
+        log.close();
+
+        log = openLog();
+        assertArrayEquals(new String[] { "x", "y", "z" }, log.readAll());
+
+        log.clear();
+        assertTrue(log.isEmpty());
+        log.close();
+
+        log = openLog();
+        assertTrue(log.isEmpty());
+        log.close();
+    }
+
+    /**
+     * Removing requests from the middle of the queue should only mark their records,
+     * the removed records are skipped when the log is opened again
+     */
+    @Test
+    public void removeFromMiddle() {
+        RequestQueueFileLog log = openLog();
+        log.append("a", false);
+        log.append("b", false);
+        log.append("c", false);
+        log.append("d", false);
+
+        assertTrue(log.remove("c"));
+        assertTrue(log.remove("b"));
+        assertEquals(0, log.generation);
+        assertEquals(2 * (RequestQueueFileLog.RECORD_HEADER_SIZE + 1), log.liveBytes());
+        log.close();
+
+        log = openLog();
+        assertArrayEquals(new String[] { "a", "d" }, log.readAll());
+        assertEquals(2 * (RequestQueueFileLog.RECORD_HEADER_SIZE + 1), log.liveBytes());
+        assertEquals("a", log.removeFirst());
+        log.close();
+
+        log = openLog();
+        assertArrayEquals(new String[] { "d" }, log.readAll());
+        log.close();
+    }
+
+    /**
+     * Mapping should change and remove requests in place and persist the result
+     */
+    @Test
+    public void mapAll() {
+        RequestQueueFileLog log = openLog();
+        log.append("a", false);
+        log.append("b", false);
+        log.append("c", false);
+
+        int changed = log.mapAll(new RequestQueueFileLog.RequestMapper() {
+            @Override public String map(String request) {
+                if (request.equals("a")) {
+                    return null;
+                } else if (request.equals("b")) {
+                    return "b2";
+                }
+                return request;
+            }
+        });
+
+        assertEquals(2, changed);
+        assertArrayEquals(new String[] { "b2", "c" }, log.readAll());
+        log.close();
+
+        log = openLog();
+        assertArrayEquals(new String[] { "b2", "c" }, log.readAll());
+        log.close();
+    }
+
+    /**
+     * If the log can't be rewritten, replacing and mapping should keep the current records,
+     * so that later removals still point to the records in the current segment
+     */
+    @Test
+    public void rewriteFailure() {
+        RequestQueueFileLog log = openLog();
+        log.append("a", false);
+        log.append("b", false);
+        log.append("c", false);
+
+        //the next segment can't be created while a directory has its name
+        File nextSegment = new File(logDirectory, "rq.1.seg");
+        assertTrue(nextSegment.mkdir());
+
+        assertFalse(log.replaceAll(Arrays.asList("x", "y")));
+        assertArrayEquals(new String[] { "a", "b", "c" }, log.readAll());
+
+        int changed = log.mapAll(new RequestQueueFileLog.RequestMapper() {
+            @Override public String map(String request) {
+                return request.equals("a") ? null : request;
+            }
+        });
+        assertEquals(0, changed);
+        assertArrayEquals(new String[] { "a", "b", "c" }, log.readAll());
+        assertEquals(0, log.generation);
+
+        assertEquals("a", log.removeFirst());
+        assertTrue(log.remove("c"));
+        log.close();
+        assertTrue(nextSegment.delete());
+
+        log = openLog();
+        assertArrayEquals(new String[] { "b" }, log.readAll());
+        assertTrue(log.replaceAll(Arrays.asList("x", "y")));
+        log.close();
+
+        log = openLog();
+        assertArrayEquals(new String[] { "x", "y" }, log.readAll());
+        log.close();
+    }
+
+    /**
+     * After enough requests are removed, the log should be compacted to a new segment
+     */
+    @Test
+    public void compaction() {
+        RequestQueueFileLog log = openLog();
+        char[] payload = new char[1000];
+        Arrays.fill(payload, 'a');
+        String request = new String(payload);
+
+        for (int a = 0; a < 100; a++) {
+            log.append(request + a, false);
+        }
+
+        for (int a = 0; a < 90; a++) {
+            log.removeFirst();
+        }
+
+        assertTrue(log.generation > 0);
+        assertEquals(request + 90, log.peek());
+        log.close();
+
+        log = openLog();
+        assertEquals(10, log.size());
+        assertEquals(request + 90, log.peek());
+        assertEquals(1, logDirectory.list().length - 1);//one segment and the head file
+        log.close();
+    }
+
+    /**
+     * A partially written trailing record should be dropped when the log is opened
+     */
+    @Test
+    public void partialRecordTruncated() throws Exception {
+        RequestQueueFileLog log = openLog();
+        log.append("a", false);
+        log.append("b", false);
+        long validLength = log.tailOffset;
+        log.close();
+
+        RandomAccessFile segment = new RandomAccessFile(new File(logDirectory, "rq.0.seg"), "rw");
+        segment.seek(validLength);
+        segment.writeInt(100);
+        segment.write(new byte[] { 1, 2, 3 });
+        segment.close();
+
+        log = openLog();
+        assertArrayEquals(new String[] { "a", "b" }, log.readAll());
+        log.append("c", false);
+        log.close();
+
+        log = openLog();
+        assertArrayEquals(new String[] { "a", "b", "c" }, log.readAll());
+        log.close();
+    }
+
+    /**
+     * A compact record that can't be decoded should be skipped without dropping the records after it
+     */
+    @Test
+    public void undecodableRecordSkipped() throws Exception {
+        RequestQueueFileLog log = openLog();
+        log.compactRecordsEnabled = true;
+        log.append("a=1", false);
+        log.append("b=2", false);
+        log.append("c=3", false);
+        long secondRecordOffset = log.records.toArray(new RequestQueueFileLog.Record[0])[1].offset;
+        log.close();
+
+        //an unknown format version
+        RandomAccessFile segment = new RandomAccessFile(new File(logDirectory, "rq.0.seg"), "rw");
+        segment.seek(secondRecordOffset + RequestQueueFileLog.RECORD_HEADER_SIZE);
+        segment.write(99);
+        segment.close();
+
+        log = openLog();
+        assertArrayEquals(new String[] { "a=1", "c=3" }, log.readAll());
+        log.append("d=4", false);
+        log.close();
+
+        log = openLog();
+        assertArrayEquals(new String[] { "a=1", "c=3", "d=4" }, log.readAll());
+        log.close();
+    }
+
+    /**
+     * CountlyStore should use the log and respect the request queue size limit
+     */
+    @Test
+    public void countlyStoreUsesLog() {
+        CountlyStore store = new CountlyStore(getContext(), mockLog, false, true);
+        store.setLimits(3);
+        store.addRequest("a", false);
+        store.addRequest("b", false);
+        store.addRequest("c", false);
+        store.addRequest("d", false);
+
+        assertArrayEquals(new String[] { "b", "c", "d" }, store.getRequests());
+        assertEquals("b:::c:::d", store.getRequestQueueRaw());
+
+        store.deleteOldestRequest();
+        store.removeRequest("d");
+        assertArrayEquals(new String[] { "c" }, store.getRequests());
+
+        SharedPreferences preferences = getContext().getSharedPreferences("COUNTLY_STORE", Context.MODE_PRIVATE);
+        assertNull(preferences.getString("CONNECTIONS", null));
+
+        store.clear();
+        assertEquals(0, store.getRequests().length);
+    }
+
+    /**
+     * Requests from the legacy preference value should be moved in front of the logged ones and back again
+     */
+    @Test
+    public void migrateRequestQueueStorage() {
+        CountlyStore legacyStore = new CountlyStore(getContext(), mockLog);
+        legacyStore.addRequest("a", false);
+        legacyStore.addRequest("b", false);
+
+        CountlyStore logStore = new CountlyStore(getContext(), mockLog, false, true);
+        logStore.addRequest("c", false);
+        assertEquals(2, logStore.migrateRequestQueueStorage());
+        assertArrayEquals(new String[] { "a", "b", "c" }, logStore.getRequests());
+        assertEquals(0, logStore.migrateRequestQueueStorage());
+        logStore.requestQueueLog.close();
+
+        legacyStore = new CountlyStore(getContext(), mockLog);
+        assertEquals(0, legacyStore.getRequests().length);
+        legacyStore.addRequest("d", false);
+        assertEquals(3, legacyStore.migrateRequestQueueStorage());
+        assertArrayEquals(new String[] { "a", "b", "c", "d" }, legacyStore.getRequests());
+        assertFalse(logDirectory.exists());
+        assertEquals(0, legacyStore.migrateRequestQueueStorage());
+    }
+
+    /**
+     * The file backed request queue should not be used in explicit storage mode
+     */
+    @Test
+    public void explicitModeIgnoresLog() {
+        CountlyStore store = new CountlyStore(getContext(), mockLog, true, true);
+        assertNull(store.requestQueueLog);
+    }
+}
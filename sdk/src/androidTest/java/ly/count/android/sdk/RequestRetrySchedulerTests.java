@@ -0,0 +1,88 @@
+package ly.count.android.sdk;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+@RunWith(AndroidJUnit4.class)
+public class RequestRetrySchedulerTests {
+    ModuleLog mockLog;
+
+    @Before
+    public void setUp() {
+        mockLog = mock(ModuleLog.class);
+    }
+
+    /**
+     * The delay should double with each failure, stay within the maximum and be reset after a success
+     */
+    @Test
+    public void exponentialBackoff() {
+        RequestRetryScheduler scheduler = new RequestRetryScheduler(1000, 10_000, mockLog, new Random(5));
+        assertTrue(scheduler.canAttempt(0));
+
+        long[] upperBounds = { 1000, 2000, 4000, 8000, 10_000, 10_000 };
+        long now = 100_000;
+        for (long upperBound : upperBounds) {
+            long delay = scheduler.onFailure(now, null);
+            assertTrue(delay >= upperBound / 2);
+            assertTrue(delay <= upperBound);
+            assertFalse(scheduler.canAttempt(now + delay - 1));
+            assertTrue(scheduler.canAttempt(now + delay));
+        }
+
+        scheduler.onSuccess();
+        assertEquals(0, scheduler.consecutiveFailures);
+        assertTrue(scheduler.canAttempt(now));
+
+        long delay = scheduler.onFailure(now, null);
+        assertTrue(delay >= 500 && delay <= 1000);
+
+        //a high amount of failures should not overflow
+        assertTrue(scheduler.backoffDelay(100) <= 10_000);
+        assertTrue(scheduler.backoffDelay(100) >= 5000);
+    }
+
+    /**
+     * A 'Retry-After' header should override the calculated delay, but not go over the maximum delay
+     */
+    @Test
+    public void retryAfterOverridesDelay() {
+        RequestRetryScheduler scheduler = new RequestRetryScheduler(1000, 300_000, mockLog);
+        assertEquals(120_000, scheduler.onFailure(0, "120"));
+        assertFalse(scheduler.canAttempt(119_999));
+        assertTrue(scheduler.canAttempt(120_000));
+
+        assertEquals(0, scheduler.onFailure(0, " 0 "));
+
+        long delay = scheduler.onFailure(0, "not a date");
+        assertTrue(delay >= 2000 && delay <= 4000);
+
+        assertEquals(300_000, scheduler.onFailure(0, "86400"));
+        assertEquals(300_000, scheduler.onFailure(1000, "9223372036854775807"));
+        assertFalse(scheduler.canAttempt(300_999));
+        assertTrue(scheduler.canAttempt(301_000));
+    }
+
+    @Test
+    public void parseRetryAfter() {
+        assertEquals(-1, RequestRetryScheduler.parseRetryAfter(null, 0));
+        assertEquals(-1, RequestRetryScheduler.parseRetryAfter("", 0));
+        assertEquals(-1, RequestRetryScheduler.parseRetryAfter("-5", 0));
+        assertEquals(-1, RequestRetryScheduler.parseRetryAfter("abc", 0));
+        assertEquals(30_000, RequestRetryScheduler.parseRetryAfter("30", 0));
+        assertEquals(Long.MAX_VALUE, RequestRetryScheduler.parseRetryAfter("9223372036854775807", 0));
+
+        //Wed, 21 Oct 2015 07:28:00 GMT
+        long dateMs = 1_445_412_480_000L;
+        assertEquals(60_000, RequestRetryScheduler.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT", dateMs - 60_000));
+        assertEquals(0, RequestRetryScheduler.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT", dateMs + 60_000));
+    }
+}
@@ -0,0 +1,73 @@
+package ly.count.android.sdk;
+
+import android.os.Bundle;
+import android.util.Base64;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.security.SecureRandom;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Microbenchmark comparing the ID generator with creating a new SecureRandom and using the platform encoder for every ID.
+ *
+ * It is skipped in the normal test run, since the timings depend on the device. To run it:
+ * ./gradlew sdk:connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=ly.count.android.sdk.SecureIDGeneratorBenchmark
+ * -Pandroid.testInstrumentationRunnerArguments.benchmark=true
+ *
+ * The results are reported as instrumentation status values in IDs per second, nothing is asserted.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SecureIDGeneratorBenchmark {
+    static final int WARMUP_ITERATIONS = 2000;
+    static final int MEASURED_ITERATIONS = 2000;
+    static final int MEASURED_ROUNDS = 5;
+
+    //keeps the generated values alive, so that generating them can't be optimized away
+    int sink = 0;
+
+    @Before
+    public void setUp() {
+        assumeTrue("true".equals(InstrumentationRegistry.getArguments().getString("benchmark")));
+    }
+
+    @Test
+    public void throughput() {
+        SafeIDGenerator perCallSecureRandom = new SafeIDGenerator() {
+            @Override public String GenerateValue() {
+                byte[] value = new byte[SecureIDGenerator.RANDOM_BYTES_PER_ID];
+                new SecureRandom().nextBytes(value);
+                return Base64.encodeToString(value, Base64.NO_WRAP) + System.currentTimeMillis();
+            }
+        };
+
+        Bundle results = new Bundle();
+        results.putLong("per_call_secure_random_ids_per_second", Math.round(measureIdsPerSecond(perCallSecureRandom)));
+        results.putLong("secure_id_generator_ids_per_second", Math.round(measureIdsPerSecond(new SecureIDGenerator())));
+        results.putInt("sink", sink);
+        InstrumentationRegistry.getInstrumentation().sendStatus(2, results);
+    }
+
+    /**
+     * Returns the best rate of the measured rounds, after warming up the generator
+     */
+    double measureIdsPerSecond(SafeIDGenerator generator) {
+        for (int a = 0; a < WARMUP_ITERATIONS; a++) {
+            sink += generator.GenerateValue().hashCode();
+        }
+
+        double best = 0;
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int a = 0; a < MEASURED_ITERATIONS; a++) {
+                sink += generator.GenerateValue().hashCode();
+            }
+            long duration = Math.max(1, System.nanoTime() - start);
+            best = Math.max(best, MEASURED_ITERATIONS * 1_000_000_000.0 / duration);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,65 @@
+package ly.count.android.sdk;
+
+import android.util.Base64;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class SecureIDGeneratorTests {
+    static final String ID_REGEX = "^[A-Za-z0-9+/]{8}[0-9]{13}$";
+
+    /**
+     * The encoding should match the platform base64 encoder
+     */
+    @Test
+    public void encodeBase64() {
+        Random random = new Random(7);
+        byte[] bytes = new byte[SecureIDGenerator.RANDOM_BYTES_PER_ID];
+        char[] chars = new char[8];
+
+        for (int a = 0; a < 1000; a++) {
+            random.nextBytes(bytes);
+            SecureIDGenerator.encodeBase64(bytes, 0, bytes.length, chars);
+            assertEquals(Base64.encodeToString(bytes, Base64.NO_WRAP), new String(chars));
+        }
+    }
+
+    /**
+     * The IDs should keep the format of the previous generator and not repeat, also across threads and buffer refills
+     */
+    @Test
+    public void formatAndUniqueness() throws InterruptedException {
+        final SecureIDGenerator generator = new SecureIDGenerator();
+        final Set<String> ids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final int idsPerThread = SecureIDGenerator.IDS_PER_REFILL * 10;
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override public void run() {
+                    for (int a = 0; a < idsPerThread; a++) {
+                        ids.add(generator.GenerateValue());
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threads.length * idsPerThread, ids.size());
+        for (String id : ids) {
+            assertTrue(id, id.matches(ID_REGEX));
+        }
+        assertTrue(Utils.safeRandomVal().matches(ID_REGEX));
+    }
+}
@@ -1,6 +1,10 @@
 package ly.count.android.sdk;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -66,4 +70,56 @@ public class UtilsNetworkingTest {
             Assert.assertEquals(UtilsNetworking.sha256Hash(list_a[a]), list_b[a]);
         }
     }
+
+    /**
+     * Compressed data should decompress to the original bytes and repetitive data should get smaller
+     */
+    @Test
+    public void testGzipCompress() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int a = 0; a < 200; a++) {
+            sb.append("app_key=abc&events=%5B%7B%22key%22%3A%22ev").append(a).append("%22%7D%5D&");
+        }
+        byte[] original = sb.toString().getBytes("UTF-8");
+        byte[] compressed = UtilsNetworking.gzipCompress(original);
+        Assert.assertTrue(compressed.length < original.length / 4);
+
+        GZIPInputStream gzipStream = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int len;
+        while ((len = gzipStream.read(buffer)) != -1) {
+            decompressed.write(buffer, 0, len);
+        }
+        gzipStream.close();
+        Assert.assertArrayEquals(original, decompressed.toByteArray());
+    }
+
+    /**
+     * Encoding into a buffer should give the same result as 'urlEncodeString'
+     */
+    @Test
+    public void testAppendUrlEncoded() {
+        String[] list = new String[] { "", "abcXYZ019.-*_", "a b+c", "&#(%^$(&#^@$%$&!_)@(_$", "āšēŗŗ 日本 \uD83D\uDE00", "lone\uD83Dsurrogate\uDE00", "~'()!\n\t" };
+
+        for (String item : list) {
+            StringBuilder sb = new StringBuilder("x=");
+            UtilsNetworking.appendUrlEncoded(sb, item);
+            Assert.assertEquals("x=" + UtilsNetworking.urlEncodeString(item), sb.toString());
+        }
+    }
+
+    @Test
+    public void testRequestBuilder() {
+        String request = RequestBuilder.obtain()
+            .add("a", "1")
+            .add("b", 2L)
+            .addEncoded("c", "d e&f")
+            .append("&g=h")
+            .build();
+        Assert.assertEquals("a=1&b=2&c=d+e%26f&g=h", request);
+
+        //the pooled builder should start out empty
+        Assert.assertEquals("x=1", RequestBuilder.obtain().add("x", 1).build());
+    }
 }
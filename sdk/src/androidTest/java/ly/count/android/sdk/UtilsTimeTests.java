@@ -2,6 +2,9 @@ package ly.count.android.sdk;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Assert;
@@ -58,4 +61,81 @@ public class UtilsTimeTests {
 
         Assert.assertTrue(tms2 - tms < 260);
     }
+
+    /**
+     * Repeated clock values should be moved forward, a clock change backwards should be followed
+     */
+    @Test
+    public void monotonicClock() {
+        final long[] now = { 1000 };
+        UtilsTime.MonotonicClock clock = new UtilsTime.MonotonicClock() {
+            @Override long currentTimeMillis() {
+                return now[0];
+            }
+        };
+
+        Assert.assertEquals(1000, clock.uniqueTimestamp());
+        Assert.assertEquals(1001, clock.uniqueTimestamp());
+        Assert.assertEquals(1002, clock.uniqueTimestamp());
+
+        now[0] = 1005;
+        Assert.assertEquals(1005, clock.uniqueTimestamp());
+
+        //a small step back is treated like a repeated value
+        now[0] = 999;
+        Assert.assertEquals(1006, clock.uniqueTimestamp());
+
+        //the clock was changed
+        now[0] = 500;
+        Assert.assertEquals(500, clock.uniqueTimestamp());
+        Assert.assertEquals(501, clock.uniqueTimestamp());
+    }
+
+    /**
+     * Timestamps from multiple threads should never repeat
+     */
+    @Test
+    public void monotonicClockConcurrent() throws InterruptedException {
+        final UtilsTime.MonotonicClock clock = new UtilsTime.MonotonicClock();
+        final Set<Long> timestamps = Collections.synchronizedSet(new HashSet<Long>());
+        final int perThread = 5000;
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override public void run() {
+                    for (int a = 0; a < perThread; a++) {
+                        timestamps.add(clock.uniqueTimestamp());
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(threads.length * perThread, timestamps.size());
+    }
+
+    /**
+     * The cached hour window should give the same hour and day of week as a Calendar
+     */
+    @Test
+    public void instantHourWindow() {
+        long start = 1579463653876L;
+        for (long ts = start; ts < start + TimeUnit.DAYS.toMillis(2); ts += TimeUnit.MINUTES.toMillis(7)) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(ts);
+            UtilsTime.Instant instant = UtilsTime.Instant.get(ts);
+            Assert.assertEquals(calendar.get(Calendar.HOUR_OF_DAY), instant.hour);
+            Assert.assertEquals(calendar.get(Calendar.DAY_OF_WEEK) - 1, instant.dow);
+        }
+
+        UtilsTime.HourWindow window = UtilsTime.HourWindow.of(start);
+        Assert.assertTrue(window.contains(start));
+        Assert.assertFalse(window.contains(window.endMs));
+        Assert.assertTrue(window.endMs - window.startMs <= TimeUnit.HOURS.toMillis(1));
+        Assert.assertEquals(window.hour, UtilsTime.Instant.get(window.startMs).hour);
+    }
 }
@@ -0,0 +1,629 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of stored events and requests.
+ *
+ * Lengths, string references and other unsigned values are written as varints (7 bits per byte, lowest bits first),
+ * signed values are zigzag encoded before that. Doubles are written as 8 bytes.
+ *
+ * Events are written as records that reference their strings through a string table shared by all records of a file.
+ * Each record first lists the strings it adds to the table and then the event fields. This way event keys,
+ * segmentation keys and view IDs are stored only once and the ID of the previous event is just a reference.
+ * NaN and infinite values can't be sent as JSON, they are not stored.
+ *
+ * Requests are encoded one by one. Parameter names that the SDK uses are written as an index into a fixed dictionary.
+ * URL-encoded values are stored in decoded form and numbers as varints, as long as encoding them again gives back
+ * the exact same text. Every other value is stored as it is.
+ */
+class BinaryRecordFormat {
+    static final byte FORMAT_VERSION = 1;
+
+    //written at the start of a stored event queue, the last byte is the format version
+    static final byte[] EVENT_QUEUE_HEADER = { 'C', 'L', 'Y', 'E', FORMAT_VERSION };
+
+    static final int EVENT_FLAG_SUM = 1;
+    static final int EVENT_FLAG_DUR = 1 << 1;
+    //the JSON representation ends after the segmentation, the sum is read back as NaN to keep it that way
+    static final int EVENT_FLAG_ENDS_EARLY = 1 << 2;
+
+    static final int VALUE_NONE = 0;
+    static final int VALUE_STRING = 1;
+    static final int VALUE_URL_DECODED = 2;
+    static final int VALUE_NUMBER = 3;
+
+    //parameter names are only ever added to the end, the index is part of the format
+    static final String[] REQUEST_PARAMETER_NAMES = {
+        "app_key", "timestamp", "hour", "dow", "tz", "sdk_version", "sdk_name", "device_id", "events",
+        "begin_session", "session_duration", "end_session", "metrics", "consent", "user_details", "crash",
+        "location", "city", "country_code", "ip", "old_device_id", "override_id", "method", "apm", "rr",
+        "av", "t", "token_session", "android_token", "token_provider", "test_mode", "locale", "aid",
+        "campaign_id", "campaign_user", "attribution_data", "hc", "app_version", "widget_id", "shown", "platform",
+        "checksum256", "key", "keys", "omit_keys", "count", "variant", "oi"
+    };
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static final HashMap<String, Integer> requestParameterCodes = new HashMap<>();
+
+    static {
+        for (int a = 0; a < REQUEST_PARAMETER_NAMES.length; a++) {
+            requestParameterCodes.put(REQUEST_PARAMETER_NAMES[a], a + 1);
+        }
+    }
+
+    private BinaryRecordFormat() {
+    }
+
+    /**
+     * Growable byte buffer with the primitive writes of this format
+     */
+    static final class Output {
+        byte[] bytes;
+        int size = 0;
+
+        Output(int capacity) {
+            bytes = new byte[Math.max(16, capacity)];
+        }
+
+        private void ensureCapacity(int additional) {
+            if (size + additional > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + additional));
+            }
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            bytes[size++] = (byte) value;
+        }
+
+        void writeBytes(@NonNull byte[] source, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(source, offset, bytes, size, length);
+            size += length;
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeSignedVarint(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeDouble(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (bits >>> shift);
+            }
+        }
+
+        void writeString(@NonNull String value) {
+            byte[] encoded = value.getBytes(UTF8);
+            writeVarint(encoded.length);
+            writeBytes(encoded, 0, encoded.length);
+        }
+
+        @NonNull byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * Reads the primitives of this format from a byte range, an IOException is thrown if the range ends too early
+     */
+    static final class Input {
+        final byte[] bytes;
+        int position;
+        final int limit;
+
+        Input(@NonNull byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            position = offset;
+            limit = offset + length;
+        }
+
+        boolean hasRemaining() {
+            return position < limit;
+        }
+
+        int readByte() throws IOException {
+            if (position >= limit) {
+                throw new IOException("Unexpected end of record");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        int readLength() throws IOException {
+            long length = readVarint();
+            if (length < 0 || length > limit - position) {
+                throw new IOException("Invalid length [" + length + "]");
+            }
+            return (int) length;
+        }
+
+        long readSignedVarint() throws IOException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        double readDouble() throws IOException {
+            long bits = 0;
+            for (int a = 0; a < 8; a++) {
+                bits = (bits << 8) | readByte();
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        @NonNull String readString() throws IOException {
+            int length = readLength();
+            String result = new String(bytes, position, length, UTF8);
+            position += length;
+            return result;
+        }
+    }
+
+    /**
+     * Strings that are referenced by event records. Reference '0' stands for 'null', reference 'n' for the string at index 'n - 1'.
+     */
+    static final class StringTable {
+        final ArrayList<String> strings = new ArrayList<>();
+        final HashMap<String, Integer> references = new HashMap<>();
+
+        int size() {
+            return strings.size();
+        }
+
+        void add(@NonNull String value) {
+            strings.add(value);
+            references.put(value, strings.size());
+        }
+
+        void addIfMissing(@Nullable String value) {
+            if (value != null && !references.containsKey(value)) {
+                add(value);
+            }
+        }
+
+        int reference(@Nullable String value) {
+            return value == null ? 0 : references.get(value);
+        }
+
+        @Nullable String get(long reference) throws IOException {
+            if (reference == 0) {
+                return null;
+            }
+            if (reference < 0 || reference > strings.size()) {
+                throw new IOException("Invalid string reference [" + reference + "]");
+            }
+            return strings.get((int) reference - 1);
+        }
+
+        void clear() {
+            strings.clear();
+            references.clear();
+        }
+    }
+
+    /**
+     * Writes an event record, strings that are not in the table yet are added to it
+     */
+    static void writeEvent(@NonNull Event event, @NonNull StringTable table, @NonNull Output out) {
+        //the event ends at the same value as its JSON representation
+        boolean writableSegmentation = EventJsonWriter.hasWritableSegmentation(event);
+        EventSegmentation segmentation = writableSegmentation ? segmentationOf(event) : null;
+        int segmentationEntries = segmentation == null ? 0 : segmentation.size;
+
+        int firstNewString = table.size();
+        table.addIfMissing(event.key);
+        table.addIfMissing(event.id);
+        table.addIfMissing(event.pvid);
+        table.addIfMissing(event.cvid);
+        table.addIfMissing(event.peid);
+        if (segmentation != null) {
+            for (int a = 0; a < segmentation.size; a++) {
+                table.addIfMissing(segmentation.keys[a]);
+                if (segmentation.types[a] == EventSegmentation.TYPE_STRING) {
+                    table.addIfMissing(segmentation.stringValues[a]);
+                }
+            }
+        }
+
+        out.writeVarint(table.size() - firstNewString);
+        for (int a = firstNewString; a < table.size(); a++) {
+            out.writeString(table.strings.get(a));
+        }
+
+        //the same values are dropped as in the JSON representation
+        boolean endsEarly = !writableSegmentation || !EventJsonWriter.isFinite(event.sum);
+        boolean hasSum = !endsEarly && event.sum != 0;
+        boolean hasDur = !endsEarly && event.dur > 0 && EventJsonWriter.isFinite(event.dur);
+        out.writeVarint((hasSum ? EVENT_FLAG_SUM : 0) | (hasDur ? EVENT_FLAG_DUR : 0) | (endsEarly ? EVENT_FLAG_ENDS_EARLY : 0));
+
+        out.writeVarint(table.reference(event.key));
+        out.writeSignedVarint(event.count);
+        if (hasSum) {
+            out.writeDouble(event.sum);
+        }
+        if (hasDur) {
+            out.writeDouble(event.dur);
+        }
+        out.writeSignedVarint(event.timestamp);
+        out.writeSignedVarint(event.hour);
+        out.writeSignedVarint(event.dow);
+        out.writeVarint(table.reference(event.id));
+        out.writeVarint(table.reference(event.pvid));
+        out.writeVarint(table.reference(event.cvid));
+        out.writeVarint(table.reference(event.peid));
+
+        out.writeVarint(segmentationEntries);
+        for (int a = 0; a < segmentationEntries; a++) {
+            out.writeVarint(table.reference(segmentation.keys[a]));
+            byte type = segmentation.types[a];
+            out.writeByte(type);
+            switch (type) {
+                case EventSegmentation.TYPE_INT:
+                    out.writeSignedVarint(segmentation.intValues[a]);
+                    break;
+                case EventSegmentation.TYPE_DOUBLE:
+                    out.writeDouble(segmentation.doubleValues[a]);
+                    break;
+                case EventSegmentation.TYPE_BOOLEAN:
+                    out.writeByte(segmentation.booleanValues[a] ? 1 : 0);
+                    break;
+                default:
+                    out.writeVarint(table.reference(segmentation.stringValues[a]));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns the segmentation of the event in compact form, the separate segmentation maps are combined if needed
+     */
+    private static @Nullable EventSegmentation segmentationOf(@NonNull Event event) {
+        if (event.compactSegmentation != null) {
+            return event.compactSegmentation;
+        }
+
+        Map<String, Object> combined = new LinkedHashMap<>();
+        if (event.segmentation != null) {
+            combined.putAll(event.segmentation);
+        }
+        if (event.segmentationInt != null) {
+            combined.putAll(event.segmentationInt);
+        }
+        if (event.segmentationDouble != null) {
+            combined.putAll(event.segmentationDouble);
+        }
+        if (event.segmentationBoolean != null) {
+            combined.putAll(event.segmentationBoolean);
+        }
+        return EventSegmentation.from(combined);
+    }
+
+    /**
+     * Reads an event record, the strings it adds are added to the table.
+     * The segmentation is returned in the same maps as 'Event.fromJSON' creates.
+     *
+     * @param stringsKnown 'true' if the table already contains the strings of the record, they are then skipped
+     */
+    static @NonNull Event readEvent(@NonNull Input in, @NonNull StringTable table, boolean stringsKnown) throws IOException {
+        long newStrings = in.readVarint();
+        for (long a = 0; a < newStrings; a++) {
+            if (stringsKnown) {
+                int length = in.readLength();
+                in.position += length;
+            } else {
+                table.add(in.readString());
+            }
+        }
+
+        Event event = new Event();
+        long flags = in.readVarint();
+        event.key = table.get(in.readVarint());
+        event.count = (int) in.readSignedVarint();
+        if ((flags & EVENT_FLAG_SUM) != 0) {
+            event.sum = in.readDouble();
+        }
+        if ((flags & EVENT_FLAG_DUR) != 0) {
+            event.dur = in.readDouble();
+        }
+        if ((flags & EVENT_FLAG_ENDS_EARLY) != 0) {
+            event.sum = Double.NaN;
+        }
+        event.timestamp = in.readSignedVarint();
+        event.hour = (int) in.readSignedVarint();
+        event.dow = (int) in.readSignedVarint();
+        event.id = table.get(in.readVarint());
+        event.pvid = table.get(in.readVarint());
+        event.cvid = table.get(in.readVarint());
+        event.peid = table.get(in.readVarint());
+
+        long segmentationEntries = in.readVarint();
+        for (long a = 0; a < segmentationEntries; a++) {
+            String key = table.get(in.readVarint());
+            if (key == null) {
+                throw new IOException("Missing segmentation key");
+            }
+
+            int type = in.readByte();
+            switch (type) {
+                case EventSegmentation.TYPE_INT:
+                    if (event.segmentationInt == null) {
+                        event.segmentationInt = new HashMap<>();
+                    }
+                    event.segmentationInt.put(key, (int) in.readSignedVarint());
+                    break;
+                case EventSegmentation.TYPE_DOUBLE:
+                    if (event.segmentationDouble == null) {
+                        event.segmentationDouble = new HashMap<>();
+                    }
+                    event.segmentationDouble.put(key, in.readDouble());
+                    break;
+                case EventSegmentation.TYPE_BOOLEAN:
+                    if (event.segmentationBoolean == null) {
+                        event.segmentationBoolean = new HashMap<>();
+                    }
+                    event.segmentationBoolean.put(key, in.readByte() != 0);
+                    break;
+                case EventSegmentation.TYPE_STRING:
+                    String value = table.get(in.readVarint());
+                    if (value == null) {
+                        throw new IOException("Missing segmentation value");
+                    }
+                    if (event.segmentation == null) {
+                        event.segmentation = new HashMap<>();
+                    }
+                    event.segmentation.put(key, value);
+                    break;
+                default:
+                    throw new IOException("Unknown segmentation value type [" + type + "]");
+            }
+        }
+
+        return event;
+    }
+
+    /**
+     * Encodes a request. The result starts with the format version.
+     */
+    static @NonNull byte[] encodeRequest(@NonNull String request) {
+        Output out = new Output(request.length());
+        out.writeByte(FORMAT_VERSION);
+
+        int parts = 1;
+        for (int a = 0; a < request.length(); a++) {
+            if (request.charAt(a) == '&') {
+                parts++;
+            }
+        }
+        out.writeVarint(parts);
+
+        int start = 0;
+        while (start <= request.length()) {
+            int end = request.indexOf('&', start);
+            if (end < 0) {
+                end = request.length();
+            }
+            writeRequestParameter(request, start, end, out);
+            start = end + 1;
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a single 'name=value' part of a request.
+     * The header holds the dictionary code of the name ('0' if the name follows as a string) and the kind of the value.
+     */
+    private static void writeRequestParameter(@NonNull String request, int start, int end, @NonNull Output out) {
+        int separator = request.indexOf('=', start);
+        if (separator < 0 || separator > end) {
+            separator = end;
+        }
+
+        String name = request.substring(start, separator);
+        Integer code = requestParameterCodes.get(name);
+        int nameCode = code == null ? 0 : code;
+
+        if (separator == end) {
+            out.writeVarint((long) nameCode << 2 | VALUE_NONE);
+            if (nameCode == 0) {
+                out.writeString(name);
+            }
+            return;
+        }
+
+        String value = request.substring(separator + 1, end);
+        int valueKind;
+        byte[] decoded = null;
+        long number = 0;
+
+        if (isCanonicalNumber(value)) {
+            valueKind = VALUE_NUMBER;
+            number = Long.parseLong(value);
+        } else {
+            decoded = urlDecodeIfCanonical(value);
+            valueKind = decoded != null ? VALUE_URL_DECODED : VALUE_STRING;
+        }
+
+        out.writeVarint((long) nameCode << 2 | valueKind);
+        if (nameCode == 0) {
+            out.writeString(name);
+        }
+
+        if (valueKind == VALUE_NUMBER) {
+            out.writeSignedVarint(number);
+        } else if (valueKind == VALUE_URL_DECODED) {
+            out.writeVarint(decoded.length);
+            out.writeBytes(decoded, 0, decoded.length);
+        } else {
+            out.writeString(value);
+        }
+    }
+
+    /**
+     * Returns 'true' if the value is the exact text that 'Long.toString' gives for it
+     */
+    static boolean isCanonicalNumber(@NonNull String value) {
+        int length = value.length();
+        int firstDigit = length > 0 && value.charAt(0) == '-' ? 1 : 0;
+        if (length == firstDigit || length - firstDigit > 18) {
+            //longer values might not fit in a long
+            return false;
+        }
+        if (value.charAt(firstDigit) == '0' && (length > firstDigit + 1 || firstDigit == 1)) {
+            //leading zeros and '-0'
+            return false;
+        }
+        for (int a = firstDigit; a < length; a++) {
+            char c = value.charAt(a);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isUnreservedUrlByte(int b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '.' || b == '-' || b == '*' || b == '_';
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        //lowercase hex digits are not produced by the URL encoder, such values are stored as they are
+        return -1;
+    }
+
+    /**
+     * Decodes a URL-encoded value into its bytes.
+     *
+     * @return 'null' if the value is not exactly what 'URLEncoder' would produce for the decoded bytes
+     */
+    static @Nullable byte[] urlDecodeIfCanonical(@NonNull String value) {
+        Output out = new Output(value.length());
+        for (int a = 0, length = value.length(); a < length; a++) {
+            char c = value.charAt(a);
+            if (c == '+') {
+                out.writeByte(' ');
+            } else if (c == '%') {
+                if (a + 2 >= length) {
+                    return null;
+                }
+                int high = hexValue(value.charAt(a + 1));
+                int low = hexValue(value.charAt(a + 2));
+                int b = high << 4 | low;
+                if (high < 0 || low < 0 || b == ' ' || isUnreservedUrlByte(b)) {
+                    return null;
+                }
+                out.writeByte(b);
+                a += 2;
+            } else if (isUnreservedUrlByte(c)) {
+                out.writeByte(c);
+            } else {
+                return null;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void urlEncode(@NonNull byte[] bytes, int offset, int length, @NonNull StringBuilder target) {
+        for (int a = offset; a < offset + length; a++) {
+            int b = bytes[a] & 0xFF;
+            if (isUnreservedUrlByte(b)) {
+                target.append((char) b);
+            } else if (b == ' ') {
+                target.append('+');
+            } else {
+                target.append('%').append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xF]);
+            }
+        }
+    }
+
+    /**
+     * Decodes a request that was encoded with 'encodeRequest'
+     */
+    static @NonNull String decodeRequest(@NonNull byte[] bytes, int offset, int length) throws IOException {
+        Input in = new Input(bytes, offset, length);
+        int version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported request format version [" + version + "]");
+        }
+
+        long parts = in.readVarint();
+        StringBuilder sb = new StringBuilder(length * 2);
+        for (long a = 0; a < parts; a++) {
+            if (a > 0) {
+                sb.append('&');
+            }
+
+            long header = in.readVarint();
+            long nameCode = header >>> 2;
+            int valueKind = (int) (header & 3);
+
+            if (nameCode == 0) {
+                sb.append(in.readString());
+            } else if (nameCode <= REQUEST_PARAMETER_NAMES.length) {
+                sb.append(REQUEST_PARAMETER_NAMES[(int) nameCode - 1]);
+            } else {
+                throw new IOException("Unknown request parameter code [" + nameCode + "]");
+            }
+
+            switch (valueKind) {
+                case VALUE_STRING:
+                    sb.append('=').append(in.readString());
+                    break;
+                case VALUE_URL_DECODED:
+                    int decodedLength = in.readLength();
+                    sb.append('=');
+                    urlEncode(in.bytes, in.position, decodedLength, sb);
+                    in.position += decodedLength;
+                    break;
+                case VALUE_NUMBER:
+                    sb.append('=').append(in.readSignedVarint());
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (in.hasRemaining()) {
+            throw new IOException("Unexpected data after the request");
+        }
+        return sb.toString();
+    }
+}
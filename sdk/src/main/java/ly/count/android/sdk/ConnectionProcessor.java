@@ -21,7 +21,6 @@ THE SOFTWARE.
 */
 package ly.count.android.sdk;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -35,6 +34,8 @@ import java.net.URLConnection;
 import java.util.Map;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -63,8 +64,28 @@ public class ConnectionProcessor implements Runnable {
 
     protected static String salt;
 
+    //if more than 1, up to this amount of stored requests are sent together to the bulk endpoint
+    int maxRequestsPerBulk = 0;
+
+    //POST bodies of at least this many bytes are gzip compressed, a negative value disables compression
+    int requestCompressionThreshold = -1;
+
+    //if set, failed submissions are reported to it so that the next attempt can be delayed
+    RequestRetryScheduler retryScheduler = null;
+
+    EventBatchingPolicy eventBatchingPolicy = null;
+
+    HttpTransport httpTransport = new DefaultHttpTransport();
+
+    int connectTimeoutMs = CONNECT_TIMEOUT_IN_MILLISECONDS;
+    int readTimeoutMs = READ_TIMEOUT_IN_MILLISECONDS;
+
     ModuleLog L;
 
+    //connections are only pooled for the same socket factory, so it is created once per context
+    private static SSLContext socketFactoryContext = null;
+    private static SSLSocketFactory socketFactory = null;
+
     private enum RequestResult {
         OK,         // success
         RETRY       // retry MAX_RETRIES_BEFORE_SLEEP before switching to SLEEP
@@ -85,12 +106,16 @@ public class ConnectionProcessor implements Runnable {
     }
 
     synchronized public URLConnection urlConnectionForServerRequest(String requestData, final String customEndpoint) throws IOException {
+        return urlConnectionForServerRequest(requestData, customEndpoint, false);
+    }
+
+    synchronized URLConnection urlConnectionForServerRequest(String requestData, final String customEndpoint, final boolean forcePost) throws IOException {
         String urlEndpoint = "/i";
         if (customEndpoint != null) {
             urlEndpoint = customEndpoint;
         }
 
-        boolean usingHttpPost = (requestData.contains("&crash=") || requestData.length() >= 2048 || requestInfoProvider_.isHttpPostForced());
+        boolean usingHttpPost = (forcePost || requestData.contains("&crash=") || requestData.length() >= 2048 || requestInfoProvider_.isHttpPostForced());
 
         long approximateDateSize = 0L;
         String urlStr = serverURL_ + urlEndpoint;
@@ -108,16 +133,12 @@ public class ConnectionProcessor implements Runnable {
         approximateDateSize += urlStr.length();
 
         final URL url = new URL(urlStr);
-        final HttpURLConnection conn;
-        if (Countly.publicKeyPinCertificates == null && Countly.certificatePinCertificates == null) {
-            conn = (HttpURLConnection) url.openConnection();
-        } else {
-            HttpsURLConnection c = (HttpsURLConnection) url.openConnection();
-            c.setSSLSocketFactory(sslContext_.getSocketFactory());
-            conn = c;
+        final HttpURLConnection conn = httpTransport.openConnection(url);
+        if (Countly.publicKeyPinCertificates != null || Countly.certificatePinCertificates != null) {
+            ((HttpsURLConnection) conn).setSSLSocketFactory(getSocketFactory(sslContext_));
         }
-        conn.setConnectTimeout(CONNECT_TIMEOUT_IN_MILLISECONDS);
-        conn.setReadTimeout(READ_TIMEOUT_IN_MILLISECONDS);
+        conn.setConnectTimeout(connectTimeoutMs);
+        conn.setReadTimeout(readTimeoutMs);
         conn.setUseCaches(false);
         conn.setDoInput(true);
         conn.setRequestMethod("GET");
@@ -178,11 +199,21 @@ public class ConnectionProcessor implements Runnable {
             if (usingHttpPost) {
                 conn.setDoOutput(true);
                 conn.setRequestMethod("POST");
+                //the checksum was calculated from the uncompressed data
+                byte[] body = requestData.getBytes("UTF-8");
+                if (requestCompressionThreshold >= 0 && body.length >= requestCompressionThreshold) {
+                    byte[] compressedBody = UtilsNetworking.gzipCompress(body);
+                    if (compressedBody.length < body.length) {
+                        L.v("[Connection Processor] Compressed request body from [" + body.length + " B] to [" + compressedBody.length + " B]");
+                        conn.setRequestProperty("Content-Encoding", "gzip");
+                        approximateDateSize -= body.length - compressedBody.length;
+                        healthTracker.logCompressedRequest(body.length, compressedBody.length);
+                        body = compressedBody;
+                    }
+                }
                 OutputStream os = conn.getOutputStream();
-                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
-                writer.write(requestData);
-                writer.flush();
-                writer.close();
+                os.write(body);
+                os.flush();
                 os.close();
             } else {
                 L.v("[Connection Processor] Using HTTP GET");
@@ -214,8 +245,9 @@ public class ConnectionProcessor implements Runnable {
                 break;
             }
 
-            final String[] storedRequests = storageProvider_.getRequests();
-            int storedRequestCount = storedRequests == null ? 0 : storedRequests.length;
+            //only the oldest request is needed, the rest of the queue is not copied
+            final String storedRequest = storageProvider_.peekRequest();
+            int storedRequestCount = storedRequest == null ? 0 : storageProvider_.getRequestQueueSize();
 
             if (L.logEnabled()) {
                 String msg = "[Connection Processor] Starting to run, there are [" + storedRequestCount + "] requests stored";
@@ -226,7 +258,7 @@ public class ConnectionProcessor implements Runnable {
                 }
             }
 
-            if (storedRequests == null || storedRequestCount == 0) {
+            if (storedRequest == null || storedRequestCount == 0) {
                 // currently no data to send, we are done for now
                 break;
             }
@@ -235,14 +267,13 @@ public class ConnectionProcessor implements Runnable {
             if (deviceIdProvider_.getDeviceId() == null) {
                 // When device ID is supplied by OpenUDID or by Google Advertising ID.
                 // In some cases it might take time for them to initialize. So, just wait for it.
-                L.i("[Connection Processor] No Device ID available yet, skipping request " + storedRequests[0]);
+                L.i("[Connection Processor] No Device ID available yet, skipping request " + storedRequest);
                 break;
             }
 
-            String temporaryIdOverrideTag = "&override_id=" + DeviceId.temporaryCountlyDeviceId;
-            String temporaryIdTag = "&device_id=" + DeviceId.temporaryCountlyDeviceId;
-            boolean containsTemporaryIdOverride = storedRequests[0].contains(temporaryIdOverrideTag);
-            boolean containsTemporaryId = storedRequests[0].contains(temporaryIdTag);
+            final RequestMetadata metadata = RequestMetadata.of(storageProvider_, storedRequest);
+            boolean containsTemporaryIdOverride = metadata.has(RequestMetadata.FLAG_TEMPORARY_OVERRIDE_ID);
+            boolean containsTemporaryId = metadata.has(RequestMetadata.FLAG_TEMPORARY_DEVICE_ID);
             if (containsTemporaryIdOverride || containsTemporaryId || deviceIdProvider_.isTemporaryIdEnabled()) {
                 //we are about to change ID to the temporary one or
                 //the internally set id is the temporary one
@@ -252,11 +283,22 @@ public class ConnectionProcessor implements Runnable {
                 break;
             }
 
-            boolean deviceIdOverride = storedRequests[0].contains("&override_id="); //if the sendable data contains a override tag
-            boolean deviceIdChange = storedRequests[0].contains("&device_id="); //if the sendable data contains a device_id tag. In this case it means that we will have to change the stored device ID
+            if (maxRequestsPerBulk > 1 && storedRequestCount > 1) {
+                int sentCount = sendBulk(storedRequestCount, storedRequest);
+                if (sentCount < 0) {
+                    // let next tick take care of retrying
+                    break;
+                } else if (sentCount > 0) {
+                    continue;
+                }
+                //the oldest request can't be sent in bulk, continue with the single request
+            }
+
+            boolean deviceIdOverride = metadata.has(RequestMetadata.FLAG_OVERRIDE_ID); //if the sendable data contains a override tag
+            boolean deviceIdChange = metadata.has(RequestMetadata.FLAG_DEVICE_ID); //if the sendable data contains a device_id tag. In this case it means that we will have to change the stored device ID
 
             //add the device_id to the created request
-            String eventData;//todo rework to stringbuilder
+            final RequestBuilder eventDataBuilder = RequestBuilder.obtain(storedRequest.length() + 64);
             final String newId;
 
             if (deviceIdOverride) {
@@ -265,44 +307,45 @@ public class ConnectionProcessor implements Runnable {
                 // this is indicated by having the "override_id" tag. This just means that we
                 // don't use the id provided in the deviceId variable as this might have changed already.
 
-                eventData = storedRequests[0].replace("&override_id=", "&device_id=");
+                eventDataBuilder.append(storedRequest.replace("&override_id=", "&device_id="));
                 newId = null;
             } else {
                 if (deviceIdChange) {
                     // this branch will be used if a new device_id is provided
                     // and a device_id merge on server has to be performed
 
-                    final int endOfDeviceIdTag = storedRequests[0].indexOf("&device_id=") + "&device_id=".length();
-                    newId = UtilsNetworking.urlDecodeString(storedRequests[0].substring(endOfDeviceIdTag));
+                    newId = UtilsNetworking.urlDecodeString(metadata.deviceId(storedRequest));
 
                     if (newId.equals(deviceIdProvider_.getDeviceId())) {
                         // If the new device_id is the same as previous,
                         // we don't do anything to change it
 
-                        eventData = storedRequests[0];
+                        eventDataBuilder.append(storedRequest);
                         deviceIdChange = false;
 
                         L.d("[Connection Processor] Provided device_id is the same as the previous one used, nothing will be merged");
                     } else {
                         //new device_id provided, make sure it will be merged
-                        eventData = storedRequests[0] + "&old_device_id=" + UtilsNetworking.urlEncodeString(deviceIdProvider_.getDeviceId());
+                        eventDataBuilder.append(storedRequest).addEncoded("old_device_id", deviceIdProvider_.getDeviceId());
                     }
                 } else {
                     // this branch will be used in almost all requests.
                     // This just adds the device_id to them
 
                     newId = null;
-                    eventData = storedRequests[0] + "&device_id=" + UtilsNetworking.urlEncodeString(deviceIdProvider_.getDeviceId());
+                    eventDataBuilder.append(storedRequest).addEncoded("device_id", deviceIdProvider_.getDeviceId());
                 }
             }
 
             // add the remaining request count
-            eventData = eventData + "&rr=" + (storedRequestCount - 1);
+            final String eventData = eventDataBuilder.add("rr", storedRequestCount - 1).build();
 
             if (!(requestInfoProvider_.isDeviceAppCrawler() && requestInfoProvider_.ifShouldIgnoreCrawlers())) {
                 //continue with sending the request to the server
                 URLConnection conn = null;
                 InputStream connInputStream = null;
+                boolean responseConsumed = false;
+                final long requestStartMs = System.currentTimeMillis();
                 try {
                     // initialize and open connection
                     conn = urlConnectionForServerRequest(eventData, null);
@@ -310,6 +353,7 @@ public class ConnectionProcessor implements Runnable {
 
                     int responseCode = 0;
                     String responseString = "";
+                    String retryAfterHeader = null;
                     if (conn instanceof HttpURLConnection) {
                         final HttpURLConnection httpConn = (HttpURLConnection) conn;
 
@@ -322,65 +366,22 @@ public class ConnectionProcessor implements Runnable {
                         }
 
                         responseCode = httpConn.getResponseCode();
+                        retryAfterHeader = httpConn.getHeaderField("Retry-After");
                         responseString = Utils.inputStreamToString(connInputStream);
+                        responseConsumed = connInputStream.read() == -1;
                     }
 
                     L.d("[Connection Processor] code:[" + responseCode + "], response:[" + responseString + "], response size:[" + responseString.length() + " B], request: " + eventData + ", url: " + serverURL_);
 
-                    final RequestResult rRes;
-
-                    if (responseCode >= 200 && responseCode < 300) {
-
-                        if (responseString.isEmpty()) {
-                            L.v("[Connection Processor] Response was empty, will retry");
-                            rRes = RequestResult.RETRY;
-                        } else {
-                            JSONObject jsonObject;
-                            try {
-                                jsonObject = new JSONObject(responseString);
-                            } catch (JSONException ex) {
-                                //failed to parse, so not a valid json
-                                jsonObject = null;
-                                L.e("[Connection Processor] Failed to parse response [" + responseString + "].");
-                            }
-
-                            if (jsonObject == null) {
-                                //received unparseable response, retrying
-                                L.v("[Connection Processor] Response was a unknown, will retry");
-                                rRes = RequestResult.RETRY;
-                            } else {
-                                if (jsonObject.has("result")) {
-                                    //contains result entry
-                                    L.v("[Connection Processor] Response was a success");
-                                    rRes = RequestResult.OK;
-                                } else {
-                                    L.v("[Connection Processor] Response does not contain 'result', will retry");
-                                    rRes = RequestResult.RETRY;
-                                }
-                            }
-                        }
-                    } else if (responseCode >= 300 && responseCode < 400) {
-                        //assume redirect
-                        L.d("[Connection Processor] Encountered redirect, will retry");
-                        rRes = RequestResult.RETRY;
-                    } else if (responseCode == 400 || responseCode == 404) {
-                        L.w("[Connection Processor] Bad request, will still retry");
-                        rRes = RequestResult.RETRY;
-                    } else if (responseCode > 400) {
-                        //server down, try again later
-                        L.d("[Connection Processor] Server is down, will retry");
-                        rRes = RequestResult.RETRY;
-                    } else {
-                        L.d("[Connection Processor] Bad response code, will retry");
-                        rRes = RequestResult.RETRY;
-                    }
+                    final RequestResult rRes = evaluateResponse(responseCode, responseString);
 
                     // an 'if' needs to be used here so that a 'switch' statement does not 'eat' the 'break' call
                     // that is used to get out of the request loop
                     if (rRes == RequestResult.OK) {
                         // successfully submitted event data to Count.ly server, so remove
                         // this one from the stored events collection
-                        storageProvider_.removeRequest(storedRequests[0]);
+                        storageProvider_.removeRequest(storedRequest);
+                        onSubmissionSucceeded(requestStartMs, eventData.length());
 
                         if (deviceIdChange) {
                             if (newId != null && !newId.isEmpty()) {
@@ -398,35 +399,234 @@ public class ConnectionProcessor implements Runnable {
                         // will retry later
                         // warning was logged above, stop processing, let next tick take care of retrying
                         healthTracker.logFailedNetworkRequest(responseCode, responseString);//notify the health tracker of the issue
+                        onSubmissionFailed(retryAfterHeader, requestStartMs, eventData.length());
                         break;
                     }
                 } catch (Exception e) {
                     L.d("[Connection Processor] Got exception while trying to submit request data: [" + eventData + "] [" + e + "]");
+                    onSubmissionFailed(null, requestStartMs, eventData.length());
                     // if exception occurred, stop processing, let next tick take care of retrying
                     break;
                 } finally {
                     // free connection resources
-                    if (conn instanceof HttpURLConnection) {
-                        try {
-                            if (connInputStream != null) {
-                                connInputStream.close();
-                            }
-                        } catch (Throwable ignored) {
-                        }
-
-                        ((HttpURLConnection) conn).disconnect();
-                    }
+                    releaseConnection(conn, connInputStream, responseConsumed);
                 }
             } else {
                 //device is identified as a app crawler and nothing is sent to the server
-                L.i("[Connection Processor] Device identified as a app crawler, skipping request " + storedRequests[0]);
+                L.i("[Connection Processor] Device identified as a app crawler, skipping request " + storedRequest);
 
                 //remove stored data
-                storageProvider_.removeRequest(storedRequests[0]);
+                storageProvider_.removeRequest(storedRequest);
             }
         }
     }
 
+    private RequestResult evaluateResponse(final int responseCode, final String responseString) {
+        if (responseCode >= 200 && responseCode < 300) {
+            if (responseString.isEmpty()) {
+                L.v("[Connection Processor] Response was empty, will retry");
+                return RequestResult.RETRY;
+            }
+
+            JSONObject jsonObject;
+            try {
+                jsonObject = new JSONObject(responseString);
+            } catch (JSONException ex) {
+                //failed to parse, so not a valid json
+                jsonObject = null;
+                L.e("[Connection Processor] Failed to parse response [" + responseString + "].");
+            }
+
+            if (jsonObject == null) {
+                //received unparseable response, retrying
+                L.v("[Connection Processor] Response was a unknown, will retry");
+                return RequestResult.RETRY;
+            }
+
+            if (jsonObject.has("result")) {
+                //contains result entry
+                L.v("[Connection Processor] Response was a success");
+                return RequestResult.OK;
+            }
+
+            L.v("[Connection Processor] Response does not contain 'result', will retry");
+            return RequestResult.RETRY;
+        } else if (responseCode >= 300 && responseCode < 400) {
+            //assume redirect
+            L.d("[Connection Processor] Encountered redirect, will retry");
+        } else if (responseCode == 400 || responseCode == 404) {
+            L.w("[Connection Processor] Bad request, will still retry");
+        } else if (responseCode > 400) {
+            //server down, try again later
+            L.d("[Connection Processor] Server is down, will retry");
+        } else {
+            L.d("[Connection Processor] Bad response code, will retry");
+        }
+        return RequestResult.RETRY;
+    }
+
+    /**
+     * A request can be sent in bulk if it is not changing the device ID and not uploading a picture.
+     * Those requests still go through the single request path, which handles them.
+     */
+    static boolean isBulkEligible(final RequestMetadata metadata) {
+        return !metadata.has(RequestMetadata.FLAG_OVERRIDE_ID | RequestMetadata.FLAG_DEVICE_ID | RequestMetadata.FLAG_PICTURE_PATH);
+    }
+
+    /**
+     * Turns a query string into a JSON object with decoded keys and values
+     */
+    static JSONObject requestToJson(final String request) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (String pair : request.split("&")) {
+            int separator = pair.indexOf('=');
+            String key = separator < 0 ? pair : pair.substring(0, separator);
+            if (key.isEmpty()) {
+                continue;
+            }
+            String value = separator < 0 ? "" : pair.substring(separator + 1);
+            json.put(UtilsNetworking.urlDecodeString(key), UtilsNetworking.urlDecodeString(value));
+        }
+        return json;
+    }
+
+    /**
+     * Sends the oldest stored requests to the bulk endpoint in a single POST.
+     * Only the consecutive eligible requests from the start of the queue are taken
+     * so that the order in which the server receives requests does not change.
+     *
+     * @param storedRequestCount amount of requests currently in the queue
+     * @param nextRequest the request that should be sent next, nothing is sent in bulk if it's not the oldest request
+     * @return amount of requests that were sent and removed, 0 if the oldest requests can't be sent in bulk, -1 if sending failed
+     */
+    int sendBulk(final int storedRequestCount, final String nextRequest) {
+        if (requestInfoProvider_.isDeviceAppCrawler() && requestInfoProvider_.ifShouldIgnoreCrawlers()) {
+            //the single request path removes them without sending
+            return 0;
+        }
+
+        final String[] storedRequests = storageProvider_.peekRequests(maxRequestsPerBulk);
+        if (nextRequest != null && storedRequests.length > 0 && !nextRequest.equals(storedRequests[0])) {
+            //a prioritized request is sent first on its own
+            return 0;
+        }
+
+        int bulkCount = 0;
+        while (bulkCount < storedRequests.length && isBulkEligible(RequestMetadata.of(storageProvider_, storedRequests[bulkCount]))) {
+            bulkCount++;
+        }
+
+        if (bulkCount < 2) {
+            return 0;
+        }
+
+        URLConnection conn = null;
+        InputStream connInputStream = null;
+        boolean responseConsumed = false;
+        int responseCode = 0;
+        String responseString = "";
+        String retryAfterHeader = null;
+        String bulkData = "";
+        final long requestStartMs = System.currentTimeMillis();
+        try {
+            final String deviceIdParam = "&device_id=" + UtilsNetworking.urlEncodeString(deviceIdProvider_.getDeviceId());
+            JSONArray requests = new JSONArray();
+            for (int a = 0; a < bulkCount; a++) {
+                requests.put(requestToJson(storedRequests[a] + deviceIdParam + "&rr=" + (storedRequestCount - 1 - a)));
+            }
+
+            L.d("[Connection Processor] sendBulk, sending [" + bulkCount + "] requests in bulk");
+            bulkData = "requests=" + UtilsNetworking.urlEncodeString(requests.toString());
+            conn = urlConnectionForServerRequest(bulkData, "/i/bulk", true);
+            conn.connect();
+
+            if (conn instanceof HttpURLConnection) {
+                final HttpURLConnection httpConn = (HttpURLConnection) conn;
+
+                try {
+                    connInputStream = httpConn.getInputStream();
+                } catch (Exception ex) {
+                    connInputStream = httpConn.getErrorStream();
+                }
+
+                responseCode = httpConn.getResponseCode();
+                retryAfterHeader = httpConn.getHeaderField("Retry-After");
+                responseString = Utils.inputStreamToString(connInputStream);
+                responseConsumed = connInputStream.read() == -1;
+            }
+
+            L.d("[Connection Processor] sendBulk, code:[" + responseCode + "], response:[" + responseString + "], url: " + serverURL_);
+        } catch (Exception e) {
+            L.d("[Connection Processor] sendBulk, got exception while trying to submit request data: [" + e + "]");
+            onSubmissionFailed(null, requestStartMs, bulkData.length());
+            return -1;
+        } finally {
+            releaseConnection(conn, connInputStream, responseConsumed);
+        }
+
+        if (evaluateResponse(responseCode, responseString) != RequestResult.OK) {
+            healthTracker.logFailedNetworkRequest(responseCode, responseString);//notify the health tracker of the issue
+            onSubmissionFailed(retryAfterHeader, requestStartMs, bulkData.length());
+            return -1;
+        }
+
+        //only the acknowledged requests are removed
+        for (int a = 0; a < bulkCount; a++) {
+            storageProvider_.removeRequest(storedRequests[a]);
+        }
+        onSubmissionSucceeded(requestStartMs, bulkData.length());
+        return bulkCount;
+    }
+
+    /**
+     * Closes the response stream. If the response was read until the end, the connection is
+     * not disconnected so that it can be kept alive and reused for the next request to the server.
+     */
+    private void releaseConnection(final URLConnection conn, final InputStream connInputStream, final boolean responseConsumed) {
+        if (!(conn instanceof HttpURLConnection)) {
+            return;
+        }
+
+        try {
+            if (connInputStream != null) {
+                connInputStream.close();
+            }
+        } catch (Throwable ignored) {
+        }
+
+        if (!responseConsumed) {
+            //a connection with unread data or in an unknown state can't be reused
+            ((HttpURLConnection) conn).disconnect();
+        }
+    }
+
+    static synchronized SSLSocketFactory getSocketFactory(final SSLContext sslContext) {
+        if (socketFactory == null || socketFactoryContext != sslContext) {
+            socketFactory = sslContext.getSocketFactory();
+            socketFactoryContext = sslContext;
+        }
+        return socketFactory;
+    }
+
+    private void onSubmissionSucceeded(final long requestStartMs, final int payloadLength) {
+        if (retryScheduler != null) {
+            retryScheduler.onSuccess();
+        }
+        if (eventBatchingPolicy != null) {
+            eventBatchingPolicy.onRequestCompleted(System.currentTimeMillis() - requestStartMs, payloadLength, true);
+        }
+    }
+
+    private void onSubmissionFailed(final String retryAfterHeader, final long requestStartMs, final int payloadLength) {
+        long currentTimestampMs = System.currentTimeMillis();
+        if (retryScheduler != null) {
+            retryScheduler.onFailure(currentTimestampMs, retryAfterHeader);
+        }
+        if (eventBatchingPolicy != null) {
+            eventBatchingPolicy.onRequestCompleted(currentTimestampMs - requestStartMs, payloadLength, false);
+        }
+    }
+
     String getServerURL() {
         return serverURL_;
     }
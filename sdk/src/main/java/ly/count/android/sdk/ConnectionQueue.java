@@ -66,6 +66,16 @@ class ConnectionQueue implements RequestQueueProvider {
 
     RequestInfoProvider requestInfoProvider;
 
+    int maxRequestsPerBulk = 0;
+
+    int requestCompressionThreshold = -1;
+
+    RequestRetryScheduler retryScheduler = null;
+
+    EventBatchingPolicy eventBatchingPolicy = null;
+
+    HttpTransport httpTransport = null;
+
     void setBaseInfoProvider(BaseInfoProvider bip) {
         baseInfoProvider = bip;
     }
@@ -178,20 +188,17 @@ class ConnectionQueue implements RequestQueueProvider {
             return;
         }
 
-        String data = prepareCommonRequestData();
+        RequestBuilder data = prepareCommonRequest(preparedMetrics.length());
 
         //add session data if consent given
-        data += "&begin_session=1"
-            + "&metrics=" + preparedMetrics;//can be only sent with begin session
+        data.add("begin_session", 1)
+            .add("metrics", preparedMetrics);//can be only sent with begin session
 
-        String locationData = prepareLocationData(locationDisabled, locationCountryCode, locationCity, locationGpsCoordinates, locationIpAddress);
-        if (!locationData.isEmpty()) {
-            data += locationData;
-        }
+        prepareLocationData(data, locationDisabled, locationCountryCode, locationCity, locationGpsCoordinates, locationIpAddress);
 
         Countly.sharedInstance().isBeginSessionSent = true;
 
-        addRequestToQueue(data, false);
+        addRequestToQueue(data.build(), false);
         tick();
     }
 
@@ -213,8 +220,9 @@ class ConnectionQueue implements RequestQueueProvider {
         }
 
         if (duration > 0) {
-            String data = prepareCommonRequestData();
-            data += "&session_duration=" + duration;
+            String data = prepareCommonRequest(0)
+                .add("session_duration", duration)
+                .build();
 
             addRequestToQueue(data, false);
             tick();
@@ -227,16 +235,16 @@ class ConnectionQueue implements RequestQueueProvider {
         }
         L.d("[Connection Queue] changeDeviceId");
 
-        String data = prepareCommonRequestData();
+        RequestBuilder data = prepareCommonRequest(deviceId.length());
 
         if (consentProvider.getConsent(Countly.CountlyFeatureNames.sessions)) {
-            data += "&session_duration=" + duration;
+            data.add("session_duration", duration);
         }
 
         // !!!!! THIS SHOULD ALWAYS BE ADDED AS THE LAST FIELD, OTHERWISE MERGING BREAKS !!!!!
-        data += "&device_id=" + UtilsNetworking.urlEncodeString(deviceId);
+        data.addEncoded("device_id", deviceId);
 
-        addRequestToQueue(data, false);
+        addRequestToQueue(data.build(), false);
         tick();
     }
 
@@ -251,11 +259,12 @@ class ConnectionQueue implements RequestQueueProvider {
             return;
         }
 
-        final String data = prepareCommonRequestData()
-            + "&token_session=1"
-            + "&android_token=" + UtilsNetworking.urlEncodeString(token)
-            + "&token_provider=" + provider
-            + "&locale=" + UtilsNetworking.urlEncodeString(deviceInfo.mp.getLocale());
+        final String data = prepareCommonRequest(token.length())
+            .add("token_session", 1)
+            .addEncoded("android_token", token)
+            .add("token_provider", String.valueOf(provider))
+            .addEncoded("locale", deviceInfo.mp.getLocale())
+            .build();
 
         L.d("[Connection Queue] Waiting for 10 seconds before adding token request to queue");
 
@@ -293,19 +302,19 @@ class ConnectionQueue implements RequestQueueProvider {
         }
 
         boolean dataAvailable = false;//will only send data if there is something valuable to send
-        String data = prepareCommonRequestData();
+        RequestBuilder data = prepareCommonRequest(0);
 
-        data += "&end_session=1";
+        data.add("end_session", 1);
         if (duration > 0) {
-            data += "&session_duration=" + duration;
+            data.add("session_duration", duration);
         }
 
         if (deviceIdOverride != null) {
             //if no consent is given, device ID override is not sent
-            data += "&override_id=" + UtilsNetworking.urlEncodeString(deviceIdOverride);
+            data.addEncoded("override_id", deviceIdOverride);
         }
 
-        addRequestToQueue(data, false);
+        addRequestToQueue(data.build(), false);
         tick();
     }
 
@@ -318,11 +327,11 @@ class ConnectionQueue implements RequestQueueProvider {
         }
         L.d("[Connection Queue] sendLocation");
 
-        String data = prepareCommonRequestData();
+        RequestBuilder data = prepareCommonRequest(0);
 
-        data += prepareLocationData(locationDisabled, locationCountryCode, locationCity, locationGpsCoordinates, locationIpAddress);
+        prepareLocationData(data, locationDisabled, locationCountryCode, locationCity, locationGpsCoordinates, locationIpAddress);
 
-        addRequestToQueue(data, false);
+        addRequestToQueue(data.build(), false);
 
         tick();
     }
@@ -350,7 +359,9 @@ class ConnectionQueue implements RequestQueueProvider {
 
         moduleRequestQueue.sendEventsIfNeeded(true); // flush events before sending user details //todo this should be moved to the user profile modile after removing the static user profile implementation
 
-        String data = prepareCommonRequestData() + userdata;
+        String data = prepareCommonRequest(userdata.length())
+            .append(userdata)
+            .build();
         addRequestToQueue(data, false);
         tick();
     }
@@ -371,9 +382,9 @@ class ConnectionQueue implements RequestQueueProvider {
             return;
         }
 
-        String param = "&aid=" + UtilsNetworking.urlEncodeString(attributionObj);
-
-        String data = prepareCommonRequestData() + param;
+        String data = prepareCommonRequest(attributionObj.length())
+            .addEncoded("aid", attributionObj)
+            .build();
         addRequestToQueue(data, false);
 
         tick();
@@ -395,9 +406,9 @@ class ConnectionQueue implements RequestQueueProvider {
             return;
         }
 
-        String res = "&attribution_data=" + UtilsNetworking.urlEncodeString(attributionData);
-
-        String data = prepareCommonRequestData() + res;
+        String data = prepareCommonRequest(attributionData.length())
+            .addEncoded("attribution_data", attributionData)
+            .build();
         addRequestToQueue(data, false);
 
         tick();
@@ -414,22 +425,21 @@ class ConnectionQueue implements RequestQueueProvider {
             return;
         }
 
-        String res = "";
+        boolean hasUserID = userID != null && !userID.isEmpty();
+        if (campaignID.isEmpty() && !hasUserID) {
+            L.w("[Connection Queue] sendDirectAttributionLegacy, attribution not sent, both campaign ID and user ID are either null or empty");
+            return;
+        }
 
+        RequestBuilder data = prepareCommonRequest(0);
         if (!campaignID.isEmpty()) {
-            res += "&campaign_id=" + UtilsNetworking.urlEncodeString(campaignID);
+            data.addEncoded("campaign_id", campaignID);
         }
-        if (userID != null && !userID.isEmpty()) {
-            res += "&campaign_user=" + UtilsNetworking.urlEncodeString(userID);
+        if (hasUserID) {
+            data.addEncoded("campaign_user", userID);
         }
 
-        if (res.length() == 0) {
-            L.w("[Connection Queue] sendDirectAttributionLegacy, attribution not sent, both campaign ID and user ID are either null or empty");
-            return;
-        }
-
-        String data = prepareCommonRequestData() + res;
-        addRequestToQueue(data, false);
+        addRequestToQueue(data.build(), false);
 
         tick();
     }
@@ -450,8 +460,9 @@ class ConnectionQueue implements RequestQueueProvider {
             return;
         }
 
-        final String data = prepareCommonRequestData()
-            + "&crash=" + UtilsNetworking.urlEncodeString(crashData);
+        final String data = prepareCommonRequest(crashData.length() + crashData.length() / 4)
+            .addEncoded("crash", crashData)
+            .build();
 
         //in case of a fatal crash, write it in sync to shared preferences
         addRequestToQueue(data, !nonFatalCrash);
@@ -477,18 +488,15 @@ class ConnectionQueue implements RequestQueueProvider {
             return;
         }
 
-        StringBuilder data = new StringBuilder(prepareCommonRequestData());
+        RequestBuilder data = prepareCommonRequest(0);
         for (Map.Entry<String, String> entry : requestData.entrySet()) {
-            if (data.length() > 0) {
-                data.append("&");
-            }
-            data.append(String.format("%s=%s",
-                UtilsNetworking.urlEncodeString(entry.getKey()),
-                UtilsNetworking.urlEncodeString(entry.getValue())
-            ));
+            data.append("&");
+            UtilsNetworking.appendUrlEncoded(data.sb, entry.getKey());
+            data.append("=");
+            UtilsNetworking.appendUrlEncoded(data.sb, entry.getValue());
         }
 
-        addRequestToQueue(data.toString(), false);
+        addRequestToQueue(data.build(), false);
         tick();
     }
 
@@ -508,8 +516,9 @@ class ConnectionQueue implements RequestQueueProvider {
         ///CONSENT FOR EVENTS IS CHECKED ON EVENT CREATION//
         ////////////////////////////////////////////////////
 
-        final String data = prepareCommonRequestData()
-            + "&events=" + events;
+        final String data = prepareCommonRequest(events.length())
+            .add("events", events)
+            .build();
 
         addRequestToQueue(data, false);
         tick();
@@ -521,8 +530,9 @@ class ConnectionQueue implements RequestQueueProvider {
         }
         L.d("[Connection Queue] sendConsentChanges");
 
-        final String data = prepareCommonRequestData()
-            + "&consent=" + UtilsNetworking.urlEncodeString(formattedConsentChanges);
+        final String data = prepareCommonRequest(formattedConsentChanges.length() * 2)
+            .addEncoded("consent", formattedConsentChanges)
+            .build();
 
         addRequestToQueue(data, false);
 
@@ -547,9 +557,10 @@ class ConnectionQueue implements RequestQueueProvider {
 
         String apmData = "{\"type\":\"device\",\"name\":\"" + key + "\", \"apm_metrics\":{\"duration\": " + durationMs + customMetrics + "}, \"stz\": " + startMs + ", \"etz\": " + endMs + "}";
 
-        final String data = prepareCommonRequestData()
-            + "&count=1"
-            + "&apm=" + UtilsNetworking.urlEncodeString(apmData);
+        final String data = prepareCommonRequest(apmData.length() * 2)
+            .add("count", 1)
+            .addEncoded("apm", apmData)
+            .build();
 
         addRequestToQueue(data, false);
 
@@ -575,9 +586,10 @@ class ConnectionQueue implements RequestQueueProvider {
         String apmMetrics = "{\"response_time\": " + responseTimeMs + ", \"response_payload_size\":" + responsePayloadSize + ", \"response_code\":" + responseCode + ", \"request_payload_size\":" + requestPayloadSize + "}";
         String apmData = "{\"type\":\"network\",\"name\":\"" + networkTraceKey + "\", \"apm_metrics\":" + apmMetrics + ", \"stz\": " + startMs + ", \"etz\": " + endMs + "}";
 
-        final String data = prepareCommonRequestData()
-            + "&count=1"
-            + "&apm=" + UtilsNetworking.urlEncodeString(apmData);
+        final String data = prepareCommonRequest(apmData.length() * 2)
+            .add("count", 1)
+            .addEncoded("apm", apmData)
+            .build();
 
         addRequestToQueue(data, false);
 
@@ -600,9 +612,10 @@ class ConnectionQueue implements RequestQueueProvider {
 
         String apmData = "{\"type\":\"device\",\"name\":\"app_start\", \"apm_metrics\":{\"duration\": " + durationMs + "}, \"stz\": " + startMs + ", \"etz\": " + endMs + "}";
 
-        final String data = prepareCommonRequestData()
-            + "&count=1"
-            + "&apm=" + UtilsNetworking.urlEncodeString(apmData);
+        final String data = prepareCommonRequest(apmData.length() * 2)
+            .add("count", 1)
+            .addEncoded("apm", apmData)
+            .build();
 
         addRequestToQueue(data, false);
 
@@ -625,9 +638,10 @@ class ConnectionQueue implements RequestQueueProvider {
 
         String apmData = "{\"type\":\"device\",\"name\":\"" + eventName + "\", \"apm_metrics\":{\"duration\": " + durationMs + "}, \"stz\": " + startMs + ", \"etz\": " + endMs + "}";
 
-        final String data = prepareCommonRequestData()
-            + "&count=1"
-            + "&apm=" + UtilsNetworking.urlEncodeString(apmData);
+        final String data = prepareCommonRequest(apmData.length() * 2)
+            .add("count", 1)
+            .addEncoded("apm", apmData)
+            .build();
 
         addRequestToQueue(data, false);
 
@@ -635,120 +649,130 @@ class ConnectionQueue implements RequestQueueProvider {
     }
 
     String prepareCommonRequestData() {
+        return prepareCommonRequest(0).build();
+    }
+
+    /**
+     * Returns a request builder that already contains the common request parameters
+     *
+     * @param additionalLength expected length of the parameters that will be added, used to size the buffer
+     */
+    RequestBuilder prepareCommonRequest(int additionalLength) {
         UtilsTime.Instant instant = UtilsTime.getCurrentInstant();
 
-        return "app_key=" + UtilsNetworking.urlEncodeString(baseInfoProvider.getAppKey())
-            + "&timestamp=" + instant.timestampMs
-            + "&hour=" + instant.hour
-            + "&dow=" + instant.dow
-            + "&tz=" + deviceInfo.mp.getTimezoneOffset()
-            + "&sdk_version=" + Countly.sharedInstance().COUNTLY_SDK_VERSION_STRING
-            + "&sdk_name=" + Countly.sharedInstance().COUNTLY_SDK_NAME;
+        return RequestBuilder.obtain(256 + additionalLength)
+            .addEncoded("app_key", baseInfoProvider.getAppKey())
+            .add("timestamp", instant.timestampMs)
+            .add("hour", instant.hour)
+            .add("dow", instant.dow)
+            .add("tz", deviceInfo.mp.getTimezoneOffset())
+            .add("sdk_version", Countly.sharedInstance().COUNTLY_SDK_VERSION_STRING)
+            .add("sdk_name", Countly.sharedInstance().COUNTLY_SDK_NAME);
     }
 
-    String prepareCommonRequestDataShort() {
+    RequestBuilder prepareCommonRequestShort() {
         UtilsTime.Instant instant = UtilsTime.getCurrentInstant();
 
-        return "app_key=" + UtilsNetworking.urlEncodeString(baseInfoProvider.getAppKey())
-            + "&timestamp=" + instant.timestampMs
-            + "&sdk_version=" + Countly.sharedInstance().COUNTLY_SDK_VERSION_STRING
-            + "&sdk_name=" + Countly.sharedInstance().COUNTLY_SDK_NAME;
+        return RequestBuilder.obtain()
+            .addEncoded("app_key", baseInfoProvider.getAppKey())
+            .add("timestamp", instant.timestampMs)
+            .add("sdk_version", Countly.sharedInstance().COUNTLY_SDK_VERSION_STRING)
+            .add("sdk_name", Countly.sharedInstance().COUNTLY_SDK_NAME);
     }
 
-    private String prepareLocationData(boolean locationDisabled, String locationCountryCode, String locationCity, String locationGpsCoordinates, String locationIpAddress) {
-        String data = "";
-
+    private void prepareLocationData(RequestBuilder data, boolean locationDisabled, String locationCountryCode, String locationCity, String locationGpsCoordinates, String locationIpAddress) {
         if (locationDisabled || !consentProvider.getConsent(Countly.CountlyFeatureNames.location)) {
             //if location is disabled or consent not given, send empty location info
             //this way it is cleared server side and geoip is not used
             //do this only if allowed
-            data += "&location=";
+            data.add("location", "");
         } else {
             //if we get here, location consent was given
             //location should be sent, add all the fields we have
 
             if (locationGpsCoordinates != null && !locationGpsCoordinates.isEmpty()) {
-                data += "&location=" + UtilsNetworking.urlEncodeString(locationGpsCoordinates);
+                data.addEncoded("location", locationGpsCoordinates);
             }
 
             if (locationCity != null && !locationCity.isEmpty()) {
-                data += "&city=" + UtilsNetworking.urlEncodeString(locationCity);
+                data.addEncoded("city", locationCity);
             }
 
             if (locationCountryCode != null && !locationCountryCode.isEmpty()) {
-                data += "&country_code=" + UtilsNetworking.urlEncodeString(locationCountryCode);
+                data.addEncoded("country_code", locationCountryCode);
             }
 
             if (locationIpAddress != null && !locationIpAddress.isEmpty()) {
-                data += "&ip=" + UtilsNetworking.urlEncodeString(locationIpAddress);
+                data.addEncoded("ip", locationIpAddress);
             }
         }
-        return data;
     }
 
     public String prepareRemoteConfigRequestLegacy(@Nullable String keysInclude, @Nullable String keysExclude, @NonNull String preparedMetrics) {
-        String data = prepareCommonRequestData()
-            + "&method=fetch_remote_config"
-            + "&device_id=" + UtilsNetworking.urlEncodeString(deviceIdProvider_.getDeviceId());
+        RequestBuilder data = prepareCommonRequest(preparedMetrics.length())
+            .add("method", "fetch_remote_config")
+            .addEncoded("device_id", deviceIdProvider_.getDeviceId());
 
         if (consentProvider.getConsent(Countly.CountlyFeatureNames.sessions)) {
             //add session data if consent given
-            data += "&metrics=" + preparedMetrics;
+            data.add("metrics", preparedMetrics);
         }
 
         //add key filters
         if (keysInclude != null) {
-            data += "&keys=" + UtilsNetworking.urlEncodeString(keysInclude);
+            data.addEncoded("keys", keysInclude);
         } else if (keysExclude != null) {
-            data += "&omit_keys=" + UtilsNetworking.urlEncodeString(keysExclude);
+            data.addEncoded("omit_keys", keysExclude);
         }
 
-        return data;
+        return data.build();
     }
 
     public String prepareRemoteConfigRequest(@Nullable String keysInclude, @Nullable String keysExclude, @NonNull String preparedMetrics, boolean autoEnroll) {
-        String data = prepareCommonRequestData()
-            + "&method=rc"
-            + "&device_id=" + UtilsNetworking.urlEncodeString(deviceIdProvider_.getDeviceId());
+        RequestBuilder data = prepareCommonRequest(preparedMetrics.length())
+            .add("method", "rc")
+            .addEncoded("device_id", deviceIdProvider_.getDeviceId());
 
         if (consentProvider.getConsent(Countly.CountlyFeatureNames.sessions)) {
             //add session data if consent given
-            data += "&metrics=" + preparedMetrics;
+            data.add("metrics", preparedMetrics);
         }
 
         //add key filters
         if (keysInclude != null) {
-            data += "&keys=" + UtilsNetworking.urlEncodeString(keysInclude);
+            data.addEncoded("keys", keysInclude);
         } else if (keysExclude != null) {
-            data += "&omit_keys=" + UtilsNetworking.urlEncodeString(keysExclude);
+            data.addEncoded("omit_keys", keysExclude);
         }
 
         // if auto enroll was enabled add oi=1 to the request
-        if(autoEnroll){
-            data += "&oi=1";
+        if (autoEnroll) {
+            data.add("oi", 1);
         }
 
-        return data;
+        return data.build();
     }
 
     public String prepareEnrollmentParameters(@NonNull String[] keys) {
-        String data = "method=ab"
-            + "&keys=" + UtilsNetworking.encodedArrayBuilder(keys)
-            + "&app_key=" + UtilsNetworking.urlEncodeString(baseInfoProvider.getAppKey())
-            + "&device_id=" + UtilsNetworking.urlEncodeString(deviceIdProvider_.getDeviceId());
-        return data;
+        return RequestBuilder.obtain()
+            .add("method", "ab")
+            .add("keys", UtilsNetworking.encodedArrayBuilder(keys))
+            .addEncoded("app_key", baseInfoProvider.getAppKey())
+            .addEncoded("device_id", deviceIdProvider_.getDeviceId())
+            .build();
     }
 
     public String prepareRemovalParameters(@NonNull String[] keys) {
-        String data = "method=ab_opt_out"
-            + "&app_key=" + UtilsNetworking.urlEncodeString(baseInfoProvider.getAppKey())
-            + "&device_id=" + UtilsNetworking.urlEncodeString(deviceIdProvider_.getDeviceId());
+        RequestBuilder data = RequestBuilder.obtain()
+            .add("method", "ab_opt_out")
+            .addEncoded("app_key", baseInfoProvider.getAppKey())
+            .addEncoded("device_id", deviceIdProvider_.getDeviceId());
 
         if (keys.length > 0) {
-            data += "&keys=" + UtilsNetworking.encodedArrayBuilder(keys);
+            data.add("keys", UtilsNetworking.encodedArrayBuilder(keys));
         }
 
-        return data;
+        return data.build();
     }
 
     /**
@@ -758,11 +782,11 @@ class ConnectionQueue implements RequestQueueProvider {
      * @return
      */
     public String prepareFetchAllVariants() {
-        String data = "method=ab_fetch_variants"
-            + "&app_key=" + UtilsNetworking.urlEncodeString(baseInfoProvider.getAppKey())
-            + "&device_id=" + UtilsNetworking.urlEncodeString(deviceIdProvider_.getDeviceId());
-
-        return data;
+        return RequestBuilder.obtain()
+            .add("method", "ab_fetch_variants")
+            .addEncoded("app_key", baseInfoProvider.getAppKey())
+            .addEncoded("device_id", deviceIdProvider_.getDeviceId())
+            .build();
     }
 
     /**
@@ -773,54 +797,51 @@ class ConnectionQueue implements RequestQueueProvider {
      * @return
      */
     public String prepareFetchAllExperiments() {
-        String data = "method=ab_fetch_experiments"
-            + "&app_key=" + UtilsNetworking.urlEncodeString(baseInfoProvider.getAppKey())
-            + "&device_id=" + UtilsNetworking.urlEncodeString(deviceIdProvider_.getDeviceId());
-
-        return data;
+        return RequestBuilder.obtain()
+            .add("method", "ab_fetch_experiments")
+            .addEncoded("app_key", baseInfoProvider.getAppKey())
+            .addEncoded("device_id", deviceIdProvider_.getDeviceId())
+            .build();
     }
 
     public String prepareEnrollVariant(String key, String variant) {
-        String data = "method=ab_enroll_variant"
-            + "&app_key=" + UtilsNetworking.urlEncodeString(baseInfoProvider.getAppKey())
-            + "&device_id=" + UtilsNetworking.urlEncodeString(deviceIdProvider_.getDeviceId())
-            + "&key=" + UtilsNetworking.urlEncodeString(key)
-            + "&variant=" + UtilsNetworking.urlEncodeString(variant);
-
-        return data;
+        return RequestBuilder.obtain()
+            .add("method", "ab_enroll_variant")
+            .addEncoded("app_key", baseInfoProvider.getAppKey())
+            .addEncoded("device_id", deviceIdProvider_.getDeviceId())
+            .addEncoded("key", key)
+            .addEncoded("variant", variant)
+            .build();
     }
 
     public String prepareRatingWidgetRequest(String widgetId) {
-        String data = prepareCommonRequestData()
-            + "&widget_id=" + UtilsNetworking.urlEncodeString(widgetId)
-            + "&device_id=" + UtilsNetworking.urlEncodeString(deviceIdProvider_.getDeviceId());
-        return data;
+        return prepareCommonRequest(0)
+            .addEncoded("widget_id", widgetId)
+            .addEncoded("device_id", deviceIdProvider_.getDeviceId())
+            .build();
     }
 
     public String prepareFeedbackListRequest() {
-        String data = prepareCommonRequestData()
-            + "&method=feedback"
-            + "&device_id=" + UtilsNetworking.urlEncodeString(deviceIdProvider_.getDeviceId());
-
-        return data;
+        return prepareCommonRequest(0)
+            .add("method", "feedback")
+            .addEncoded("device_id", deviceIdProvider_.getDeviceId())
+            .build();
     }
 
     public String prepareHealthCheckRequest(String preparedMetrics) {
-        String data = prepareCommonRequestData();
-
-        //consent not required for these curated metrics
-        data += "&metrics=" + preparedMetrics;
-        data += "&device_id=" + UtilsNetworking.urlEncodeString(deviceIdProvider_.getDeviceId());
-
-        return data;
+        return prepareCommonRequest(preparedMetrics.length())
+            //consent not required for these curated metrics
+            .add("metrics", preparedMetrics)
+            .addEncoded("device_id", deviceIdProvider_.getDeviceId())
+            .build();
     }
 
     @Override
     public String prepareServerConfigRequest() {
-        String data = prepareCommonRequestDataShort()
-            + "&method=sc"
-            + "&device_id=" + UtilsNetworking.urlEncodeString(deviceIdProvider_.getDeviceId());
-        return data;
+        return prepareCommonRequestShort()
+            .add("method", "sc")
+            .addEncoded("device_id", deviceIdProvider_.getDeviceId())
+            .build();
     }
 
     /**
@@ -841,6 +862,16 @@ class ConnectionQueue implements RequestQueueProvider {
      * Should only be called if SDK is initialized
      */
     public void tick() {
+        tick(false);
+    }
+
+    /**
+     * Same as 'tick()', but can ignore the delay that is set after failed submissions.
+     * That is meant for when sending is triggered manually.
+     *
+     * @param bypassBackoff if 'true', the request queue is processed even if the retry delay has not passed
+     */
+    public void tick(boolean bypassBackoff) {
         L.v("[Connection Queue] tick, Not empty:[" + !isRequestQueueEmpty() + "], Has processor:[" + (connectionProcessorFuture_ == null) + "], Done or null:[" + (connectionProcessorFuture_ == null
             || connectionProcessorFuture_.isDone()) + "]");
 
@@ -849,6 +880,11 @@ class ConnectionQueue implements RequestQueueProvider {
             return;
         }
 
+        if (!bypassBackoff && retryScheduler != null && !retryScheduler.canAttempt(System.currentTimeMillis())) {
+            L.v("[Connection Queue] tick, waiting for the retry delay after [" + retryScheduler.consecutiveFailures + "] failed attempts");
+            return;
+        }
+
         if (!isRequestQueueEmpty() && (connectionProcessorFuture_ == null || connectionProcessorFuture_.isDone())) {
             ensureExecutor();
             connectionProcessorFuture_ = executor_.submit(createConnectionProcessor());
@@ -856,15 +892,22 @@ class ConnectionQueue implements RequestQueueProvider {
     }
 
     public ConnectionProcessor createConnectionProcessor() {
-        return new ConnectionProcessor(baseInfoProvider.getServerURL(), storageProvider, deviceIdProvider_, configProvider, requestInfoProvider, sslContext_, requestHeaderCustomValues, L, healthTracker);
+        ConnectionProcessor cp = new ConnectionProcessor(baseInfoProvider.getServerURL(), storageProvider, deviceIdProvider_, configProvider, requestInfoProvider, sslContext_, requestHeaderCustomValues, L, healthTracker);
+        cp.maxRequestsPerBulk = maxRequestsPerBulk;
+        cp.requestCompressionThreshold = requestCompressionThreshold;
+        cp.retryScheduler = retryScheduler;
+        cp.eventBatchingPolicy = eventBatchingPolicy;
+        if (httpTransport != null) {
+            cp.httpTransport = httpTransport;
+        }
+        return cp;
     }
 
     public boolean queueContainsTemporaryIdItems() {
         String[] storedRequests = storageProvider.getRequests();
-        String temporaryIdTag = "&device_id=" + DeviceId.temporaryCountlyDeviceId;
 
         for (String storedRequest : storedRequests) {
-            if (storedRequest.contains(temporaryIdTag)) {
+            if (RequestMetadata.of(storageProvider, storedRequest).has(RequestMetadata.FLAG_TEMPORARY_DEVICE_ID)) {
                 return true;
             }
         }
@@ -880,12 +923,7 @@ class ConnectionQueue implements RequestQueueProvider {
      * Returns true if no requests are current stored, false otherwise.
      */
     boolean isRequestQueueEmpty() {
-        String rawRequestQueue = storageProvider.getRequestQueueRaw();
-        if (rawRequestQueue.length() > 0) {
-            return false;
-        } else {
-            return true;
-        }
+        return storageProvider.getRequestQueueSize() == 0;
     }
 
     // for unit testing
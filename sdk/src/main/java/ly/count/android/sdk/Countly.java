@@ -433,12 +433,20 @@ public class Countly {
                 L.i("[Init] Explicit storage mode is being enabled");
             }
 
+            if (config.fileBackedRequestQueueEnabled) {
+                L.i("[Init] File backed request queue is being enabled");
+            }
+
+            if (config.binaryRecordFormatEnabled) {
+                L.i("[Init] Binary record format is being enabled");
+            }
+
             //set or create the CountlyStore
             if (config.countlyStore != null) {
                 //we are running a test and using a mock object
                 countlyStore = config.countlyStore;
             } else {
-                countlyStore = new CountlyStore(config.context, L, config.explicitStorageModeEnabled);
+                countlyStore = new CountlyStore(config.context, L, config.explicitStorageModeEnabled, config.fileBackedRequestQueueEnabled, config.binaryRecordFormatEnabled);
                 config.setCountlyStore(countlyStore);
             }
 
@@ -449,6 +457,21 @@ public class Countly {
             L.d("[Init] request queue size set to [" + config.maxRequestQueueSize + "]");
             countlyStore.setLimits(config.maxRequestQueueSize);
 
+            if (config.maxRequestQueueBytes > 0) {
+                L.d("[Init] request queue byte limit set to [" + config.maxRequestQueueBytes + "]");
+                countlyStore.setRequestQueueByteLimit(config.maxRequestQueueBytes);
+            }
+
+            if (config.requestPriorityEnabled) {
+                L.d("[Init] Enabling request priority lanes");
+                countlyStore.setRequestPriorityEnabled(true);
+            }
+
+            if (config.storageWriteCoalescingWindowMs > 0) {
+                L.d("[Init] storage write coalescing window set to [" + config.storageWriteCoalescingWindowMs + "] ms");
+                countlyStore.setWriteCoalescingWindow(config.storageWriteCoalescingWindowMs);
+            }
+
             if (config.storageProvider == null) {
                 // outside of tests this should be null
                 config.storageProvider = config.countlyStore;
@@ -470,20 +493,12 @@ public class Countly {
 
             if (config.safeViewIDGenerator == null) {
                 //if we didn't override this for a test
-                config.safeViewIDGenerator = new SafeIDGenerator() {
-                    @NonNull @Override public String GenerateValue() {
-                        return Utils.safeRandomVal();
-                    }
-                };
+                config.safeViewIDGenerator = SecureIDGenerator.shared;
             }
 
             if (config.safeEventIDGenerator == null) {
                 //if we didn't override this for a test
-                config.safeEventIDGenerator = new SafeIDGenerator() {
-                    @NonNull @Override public String GenerateValue() {
-                        return Utils.safeRandomVal();
-                    }
-                };
+                config.safeEventIDGenerator = SecureIDGenerator.shared;
             }
 
             if (config.immediateRequestGenerator == null) {
@@ -638,6 +653,25 @@ public class Countly {
             connectionQueue_.consentProvider = moduleConsent;
             connectionQueue_.moduleRequestQueue = moduleRequestQueue;
             connectionQueue_.deviceInfo = config.deviceInfo;
+            if (config.maxRequestsPerBulk > 1) {
+                L.d("[Init] Enabling bulk request upload, max requests per bulk:[" + config.maxRequestsPerBulk + "]");
+                connectionQueue_.maxRequestsPerBulk = config.maxRequestsPerBulk;
+            }
+            if (config.requestCompressionThreshold >= 0) {
+                L.d("[Init] Enabling request compression, threshold:[" + config.requestCompressionThreshold + " B]");
+                connectionQueue_.requestCompressionThreshold = config.requestCompressionThreshold;
+            }
+            if (config.requestRetryBaseDelayMs > 0) {
+                L.d("[Init] Enabling request retry backoff, base delay:[" + config.requestRetryBaseDelayMs + "] max delay:[" + config.requestRetryMaxDelayMs + "]");
+                connectionQueue_.retryScheduler = new RequestRetryScheduler(config.requestRetryBaseDelayMs, config.requestRetryMaxDelayMs, L);
+            }
+            connectionQueue_.eventBatchingPolicy = moduleRequestQueue.eventBatchingPolicy;
+            ImmediateRequestMaker.requestTimeoutMs = config.immediateRequestTimeoutMs > 0 ? config.immediateRequestTimeoutMs : ImmediateRequestMaker.DEFAULT_TIMEOUT_MS;
+
+            if (config.httpTransport != null) {
+                L.d("[Init] Using a custom HTTP transport");
+                connectionQueue_.httpTransport = config.httpTransport;
+            }
             connectionQueue_.setStorageProvider(config.storageProvider);
             connectionQueue_.setupSSLContext();
             connectionQueue_.setBaseInfoProvider(config.baseInfoProvider);
@@ -813,8 +847,15 @@ public class Countly {
             connectionQueue_ = null;
         }
 
+        if (countlyStore != null) {
+            countlyStore.halt();
+        }
+
         activityCount_ = 0;
 
+        //pending immediate requests would otherwise call back into halted modules
+        ImmediateRequestMaker.cancelAll();
+
         for (ModuleBase module : modules) {
             module.halt();
         }
@@ -982,7 +1023,7 @@ public class Countly {
 
             //on every timer tick we collect all events and attempt to send requests
             {
-                moduleRequestQueue.sendEventsIfNeeded(true);
+                moduleRequestQueue.sendEventsOnTimer();
             }
             requestQueueProvider.tick();
         }
@@ -200,6 +200,33 @@ public class CountlyConfig {
 
     int maxRequestQueueSize = 1000;
 
+    long maxRequestQueueBytes = 0;
+
+    long storageWriteCoalescingWindowMs = 0;
+
+    int maxRequestsPerBulk = 0;
+
+    boolean requestPriorityEnabled = false;
+
+    int requestCompressionThreshold = -1;
+
+    long requestRetryBaseDelayMs = 0;
+    long requestRetryMaxDelayMs = 0;
+
+    int eventAggregationWindowSeconds = 0;
+
+    boolean asyncEventRecordingEnabled = false;
+
+    boolean adaptiveEventBatchingEnabled = false;
+    int adaptiveEventBatchingMinThreshold = 0;
+    int adaptiveEventBatchingMaxThreshold = 0;
+    int adaptiveEventBatchingMinIntervalSeconds = 0;
+    int adaptiveEventBatchingMaxIntervalSeconds = 0;
+
+    HttpTransport httpTransport = null;
+
+    int immediateRequestTimeoutMs = 0;
+
     ModuleLog.LogCallback providedLogCallback;
 
     String daCampaignType = null;
@@ -208,6 +235,10 @@ public class CountlyConfig {
 
     boolean explicitStorageModeEnabled = false;
 
+    boolean fileBackedRequestQueueEnabled = false;
+
+    boolean binaryRecordFormatEnabled = false;
+
     boolean serverConfigurationEnabled = false;
 
     boolean healthCheckEnabled = true;
@@ -746,6 +777,34 @@ public class CountlyConfig {
         return this;
     }
 
+    /**
+     * If enabled, custom events with the same key, segmentation and current view that are recorded
+     * within the given window are merged into a single event. Their count, sum and duration are added together.
+     * The merged event keeps the ID and timestamp of the first event.
+     * Merged events are added to the event queue when the window ends or when the event queue is sent.
+     * Internal events, like views and feedback, and events recorded with a custom timestamp are never merged.
+     *
+     * @param windowSeconds length of the aggregation window in seconds, 0 to disable aggregation
+     * @return Returns the same config object for convenient linking
+     */
+    public synchronized CountlyConfig enableEventAggregation(int windowSeconds) {
+        eventAggregationWindowSeconds = windowSeconds;
+        return this;
+    }
+
+    /**
+     * If enabled, 'recordEvent' only validates and timestamps the event on the calling thread
+     * and a single SDK thread writes it to the event queue. The call does not wait for the SDK lock or storage.
+     * Consent is checked when the event is written. Events are written in the order they were recorded
+     * and all pending events are written before the event queue is sent.
+     *
+     * @return Returns the same config object for convenient linking
+     */
+    public synchronized CountlyConfig enableAsyncEventRecording() {
+        asyncEventRecordingEnabled = true;
+        return this;
+    }
+
     public synchronized CountlyConfig enableManualSessionControl() {
         manualSessionControlEnabled = true;
         return this;
@@ -962,6 +1021,136 @@ public class CountlyConfig {
         return this;
     }
 
+    /**
+     * Set the maximum size of the request queue in bytes, in addition to the request count limit.
+     * When a new request would go over it, the oldest requests are dropped until it fits.
+     * A single request that is larger than the limit is still stored.
+     *
+     * @param maxBytes maximum size in bytes, '0' disables the limit
+     * @return Returns the same config object for convenient linking
+     */
+    public synchronized CountlyConfig setMaxRequestQueueByteSize(long maxBytes) {
+        maxRequestQueueBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * Set's the time window in which request and event queue writes are combined into a single storage write.
+     * Writes that have to be persisted immediately, like crash requests, are still written right away
+     * together with everything that is pending.
+     *
+     * Has no effect if explicit storage mode is enabled.
+     *
+     * @param windowMs window length in milliseconds, "0" disables coalescing
+     * @return Returns the same config object for convenient linking
+     */
+    public synchronized CountlyConfig setStorageWriteCoalescingWindow(long windowMs) {
+        storageWriteCoalescingWindowMs = windowMs;
+        return this;
+    }
+
+    /**
+     * If enabled, multiple stored requests are sent to the server's bulk endpoint in a single request.
+     * This reduces the amount of round trips needed to send out a queue that has built up while offline.
+     *
+     * Requests that change the device ID or upload a picture are still sent one by one.
+     *
+     * @param maxRequestsPerBulk the maximum amount of requests sent together, values below 2 disable bulk uploads
+     * @return Returns the same config object for convenient linking
+     */
+    public synchronized CountlyConfig enableBulkRequestUpload(int maxRequestsPerBulk) {
+        this.maxRequestsPerBulk = maxRequestsPerBulk;
+        return this;
+    }
+
+    /**
+     * If enabled, the request queue is sent in priority lanes instead of strictly in the recorded order.
+     * Crash reports, consent changes and device ID changes are sent first, event batches and APM traces last.
+     * Requests are never reordered across a device ID change.
+     * When the request queue is full, the oldest request of the least important lane is dropped.
+     *
+     * @return Returns the same config object for convenient linking
+     */
+    public synchronized CountlyConfig enableRequestPriority() {
+        requestPriorityEnabled = true;
+        return this;
+    }
+
+    /**
+     * If enabled, POST request bodies of at least the given size are sent gzip compressed
+     * with the "Content-Encoding: gzip" header. The request checksum is still calculated from the uncompressed data.
+     * Only enable this if your server, or a proxy in front of it, accepts compressed request bodies.
+     *
+     * @param minBodySizeBytes smallest body size in bytes that gets compressed
+     * @return Returns the same config object for convenient linking
+     */
+    public synchronized CountlyConfig enableRequestCompression(int minBodySizeBytes) {
+        requestCompressionThreshold = Math.max(0, minBodySizeBytes);
+        return this;
+    }
+
+    /**
+     * If enabled, the SDK waits before retrying after the request queue failed to be sent.
+     * The delay doubles with each consecutive failure up to the given maximum and is partly randomised.
+     * A 'Retry-After' header in the server response overrides the delay.
+     * Calling 'attemptToSendStoredRequests' still tries to send right away.
+     *
+     * @param baseDelayMs delay after the first failure in milliseconds
+     * @param maxDelayMs maximum delay in milliseconds
+     * @return Returns the same config object for convenient linking
+     */
+    public synchronized CountlyConfig enableRequestRetryBackoff(long baseDelayMs, long maxDelayMs) {
+        requestRetryBaseDelayMs = baseDelayMs;
+        requestRetryMaxDelayMs = maxDelayMs;
+        return this;
+    }
+
+    /**
+     * If enabled, the event queue threshold and how often the timer flushes the event queue are adjusted
+     * to the network conditions seen while sending the request queue.
+     * On a fast and reliable connection events are sent in small batches and often,
+     * on a slow or failing connection they are collected into larger batches and sent less often.
+     * This replaces the threshold set with 'setEventQueueSizeToSend'.
+     * The timer still runs at the session update interval, so flush intervals shorter than it have no effect.
+     *
+     * @param minEventThreshold event queue threshold on the best connection
+     * @param maxEventThreshold event queue threshold on the worst connection
+     * @param minFlushIntervalSeconds time between timer flushes on the best connection
+     * @param maxFlushIntervalSeconds time between timer flushes on the worst connection
+     * @return Returns the same config object for convenient linking
+     */
+    public synchronized CountlyConfig enableAdaptiveEventBatching(int minEventThreshold, int maxEventThreshold, int minFlushIntervalSeconds, int maxFlushIntervalSeconds) {
+        adaptiveEventBatchingEnabled = true;
+        adaptiveEventBatchingMinThreshold = minEventThreshold;
+        adaptiveEventBatchingMaxThreshold = maxEventThreshold;
+        adaptiveEventBatchingMinIntervalSeconds = minFlushIntervalSeconds;
+        adaptiveEventBatchingMaxIntervalSeconds = maxFlushIntervalSeconds;
+        return this;
+    }
+
+    /**
+     * Set the transport that opens the connections to the server.
+     * By default the platform 'HttpURLConnection' is used.
+     *
+     * @param httpTransport transport to use, 'null' to use the default one
+     * @return Returns the same config object for convenient linking
+     */
+    public synchronized CountlyConfig setHttpTransport(HttpTransport httpTransport) {
+        this.httpTransport = httpTransport;
+        return this;
+    }
+
+    /**
+     * Set the connect and read timeout of immediate requests, like remote config, feedback widget and server config downloads
+     *
+     * @param timeoutMs timeout in milliseconds, the default is 30 seconds
+     * @return Returns the same config object for convenient linking
+     */
+    public synchronized CountlyConfig setImmediateRequestTimeout(int timeoutMs) {
+        immediateRequestTimeoutMs = timeoutMs;
+        return this;
+    }
+
     /**
      * Report direct user attribution
      *
@@ -1009,6 +1198,37 @@ public class CountlyConfig {
         return this;
     }
 
+    /**
+     * If this mode is enabled then the request queue is stored in an append-only file log
+     * instead of a single SharedPreferences value. Adding and removing requests will then not
+     * rewrite the whole request queue.
+     *
+     * Requests that are already stored are moved to the new storage during init.
+     * This mode is ignored if explicit storage mode is enabled.
+     *
+     * @return Returns the same config object for convenient linking
+     */
+    public synchronized CountlyConfig enableFileBackedRequestQueue() {
+        fileBackedRequestQueueEnabled = true;
+        return this;
+    }
+
+    /**
+     * If this mode is enabled then events and requests are stored in a compact binary format.
+     * The event queue is stored in a file instead of a SharedPreferences JSON value
+     * and the file backed request queue is used, with requests in binary records instead of query strings.
+     * This takes less storage and stored data is read faster on startup.
+     *
+     * Events and requests that are already stored are converted during init.
+     * This mode is ignored if explicit storage mode is enabled.
+     *
+     * @return Returns the same config object for convenient linking
+     */
+    public synchronized CountlyConfig enableBinaryRecordFormat() {
+        binaryRecordFormatEnabled = true;
+        return this;
+    }
+
     /**
      * This is an experimental feature and it can have breaking changes
      *
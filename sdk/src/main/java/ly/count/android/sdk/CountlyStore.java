@@ -26,18 +26,23 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import java.io.UnsupportedEncodingException;
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import org.json.JSONArray;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * This class provides a persistence layer for the local event &amp; connection queues.
@@ -67,6 +72,8 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
     private static final String PREFERENCE_SERVER_CONFIG = "SERVER_CONFIG";
 
     private static final String PREFERENCE_HEALTH_CHECK_STATE = "HEALTH_CHECK";
+    //record format the stored events and requests were last converted to
+    private static final String PREFERENCE_BINARY_RECORD_FORMAT = "BINARY_RECORD_FORMAT";
 
     private static final String CACHED_PUSH_ACTION_ID = "PUSH_ACTION_ID";
     private static final String CACHED_PUSH_ACTION_INDEX = "PUSH_ACTION_INDEX";
@@ -84,6 +91,7 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
     ConfigurationProvider configurationProvider;
 
     int maxRequestQueueSize = 1000;
+    long maxRequestQueueBytes = 0;//'0' means that the request queue size in bytes is not limited
 
     //explicit storage fields
     boolean explicitStorageModeEnabled;
@@ -92,6 +100,44 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
     String esEventQueueCache = null;//'null' is a special value that indicates that it hasn't read what is in persistent storage
     String esHealthCheckCache = null;//'null' is a special value that indicates that it hasn't read what is in persistent storage
 
+    //file backed request queue fields
+    File requestQueueLogDirectory = null;
+    RequestQueueFileLog requestQueueLog = null;//'null' if the request queue is stored in preferences
+
+    //binary record format fields
+    boolean binaryRecordFormatEnabled = false;
+    File eventQueueFileLocation = null;
+    EventQueueFile eventQueueFile = null;//'null' if the event queue is stored in preferences
+
+    //parsed request queue, it is rebuilt only when the stored value it was parsed from changes
+    final ArrayDeque<String> requestQueueModel = new ArrayDeque<>();
+    String requestQueueModelSource = null;
+
+    //if enabled, critical requests are sent before normal ones and normal ones before bulk traffic
+    boolean requestPriorityEnabled = false;
+
+    //metadata of the stored requests, keyed by the request instances held by the queue
+    //it is filled for the whole queue when first needed and then kept up to date as requests are added and removed
+    final IdentityHashMap<String, RequestMetadata> requestMetadataCache = new IdentityHashMap<>();
+    boolean requestMetadataLoaded = false;
+
+    //stored requests by priority lane, built from the metadata cache when priorities are first needed, 'null' if not built
+    RequestLanes requestLanes = null;
+
+    //write coalescing fields, only used when explicit storage mode is disabled
+    long writeCoalescingWindowMs = 0;//'0' means that every write is applied immediately
+    boolean pendingRequestQueueWrite = false;
+    String pendingRequestQueue = null;
+    boolean pendingEventQueueWrite = false;
+    String pendingEventQueue = null;
+    boolean pendingWriteFlushScheduled = false;
+
+    //thread for delayed writes and request queue rewrites, created when first needed
+    ScheduledExecutorService storageExecutor = null;
+
+    //amount of events in the event queue, counted once on creation and then kept up to date by every event queue write
+    int eventQueueSize = 0;
+
     /**
      * Constructs a CountlyStore object.
      *
@@ -102,19 +148,127 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
     }
 
     public CountlyStore(final Context context, ModuleLog logModule, boolean explicitStorageModeEnabled) {
+        this(context, logModule, explicitStorageModeEnabled, false);
+    }
+
+    public CountlyStore(final Context context, ModuleLog logModule, boolean explicitStorageModeEnabled, boolean fileBackedRequestQueueEnabled) {
+        this(context, logModule, explicitStorageModeEnabled, fileBackedRequestQueueEnabled, false);
+    }
+
+    public CountlyStore(final Context context, ModuleLog logModule, boolean explicitStorageModeEnabled, boolean fileBackedRequestQueueEnabled, boolean binaryRecordFormatEnabled) {
         if (context == null) {
             throw new IllegalArgumentException("must provide valid context");
         }
         this.explicitStorageModeEnabled = explicitStorageModeEnabled;
+        this.binaryRecordFormatEnabled = binaryRecordFormatEnabled;
         preferences_ = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
         preferencesPush_ = createPreferencesPush(context);
         L = logModule;
+
+        File filesDir = context.getFilesDir();
+        if (filesDir != null) {
+            requestQueueLogDirectory = RequestQueueFileLog.logDirectory(filesDir);
+            eventQueueFileLocation = EventQueueFile.queueFile(filesDir);
+        }
+
+        //binary requests are only stored in the file backed request queue
+        if (fileBackedRequestQueueEnabled || binaryRecordFormatEnabled) {
+            setupRequestQueueLog();
+        }
+
+        if (binaryRecordFormatEnabled) {
+            setupEventQueueFile();
+        }
+
+        if (eventQueueFile != null) {
+            eventQueueSize = eventQueueFile.size();
+        } else {
+            //the explicit storage cache starts out with the same value, so this is valid for both modes
+            eventQueueSize = countEntries(preferences_.getString(EVENTS_PREFERENCE, ""));
+        }
+    }
+
+    private void setupRequestQueueLog() {
+        if (explicitStorageModeEnabled) {
+            L.w("[CountlyStore] File backed request queue is not used together with explicit storage mode");
+            return;
+        }
+
+        if (requestQueueLogDirectory == null) {
+            L.w("[CountlyStore] File backed request queue can't be used, files directory is not available");
+            return;
+        }
+
+        RequestQueueFileLog log = new RequestQueueFileLog(requestQueueLogDirectory, L);
+        log.compactRecordsEnabled = binaryRecordFormatEnabled;
+        if (log.open()) {
+            L.d("[CountlyStore] Using file backed request queue");
+            requestQueueLog = log;
+        } else {
+            L.e("[CountlyStore] Failed to open the file backed request queue, falling back to preferences");
+        }
+    }
+
+    private void setupEventQueueFile() {
+        if (explicitStorageModeEnabled) {
+            L.w("[CountlyStore] Binary event queue is not used together with explicit storage mode");
+            return;
+        }
+
+        if (eventQueueFileLocation == null) {
+            L.w("[CountlyStore] Binary event queue can't be used, files directory is not available");
+            return;
+        }
+
+        EventQueueFile queueFile = new EventQueueFile(eventQueueFileLocation, L);
+        if (queueFile.open()) {
+            L.d("[CountlyStore] Using binary event queue");
+            eventQueueFile = queueFile;
+        } else {
+            L.e("[CountlyStore] Failed to open the binary event queue, falling back to preferences");
+        }
     }
 
     public void setLimits(final int maxRequestQueueSize) {
         this.maxRequestQueueSize = maxRequestQueueSize;
     }
 
+    /**
+     * Sets the maximum size of the request queue in bytes, in addition to the request count limit
+     *
+     * @param maxBytes maximum size in bytes, '0' or less disables the limit
+     */
+    public synchronized void setRequestQueueByteLimit(final long maxBytes) {
+        maxRequestQueueBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * Returns 'true' if adding a request of the given size would go over one of the request queue limits
+     */
+    private boolean requestQueueLimitReached(int requestCount, long requestQueueBytes, long addedBytes) {
+        if (requestCount == 0) {
+            //a request that is larger than the byte limit on its own is still kept
+            return false;
+        }
+        return requestCount >= maxRequestQueueSize || (maxRequestQueueBytes > 0 && requestQueueBytes + addedBytes > maxRequestQueueBytes);
+    }
+
+    /**
+     * Sets the time window in which request and event queue writes are combined into a single preference write.
+     *
+     * @param windowMs window length in milliseconds, '0' or less disables coalescing
+     */
+    public synchronized void setWriteCoalescingWindow(final long windowMs) {
+        if (windowMs <= 0) {
+            flushPendingWrites(false);
+        }
+        writeCoalescingWindowMs = windowMs;
+    }
+
+    public synchronized void setRequestPriorityEnabled(final boolean enabled) {
+        requestPriorityEnabled = enabled;
+    }
+
     public void setConfigurationProvider(ConfigurationProvider configurationProvider) {
         this.configurationProvider = configurationProvider;
     }
@@ -134,15 +288,55 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
             return esRequestQueueCache;
         } else {
             //L.v("[CountlyStore] Returning RQ from preferences");
+            if (pendingRequestQueueWrite) {
+                return pendingRequestQueue == null ? "" : pendingRequestQueue;
+            }
             return preferences_.getString(REQUEST_PREFERENCE, "");
         }
     }
 
+    /**
+     * Returns the parsed request queue.
+     * The stored value is split only if it is different from the one the current model was parsed from.
+     * Preferences and the explicit storage cache return the same string instance until the value is changed,
+     * therefore in most cases this is just a reference comparison.
+     */
+    private @NonNull ArrayDeque<String> readRequestQueueModel() {
+        final String joinedConnStr = storageReadRequestQueue();
+
+        //noinspection StringEquality
+        if (joinedConnStr != requestQueueModelSource) {
+            if (!joinedConnStr.equals(requestQueueModelSource)) {
+                requestQueueModel.clear();
+                if (joinedConnStr.length() > 0) {
+                    Collections.addAll(requestQueueModel, joinedConnStr.split(DELIMITER));
+                }
+                forgetRequestMetadata();
+            }
+            requestQueueModelSource = joinedConnStr;
+        }
+
+        return requestQueueModel;
+    }
+
+    /**
+     * Serializes the request queue model and writes it to storage
+     */
+    private void writeRequestQueueModel(boolean writeInSync) {
+        final String joinedConnStr = Utils.joinCountlyStore(requestQueueModel, DELIMITER);
+        storageWriteRequestQueue(joinedConnStr, writeInSync);
+        requestQueueModelSource = joinedConnStr;
+    }
+
     private void storageWriteRequestQueue(@Nullable String requestQueue, boolean writeInSync) {
         if (explicitStorageModeEnabled) {
             //L.v("[CountlyStore] Writing RQ to cache");
             esRequestQueueCache = requestQueue;
             esDirtyFlag = true;
+        } else if (writeCoalescingWindowMs > 0) {
+            pendingRequestQueue = requestQueue;
+            pendingRequestQueueWrite = true;
+            schedulePendingWrites(writeInSync);
         } else {
             //L.v("[CountlyStore] Writing RQ to preferences");
             SharedPreferences.Editor editor = preferences_.edit().putString(REQUEST_PREFERENCE, requestQueue);
@@ -166,15 +360,42 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
             return esEventQueueCache;
         } else {
             //L.v("[CountlyStore] Returning EQ from preferences");
+            if (pendingEventQueueWrite) {
+                return pendingEventQueue == null ? "" : pendingEventQueue;
+            }
             return preferences_.getString(EVENTS_PREFERENCE, "");
         }
     }
 
+    /**
+     * Counts delimited entries without splitting the string.
+     * Gives the same result as the length of the 'split' result for values without empty entries.
+     */
+    static int countEntries(@NonNull String joinedStr) {
+        if (joinedStr.length() == 0) {
+            return 0;
+        }
+
+        int count = 1;
+        int index = joinedStr.indexOf(DELIMITER);
+        while (index >= 0) {
+            count++;
+            index = joinedStr.indexOf(DELIMITER, index + DELIMITER.length());
+        }
+
+        return count;
+    }
+
     private void storageWriteEventQueue(@Nullable String eventQueue, boolean writeInSync) {
         if (explicitStorageModeEnabled) {
             L.v("[CountlyStore] Writing EQ to cache");
             esEventQueueCache = eventQueue;
             esDirtyFlag = true;
+        } else if (writeCoalescingWindowMs > 0) {
+            L.v("[CountlyStore] Writing EQ to pending writes");
+            pendingEventQueue = eventQueue;
+            pendingEventQueueWrite = true;
+            schedulePendingWrites(writeInSync);
         } else {
             L.v("[CountlyStore] Writing EQ to preferences");
             SharedPreferences.Editor editor = preferences_.edit().putString(EVENTS_PREFERENCE, eventQueue);
@@ -187,6 +408,90 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
         }
     }
 
+    /**
+     * Makes sure that the pending writes reach preferences.
+     * Writes that need to be in sync are flushed immediately, otherwise a flush is scheduled at the end of the window.
+     */
+    private void schedulePendingWrites(boolean writeInSync) {
+        if (writeInSync) {
+            flushPendingWrites(true);
+            return;
+        }
+
+        if (pendingWriteFlushScheduled) {
+            //this write will be included in the already scheduled flush
+            return;
+        }
+
+        pendingWriteFlushScheduled = true;
+        storageExecutor().schedule(new Runnable() {
+            @Override public void run() {
+                synchronized (CountlyStore.this) {
+                    flushPendingWrites(false);
+                }
+            }
+        }, writeCoalescingWindowMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized @NonNull ScheduledExecutorService storageExecutor() {
+        if (storageExecutor == null) {
+            storageExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Countly-Storage");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return storageExecutor;
+    }
+
+    /**
+     * Writes the pending changes and stops the storage thread.
+     * Rewrites that were already submitted still finish, the thread is started again if it is needed later.
+     */
+    synchronized void halt() {
+        flushPendingWrites(true);
+
+        if (storageExecutor != null) {
+            storageExecutor.shutdown();
+            storageExecutor = null;
+        }
+    }
+
+    /**
+     * Writes the pending request and event queue values to preferences with a single editor
+     *
+     * @param writeInSync if 'true', the values are committed synchronously
+     */
+    @SuppressLint("ApplySharedPref")
+    synchronized void flushPendingWrites(boolean writeInSync) {
+        pendingWriteFlushScheduled = false;
+
+        if (!pendingRequestQueueWrite && !pendingEventQueueWrite) {
+            return;
+        }
+
+        SharedPreferences.Editor editor = preferences_.edit();
+        if (pendingRequestQueueWrite) {
+            editor.putString(REQUEST_PREFERENCE, pendingRequestQueue);
+        }
+        if (pendingEventQueueWrite) {
+            editor.putString(EVENTS_PREFERENCE, pendingEventQueue);
+        }
+
+        pendingRequestQueueWrite = false;
+        pendingRequestQueue = null;
+        pendingEventQueueWrite = false;
+        pendingEventQueue = null;
+
+        if (writeInSync) {
+            editor.commit();
+        } else {
+            editor.apply();
+        }
+    }
+
     public synchronized void esWriteCacheToStorage(@Nullable ExplicitStorageCallback callback) {
         L.v("[CountlyStore] Trying to write ES cache to storage[" + explicitStorageModeEnabled + "], is dirty flag:[" + esDirtyFlag + "]");
         if (explicitStorageModeEnabled) {
@@ -257,14 +562,179 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
      * Returns an unsorted array of the current stored connections.
      */
     public synchronized String[] getRequests() {
-        final String joinedConnStr = storageReadRequestQueue();
-        return joinedConnStr.length() == 0 ? new String[0] : joinedConnStr.split(DELIMITER);
+        if (requestQueueLog != null) {
+            return requestQueueLog.readAll();
+        }
+
+        return readRequestQueueModel().toArray(new String[0]);
+    }
+
+    /**
+     * Returns the request that should be sent next without copying the request queue.
+     * That is the oldest stored request, unless request priorities are enabled.
+     *
+     * @return the next request or 'null' if the request queue is empty
+     */
+    public synchronized @Nullable String peekRequest() {
+        if (requestPriorityEnabled) {
+            return nextRequestByPriority();
+        }
+
+        if (requestQueueLog != null) {
+            return requestQueueLog.peek();
+        }
+
+        return readRequestQueueModel().peekFirst();
+    }
+
+    private @NonNull Iterator<String> requestQueueIterator() {
+        if (requestQueueLog != null) {
+            return requestQueueLog.requestIterator();
+        }
+
+        return readRequestQueueModel().iterator();
+    }
+
+    /**
+     * Returns the oldest request of the most important priority lane.
+     * Requests after a device ID change are not considered, so they can't be sent before it.
+     */
+    private @Nullable String nextRequestByPriority() {
+        return requestLanes().next();
+    }
+
+    /**
+     * Returns the request that is dropped when the queue is full.
+     * That is the oldest request, or with request priorities the oldest request of the least important lane.
+     */
+    private @Nullable String evictionCandidate() {
+        if (requestPriorityEnabled) {
+            return requestLanes().evictionCandidate();
+        }
+
+        Iterator<String> iterator = requestQueueIterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * Returns the priority lanes of the stored requests, they are built from the whole queue only once
+     * and then kept up to date as requests are added and removed
+     */
+    private @NonNull RequestLanes requestLanes() {
+        loadRequestMetadata();
+
+        if (requestLanes == null) {
+            requestLanes = new RequestLanes();
+            Iterator<String> iterator = requestQueueIterator();
+            while (iterator.hasNext()) {
+                String request = iterator.next();
+                RequestMetadata metadata = requestMetadataCache.get(request);
+                requestLanes.add(request, metadata != null ? metadata : RequestMetadata.parse(request));
+            }
+        }
+
+        return requestLanes;
+    }
+
+    /**
+     * Returns up to the given amount of the oldest stored requests, oldest first
+     */
+    public synchronized @NonNull String[] peekRequests(int maxCount) {
+        if (requestQueueLog != null) {
+            return requestQueueLog.peek(maxCount);
+        }
+
+        ArrayDeque<String> requestQueue = readRequestQueueModel();
+        String[] result = new String[Math.max(0, Math.min(maxCount, requestQueue.size()))];
+        Iterator<String> iterator = requestQueue.iterator();
+        for (int a = 0; a < result.length; a++) {
+            result[a] = iterator.next();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the metadata of the given request.
+     * The metadata of a stored request is parsed only once, other requests are parsed without caching them.
+     */
+    public synchronized @NonNull RequestMetadata getRequestMetadata(@NonNull String request) {
+        loadRequestMetadata();
+        RequestMetadata metadata = requestMetadataCache.get(request);
+        return metadata != null ? metadata : RequestMetadata.parse(request);
+    }
+
+    /**
+     * Parses the metadata of every stored request, if that hasn't been done since the queue was last loaded
+     */
+    private void loadRequestMetadata() {
+        //reading the queue first, as a changed stored value resets the cache
+        Iterator<String> iterator = requestQueueIterator();
+        if (requestMetadataLoaded) {
+            return;
+        }
+
+        requestMetadataCache.clear();
+        while (iterator.hasNext()) {
+            String request = iterator.next();
+            requestMetadataCache.put(request, RequestMetadata.parse(request));
+        }
+        requestMetadataLoaded = true;
+    }
+
+    /**
+     * Caches the metadata of a request that was just added to the queue
+     */
+    private void rememberRequest(@NonNull String request) {
+        if (requestMetadataLoaded) {
+            RequestMetadata metadata = RequestMetadata.parse(request);
+            requestMetadataCache.put(request, metadata);
+            if (requestLanes != null) {
+                requestLanes.add(request, metadata);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached metadata of a request that was removed from the queue
+     */
+    private void forgetRequest(@Nullable String request) {
+        if (request == null || !requestMetadataLoaded) {
+            return;
+        }
+
+        if (requestMetadataCache.remove(request) == null || (requestLanes != null && !requestLanes.remove(request))) {
+            //not the stored instance, the stored one can't be found without a search, so the cache is loaded again when needed
+            forgetRequestMetadata();
+        }
+    }
+
+    private void forgetRequestMetadata() {
+        requestMetadataCache.clear();
+        requestMetadataLoaded = false;
+        requestLanes = null;
+    }
+
+    public synchronized int getRequestQueueSize() {
+        if (requestQueueLog != null) {
+            return requestQueueLog.size();
+        }
+
+        return readRequestQueueModel().size();
     }
 
     /**
      * Returns an unsorted array of the current stored event JSON strings.
      */
     public synchronized String[] getEvents() {
+        if (eventQueueFile != null) {
+            final List<Event> events = eventQueueFile.readAll();
+            final String[] result = new String[events.size()];
+            for (int a = 0; a < result.length; a++) {
+                result[a] = EventJsonWriter.eventJson(events.get(a));
+            }
+            return result;
+        }
+
         final String joinedEventsStr = storageReadEventQueue();
         return joinedEventsStr.length() == 0 ? new String[0] : joinedEventsStr.split(DELIMITER);
     }
@@ -273,19 +743,7 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
      * Returns a list of the current stored events, sorted by timestamp from oldest to newest.
      */
     public synchronized List<Event> getEventList() {
-        final String[] array = getEvents();
-        final List<Event> events = new ArrayList<>(array.length);
-        for (String s : array) {
-            try {
-                final Event event = Event.fromJSON(new JSONObject(s));
-                if (event != null) {
-                    events.add(event);
-                }
-            } catch (JSONException ignored) {
-                // should not happen since JSONObject is being constructed from previously stringified JSONObject
-                // events -> json objects -> json strings -> storage -> json strings -> here
-            }
-        }
+        final List<Event> events = eventQueueFile != null ? eventQueueFile.readAll() : readEvents(getEvents());
         // order the events from least to most recent
         Collections.sort(events, new Comparator<Event>() {
             @Override
@@ -296,13 +754,29 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
         return events;
     }
 
+    private static @NonNull List<Event> readEvents(@NonNull String[] eventJsons) {
+        final List<Event> events = new ArrayList<>(eventJsons.length);
+        for (String s : eventJsons) {
+            try {
+                final Event event = EventJsonReader.readEvent(s);
+                if (event != null) {
+                    events.add(event);
+                }
+            } catch (JSONException ignored) {
+                // should not happen since the events are read from previously written event JSON
+                // events -> json strings -> storage -> json strings -> here
+            }
+        }
+        return events;
+    }
+
     /**
      * Returns the number of events in the local event queue.
      *
      * @return the number of events in the local event queue
      */
     public synchronized int getEventQueueSize() {
-        return getEvents().length;
+        return eventQueueSize;
     }
 
     /**
@@ -312,30 +786,28 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
      * @return URL-encoded JSON string of event data from the local event queue
      */
     public synchronized String getEventsForRequestAndEmptyEventQueue() {
-        String result;
-
+        //events are only materialized here, when the batch is created
         final List<Event> events = getEventList();
 
-        final JSONArray eventArray = new JSONArray();
-        for (Event e : events) {
-            eventArray.put(e.toJSON());
-        }
-
-        result = eventArray.toString();
-
-        removeEvents(events);
+        //written directly as URL-encoded JSON, without intermediate JSON objects and strings
+        final String result = EventJsonWriter.urlEncodedEventArray(events);
 
-        try {
-            result = java.net.URLEncoder.encode(result, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            // should never happen because Android guarantees UTF-8 support
-            L.w("[CountelyStore] getEventsForRequestAndEmptyEventQueue, why is this even happening?");
+        //everything that was stored is now in the batch, entries that could not be parsed are dropped
+        if (eventQueueFile != null) {
+            eventQueueFile.clear();
+        } else if (storageReadEventQueue().length() > 0) {
+            storageWriteEventQueue("", false);
         }
+        eventQueueSize = 0;
 
         return result;
     }
 
     @NonNull public synchronized String getRequestQueueRaw() {
+        if (requestQueueLog != null) {
+            return Utils.joinCountlyStore(Arrays.asList(requestQueueLog.readAll()), DELIMITER);
+        }
+
         return storageReadRequestQueue();
     }
 
@@ -352,29 +824,56 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
         }
 
         if (requestStr != null && requestStr.length() > 0) {
-            final List<String> connections = new ArrayList<>(Arrays.asList(getRequests()));
+            if (requestQueueLog != null) {
+                L.v("[CountlyStore] addRequest, s:[" + writeInSync + "] new q size:[" + (requestQueueLog.size() + 1) + "] r:[" + requestStr + "]");
+                //the byte limit is compared with the size of the stored records, so the request is measured the way it is stored
+                final byte[] record = requestQueueLog.createRecord(requestStr);
+                while (requestQueueLimitReached(requestQueueLog.size(), requestQueueLog.liveBytes(), record.length)) {
+                    L.w("[CountlyStore] Store reached it's limit, deleting oldest request");
+                    String evicted = evictionCandidate();
+                    forgetRequest(evicted);
+                    requestQueueLog.remove(evicted);
+                }
+                if (requestQueueLog.append(requestStr, record, writeInSync)) {
+                    rememberRequest(requestStr);
+                }
+                return;
+            }
+
+            final ArrayDeque<String> connections = readRequestQueueModel();
 
             L.v("[CountlyStore] addRequest, s:[" + writeInSync + "] new q size:[" + (connections.size() + 1) + "] r:[" + requestStr + "]");
-            if (connections.size() < maxRequestQueueSize) {
-                //request under max requests, add as normal
-                connections.add(requestStr);
-                storageWriteRequestQueue(Utils.joinCountlyStore(connections, DELIMITER), writeInSync);
-            } else {
+            //the size of the stored value is tracked from the joined string, each request adds its delimiter
+            long queueBytes = requestQueueModelSource.length();
+            final long addedBytes = requestStr.length() + DELIMITER.length();
+            while (requestQueueLimitReached(connections.size(), queueBytes, addedBytes)) {
                 //reached the limit, start deleting oldest requests
                 L.w("[CountlyStore] Store reached it's limit, deleting oldest request");
-
-                deleteOldestRequest();
-                addRequest(requestStr, writeInSync);
+                String evicted = evictionCandidate();
+                forgetRequest(evicted);
+                connections.removeFirstOccurrence(evicted);
+                queueBytes = Math.max(0, queueBytes - evicted.length() - DELIMITER.length());
             }
+
+            connections.addLast(requestStr);
+            writeRequestQueueModel(writeInSync);
+            rememberRequest(requestStr);
         } else {
             L.w("[CountlyStore] addRequest, providing null or empty request string");
         }
     }
 
     synchronized void deleteOldestRequest() {
-        final List<String> connections = new ArrayList<>(Arrays.asList(getRequests()));
-        connections.remove(0);
-        storageWriteRequestQueue(Utils.joinCountlyStore(connections, DELIMITER), false);
+        if (requestQueueLog != null) {
+            forgetRequest(requestQueueLog.removeFirst());
+            return;
+        }
+
+        String removed = readRequestQueueModel().pollFirst();
+        if (removed != null) {
+            forgetRequest(removed);
+            writeRequestQueueModel(false);
+        }
     }
 
     /**
@@ -385,9 +884,16 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
      */
     public synchronized void removeRequest(final String requestStr) {
         if (requestStr != null && requestStr.length() > 0) {
-            final List<String> connections = new ArrayList<>(Arrays.asList(getRequests()));
-            if (connections.remove(requestStr)) {
-                storageWriteRequestQueue(Utils.joinCountlyStore(connections, DELIMITER), false);
+            if (requestQueueLog != null) {
+                if (requestQueueLog.remove(requestStr)) {
+                    forgetRequest(requestStr);
+                }
+                return;
+            }
+
+            if (readRequestQueueModel().removeFirstOccurrence(requestStr)) {
+                forgetRequest(requestStr);
+                writeRequestQueueModel(false);
             }
         }
     }
@@ -401,26 +907,117 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
 
     public synchronized void replaceRequestList(final List<String> newConns) {
         if (newConns != null) {
+            forgetRequestMetadata();
+
+            if (requestQueueLog != null) {
+                requestQueueLog.replaceAll(newConns);
+                return;
+            }
+
             storageWriteRequestQueue(Utils.joinCountlyStore(newConns, DELIMITER), false);
         }
     }
 
+    /**
+     * Applies the given rewriters to every stored request in a single pass over the queue.
+     * The rewriters are applied in the given order, each one gets the result of the previous one.
+     * The queue is written to storage once, only if anything changed.
+     *
+     * @return amount of requests that were changed or removed
+     */
+    public synchronized int rewriteRequests(@NonNull final RequestRewriter... rewriters) {
+        RequestQueueFileLog.RequestMapper mapper = new RequestQueueFileLog.RequestMapper() {
+            @Override public @Nullable String map(@NonNull String request) {
+                String result = request;
+                for (RequestRewriter rewriter : rewriters) {
+                    result = rewriter.rewrite(result, getRequestMetadata(result));
+                    if (result == null) {
+                        break;
+                    }
+                }
+
+                if (result != request) {
+                    requestMetadataCache.remove(request);
+                    if (result != null) {
+                        rememberRequest(result);
+                    }
+                }
+                return result;
+            }
+        };
+
+        loadRequestMetadata();
+        //rewritten requests keep their place in the queue, the lanes are built again when needed
+        requestLanes = null;
+
+        int changed;
+        if (requestQueueLog != null) {
+            changed = requestQueueLog.mapAll(mapper);
+        } else {
+            ArrayDeque<String> requestQueue = readRequestQueueModel();
+            changed = 0;
+            //every request is taken from the front and the result is put to the back, which keeps the order
+            for (int a = requestQueue.size(); a > 0; a--) {
+                String request = requestQueue.pollFirst();
+                String result = mapper.map(request);
+                if (result != request) {
+                    changed++;
+                }
+                if (result != null) {
+                    requestQueue.addLast(result);
+                }
+            }
+
+            if (changed > 0) {
+                writeRequestQueueModel(false);
+            }
+        }
+
+        L.d("[CountlyStore] rewriteRequests, changed or removed [" + changed + "] requests");
+        return changed;
+    }
+
+    /**
+     * Same as 'rewriteRequests' but the queue is rewritten on the storage thread so that the caller is not blocked
+     *
+     * @param callback called on the storage thread once the rewrite is finished
+     */
+    public void rewriteRequestsInBackground(@Nullable final RequestRewriter.Callback callback, @NonNull final RequestRewriter... rewriters) {
+        storageExecutor().execute(new Runnable() {
+            @Override public void run() {
+                int changed = rewriteRequests(rewriters);
+                if (callback != null) {
+                    callback.onRequestsRewritten(changed);
+                }
+            }
+        });
+    }
+
     /**
      * Adds a custom event to the local store.
      *
      * @param event event to be added to the local store, must not be null
      */
-    // TODO:
-    void addEvent(final Event event) {
+    synchronized void addEvent(final Event event) {
         if (configurationProvider != null && !configurationProvider.getTrackingEnabled()) {
             L.w("[CountlyStore] addEvent, Tracking config is disabled, event will not be added to the request queue.");
             return;
         }
 
-        final List<Event> events = getEventList();
-        if (events.size() < MAX_EVENTS) {
-            events.add(event);
-            setEventData(joinEvents(events, DELIMITER));
+        //the new event is appended to the stored value, already stored events are not parsed again
+        if (eventQueueSize < MAX_EVENTS) {
+            if (eventQueueFile != null) {
+                eventQueueFile.append(event);
+                eventQueueSize = eventQueueFile.size();
+                return;
+            }
+
+            final String joinedEventsStr = storageReadEventQueue();
+            final String eventStr = EventJsonWriter.eventJson(event);
+            final String newJoinedEventsStr = joinedEventsStr.length() == 0 ? eventStr : joinedEventsStr + DELIMITER + eventStr;
+
+            storageWriteEventQueue(newJoinedEventsStr, false);
+            eventQueueSize++;
         }
     }
 
@@ -429,8 +1026,15 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
      *
      * @param eventData
      */
-    void setEventData(String eventData) {
+    synchronized void setEventData(String eventData) {
+        if (eventQueueFile != null) {
+            eventQueueFile.replaceAll(eventData == null || eventData.length() == 0 ? new ArrayList<Event>() : readEvents(eventData.split(DELIMITER)));
+            eventQueueSize = eventQueueFile.size();
+            return;
+        }
+
         storageWriteEventQueue(eventData, false);
+        eventQueueSize = eventData == null ? 0 : countEntries(eventData);
     }
 
     /**
@@ -490,27 +1094,9 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
      */
     public void recordEventToEventQueue(final String key, final Map<String, Object> segmentation, final int count, final double sum, final double dur, final long timestamp, final int hour, final int dow, final @NonNull String eventID, final @Nullable String previousViewId,
         final @Nullable String currentViewId, final @Nullable String previousEventId) {
-        Map<String, String> segmentationString = null;
-        Map<String, Integer> segmentationInt = null;
-        Map<String, Double> segmentationDouble = null;
-        Map<String, Boolean> segmentationBoolean = null;
-
-        if (segmentation != null && segmentation.size() > 0) {
-            segmentationString = new HashMap<>();
-            segmentationInt = new HashMap<>();
-            segmentationDouble = new HashMap<>();
-            segmentationBoolean = new HashMap<>();
-            Map<String, Object> segmentationReminder = new HashMap<>();
-
-            Utils.fillInSegmentation(segmentation, segmentationString, segmentationInt, segmentationDouble, segmentationBoolean, segmentationReminder);
-        }
-
         final Event event = new Event();
         event.key = key;
-        event.segmentation = segmentationString;
-        event.segmentationDouble = segmentationDouble;
-        event.segmentationInt = segmentationInt;
-        event.segmentationBoolean = segmentationBoolean;
+        event.compactSegmentation = EventSegmentation.from(segmentation);
         event.timestamp = timestamp;
         event.hour = hour;
         event.dow = dow;
@@ -535,7 +1121,12 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
         if (eventsToRemove != null && eventsToRemove.size() > 0) {
             final List<Event> events = getEventList();
             if (events.removeAll(eventsToRemove)) {
-                storageWriteEventQueue(joinEvents(events, DELIMITER), false);
+                if (eventQueueFile != null) {
+                    eventQueueFile.replaceAll(events);
+                } else {
+                    storageWriteEventQueue(joinEvents(events, DELIMITER), false);
+                }
+                eventQueueSize = events.size();
             }
         }
     }
@@ -549,11 +1140,16 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
      */
     @SuppressWarnings("SameParameterValue")
     static String joinEvents(final Collection<Event> collection, final String delimiter) {
-        final List<String> strings = new ArrayList<>();
+        final EventJsonWriter writer = new EventJsonWriter(new StringBuilder(collection.size() * 256), false);
+        boolean first = true;
         for (Event e : collection) {
-            strings.add(e.toJSON().toString());
+            if (!first) {
+                writer.out.append(delimiter);
+            }
+            first = false;
+            writer.writeEvent(e);
         }
-        return Utils.joinCountlyStore(strings, delimiter);
+        return writer.out.toString();
     }
 
     public static synchronized void cachePushData(String id_key, String index_key, Context context) {
@@ -599,10 +1195,26 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
         prefsEditor.clear();
         prefsEditor.apply();
 
+        //pending writes would restore the cleared values
+        pendingRequestQueueWrite = false;
+        pendingRequestQueue = null;
+        pendingEventQueueWrite = false;
+        pendingEventQueue = null;
+        forgetRequestMetadata();
+
         //clear explicit storage things
         esDirtyFlag = false;
         esRequestQueueCache = null;
         esEventQueueCache = null;
+        eventQueueSize = 0;
+
+        if (requestQueueLog != null) {
+            requestQueueLog.clear();
+        }
+
+        if (eventQueueFile != null) {
+            eventQueueFile.clear();
+        }
 
         preferencesPush_.edit().clear().apply();
     }
@@ -652,10 +1264,18 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
             return true;
         }
 
+        if (requestQueueLog != null && !requestQueueLog.isEmpty()) {
+            return true;
+        }
+
         if (preferences_.getString(EVENTS_PREFERENCE, null) != null) {
             return true;
         }
 
+        if (eventQueueFile != null && !eventQueueFile.isEmpty()) {
+            return true;
+        }
+
         if (preferences_.getString(STAR_RATING_PREFERENCE, null) != null) {
             return true;
         }
@@ -704,6 +1324,150 @@ public class CountlyStore implements StorageProvider, EventQueueProvider {
         return false;
     }
 
+    /**
+     * Moves stored requests to the request queue storage that is currently in use.
+     * If the file backed request queue is used, requests from the legacy preference value are moved to it.
+     * If it is not used, requests left in a previously used request queue log are moved back to preferences.
+     * Moved requests are placed in front of the ones already in the target storage, since they were recorded earlier.
+     *
+     * @return the amount of requests that were moved
+     */
+    public synchronized int migrateRequestQueueStorage() {
+        flushPendingWrites(true);
+
+        if (requestQueueLog != null) {
+            String legacyQueue = preferences_.getString(REQUEST_PREFERENCE, null);
+            if (legacyQueue == null) {
+                return 0;
+            }
+
+            List<String> requests = new ArrayList<>();
+            if (legacyQueue.length() > 0) {
+                requests.addAll(Arrays.asList(legacyQueue.split(DELIMITER)));
+            }
+            int movedCount = requests.size();
+
+            if (movedCount > 0) {
+                requests.addAll(Arrays.asList(requestQueueLog.readAll()));
+                if (!requestQueueLog.replaceAll(requests)) {
+                    //the requests stay in preferences and are moved on the next run
+                    return 0;
+                }
+                forgetRequestMetadata();
+            }
+
+            preferences_.edit().remove(REQUEST_PREFERENCE).commit();
+            return movedCount;
+        }
+
+        if (requestQueueLogDirectory == null || !requestQueueLogDirectory.exists()) {
+            return 0;
+        }
+
+        RequestQueueFileLog previousLog = new RequestQueueFileLog(requestQueueLogDirectory, L);
+        if (!previousLog.open()) {
+            return 0;
+        }
+
+        List<String> requests = new ArrayList<>(Arrays.asList(previousLog.readAll()));
+        int movedCount = requests.size();
+        previousLog.close();
+
+        if (movedCount > 0) {
+            String currentQueue = preferences_.getString(REQUEST_PREFERENCE, "");
+            if (currentQueue.length() > 0) {
+                requests.addAll(Arrays.asList(currentQueue.split(DELIMITER)));
+            }
+
+            //written directly so that the requests are persisted before the log is deleted
+            preferences_.edit().putString(REQUEST_PREFERENCE, Utils.joinCountlyStore(requests, DELIMITER)).commit();
+            esRequestQueueCache = null;
+        }
+
+        RequestQueueFileLog.deleteLog(requestQueueLogDirectory);
+        return movedCount;
+    }
+
+    /**
+     * Converts stored events and requests to the record format that is currently in use.
+     * With the binary record format, events from the legacy preference value are moved to the event queue file
+     * and requests in the request queue log are rewritten as compact records. Without it, events left in a previously
+     * used event queue file are moved back to preferences and the request queue log is rewritten as text records.
+     * Moved events are placed in front of the ones already in the target storage, since they were recorded earlier.
+     *
+     * @return the amount of events and requests that were converted
+     */
+    public synchronized int migrateRecordFormat() {
+        int convertedCount = convertRecordFormat();
+        preferences_.edit().putBoolean(PREFERENCE_BINARY_RECORD_FORMAT, binaryRecordFormatEnabled).commit();
+        return convertedCount;
+    }
+
+    /**
+     * Returns 'true' if the record format was enabled or disabled since the stored data was last converted
+     */
+    public synchronized boolean recordFormatChanged() {
+        return preferences_.getBoolean(PREFERENCE_BINARY_RECORD_FORMAT, false) != binaryRecordFormatEnabled;
+    }
+
+    private int convertRecordFormat() {
+        flushPendingWrites(true);
+
+        int convertedCount = 0;
+        if (requestQueueLog != null) {
+            convertedCount += requestQueueLog.convertRecords();
+        }
+
+        if (eventQueueFile != null) {
+            String legacyQueue = preferences_.getString(EVENTS_PREFERENCE, null);
+            if (legacyQueue == null) {
+                return convertedCount;
+            }
+
+            List<Event> events = new ArrayList<>();
+            if (legacyQueue.length() > 0) {
+                events.addAll(readEvents(legacyQueue.split(DELIMITER)));
+            }
+            convertedCount += events.size();
+
+            if (events.size() > 0) {
+                events.addAll(eventQueueFile.readAll());
+                eventQueueFile.replaceAll(events);
+                eventQueueSize = eventQueueFile.size();
+            }
+
+            preferences_.edit().remove(EVENTS_PREFERENCE).commit();
+            return convertedCount;
+        }
+
+        if (eventQueueFileLocation == null || !eventQueueFileLocation.exists()) {
+            return convertedCount;
+        }
+
+        EventQueueFile previousFile = new EventQueueFile(eventQueueFileLocation, L);
+        if (!previousFile.open()) {
+            return convertedCount;
+        }
+
+        List<Event> events = previousFile.readAll();
+        previousFile.close();
+        convertedCount += events.size();
+
+        if (events.size() > 0) {
+            String currentQueue = preferences_.getString(EVENTS_PREFERENCE, "");
+            String movedQueue = joinEvents(events, DELIMITER);
+            String joinedQueue = currentQueue.length() > 0 ? movedQueue + DELIMITER + currentQueue : movedQueue;
+
+            //written directly so that the events are persisted before the file is deleted
+            preferences_.edit().putString(EVENTS_PREFERENCE, joinedQueue).commit();
+            esEventQueueCache = null;
+            eventQueueSize = countEntries(joinedQueue);
+        }
+
+        EventQueueFile.deleteFile(eventQueueFileLocation);
+        return convertedCount;
+    }
+
     public @NonNull String getHealthCheckCounterState() {
         if (explicitStorageModeEnabled) {
             //L.v("[CountlyStore] Returning health check state from cache");
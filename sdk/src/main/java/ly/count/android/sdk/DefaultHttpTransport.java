@@ -0,0 +1,15 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Transport that uses the platform 'HttpURLConnection' and its connection pool
+ */
+public class DefaultHttpTransport implements HttpTransport {
+    @NonNull @Override public HttpURLConnection openConnection(@NonNull URL url) throws IOException {
+        return (HttpURLConnection) url.openConnection();
+    }
+}
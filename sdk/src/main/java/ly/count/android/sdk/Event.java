@@ -54,6 +54,8 @@ class Event {
     public Map<String, Integer> segmentationInt;
     public Map<String, Double> segmentationDouble;
     public Map<String, Boolean> segmentationBoolean;
+    //compact form of the segmentation, if it is set the segmentation maps are not used
+    EventSegmentation compactSegmentation;
     public int count;
     public double sum;
     public double dur;
@@ -108,31 +110,36 @@ class Event {
             }
 
             JSONObject jobj = new JSONObject();
-            if (segmentation != null) {
+            if (compactSegmentation != null) {
+                for (int a = 0; a < compactSegmentation.size; a++) {
+                    jobj.put(compactSegmentation.keys[a], compactSegmentation.value(a));
+                }
+            } else if (segmentation != null) {
                 for (Map.Entry<String, String> pair : segmentation.entrySet()) {
                     jobj.put(pair.getKey(), pair.getValue());
                 }
             }
 
-            if (segmentationInt != null) {
+            if (compactSegmentation == null && segmentationInt != null) {
                 for (Map.Entry<String, Integer> pair : segmentationInt.entrySet()) {
                     jobj.put(pair.getKey(), pair.getValue());
                 }
             }
 
-            if (segmentationDouble != null) {
+            if (compactSegmentation == null && segmentationDouble != null) {
                 for (Map.Entry<String, Double> pair : segmentationDouble.entrySet()) {
                     jobj.put(pair.getKey(), pair.getValue());
                 }
             }
 
-            if (segmentationBoolean != null) {
+            if (compactSegmentation == null && segmentationBoolean != null) {
                 for (Map.Entry<String, Boolean> pair : segmentationBoolean.entrySet()) {
                     jobj.put(pair.getKey(), pair.getValue());
                 }
             }
 
-            if ((segmentation != null && !segmentation.isEmpty()) ||
+            if (jobj.length() > 0 ||
+                (segmentation != null && !segmentation.isEmpty()) ||
                 (segmentationInt != null && !segmentationInt.isEmpty()) ||
                 (segmentationDouble != null && !segmentationDouble.isEmpty()) ||
                 (segmentationBoolean != null && !segmentationBoolean.isEmpty())) {
@@ -0,0 +1,164 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Merges events with the same key, segmentation and current view that are recorded within a time window.
+ *
+ * The count, sum and duration of the merged events are added together and only one event per group
+ * is written to the event queue when the window ends or when the event queue is flushed.
+ * The written event keeps the ID, timestamp and previous event ID of the first event of its group.
+ */
+class EventAggregator {
+    final EventQueueProvider eventQueueProvider;
+    final long windowMs;
+
+    final Map<GroupKey, Group> groups = new HashMap<>();
+
+    //start of the current window, -1 if nothing is aggregated
+    long windowStartMs = -1;
+
+    ModuleLog L;
+
+    static final class GroupKey {
+        final String key;
+        final Map<String, Object> segmentation;
+        final String currentViewId;
+        final int hash;
+
+        GroupKey(@NonNull String key, @Nullable Map<String, Object> segmentation, @Nullable String currentViewId) {
+            this.key = key;
+            this.segmentation = segmentation == null || segmentation.isEmpty() ? null : segmentation;
+            this.currentViewId = currentViewId;
+
+            int h = key.hashCode();
+            h = 31 * h + (this.segmentation == null ? 0 : this.segmentation.hashCode());
+            h = 31 * h + (currentViewId == null ? 0 : currentViewId.hashCode());
+            hash = h;
+        }
+
+        @Override public int hashCode() {
+            return hash;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof GroupKey)) {
+                return false;
+            }
+            GroupKey other = (GroupKey) o;
+            return hash == other.hash
+                && key.equals(other.key)
+                && (segmentation == null ? other.segmentation == null : segmentation.equals(other.segmentation))
+                && (currentViewId == null ? other.currentViewId == null : currentViewId.equals(other.currentViewId));
+        }
+    }
+
+    static final class Group {
+        int count;
+        double sum;
+        double dur;
+        final long timestamp;
+        final int hour;
+        final int dow;
+        final String eventId;
+        final String previousEventId;
+
+        Group(int count, double sum, double dur, long timestamp, int hour, int dow, @NonNull String eventId, @Nullable String previousEventId) {
+            this.count = count;
+            this.sum = sum;
+            this.dur = dur;
+            this.timestamp = timestamp;
+            this.hour = hour;
+            this.dow = dow;
+            this.eventId = eventId;
+            this.previousEventId = previousEventId;
+        }
+    }
+
+    EventAggregator(@NonNull EventQueueProvider eventQueueProvider, long windowMs, @NonNull ModuleLog logModule) {
+        this.eventQueueProvider = eventQueueProvider;
+        this.windowMs = Math.max(0, windowMs);
+        L = logModule;
+    }
+
+    /**
+     * Adds the event to its group
+     *
+     * @return 'true' if the event started a new group, 'false' if it was merged into an existing one
+     */
+    synchronized boolean record(@NonNull String key, @Nullable Map<String, Object> segmentation, int count, double sum, double dur, long timestamp, int hour, int dow,
+        @NonNull String eventId, @Nullable String currentViewId, @Nullable String previousEventId) {
+        if (windowStartMs < 0) {
+            windowStartMs = timestamp;
+        }
+
+        GroupKey groupKey = new GroupKey(key, segmentation, currentViewId);
+        Group group = groups.get(groupKey);
+
+        if (group != null && (long) group.count + count > Integer.MAX_VALUE) {
+            //the count would overflow, write out the group and start a new one
+            writeGroup(groupKey, group);
+            groups.remove(groupKey);
+            group = null;
+        }
+
+        if (group == null) {
+            //the segmentation is copied so that later changes to the provided map don't affect the group
+            GroupKey storedKey = groupKey.segmentation == null ? groupKey : new GroupKey(key, new HashMap<>(groupKey.segmentation), currentViewId);
+            groups.put(storedKey, new Group(count, sum, dur, timestamp, hour, dow, eventId, previousEventId));
+            return true;
+        }
+
+        group.count += count;
+        group.sum += sum;
+        group.dur += dur;
+        return false;
+    }
+
+    /**
+     * Writes the aggregated events to the event queue if the window has ended or if it is forced
+     *
+     * @return amount of events written to the event queue
+     */
+    synchronized int flush(long currentTimestampMs, boolean force) {
+        if (groups.isEmpty() || (!force && currentTimestampMs - windowStartMs < windowMs)) {
+            return 0;
+        }
+
+        int written = groups.size();
+        Iterator<Map.Entry<GroupKey, Group>> iterator = groups.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<GroupKey, Group> entry = iterator.next();
+            writeGroup(entry.getKey(), entry.getValue());
+            iterator.remove();
+        }
+        windowStartMs = -1;
+
+        L.v("[EventAggregator] flush, wrote [" + written + "] aggregated events, forced:[" + force + "]");
+        return written;
+    }
+
+    synchronized int size() {
+        return groups.size();
+    }
+
+    /**
+     * Drops the aggregated events without writing them
+     */
+    synchronized void clear() {
+        groups.clear();
+        windowStartMs = -1;
+    }
+
+    private void writeGroup(@NonNull GroupKey groupKey, @NonNull Group group) {
+        eventQueueProvider.recordEventToEventQueue(groupKey.key, groupKey.segmentation, group.count, group.sum, group.dur, group.timestamp, group.hour, group.dow, group.eventId, null,
+            groupKey.currentViewId, group.previousEventId);
+    }
+}
@@ -0,0 +1,146 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Tunes how many events are batched into one request and how often the event queue
+ * is flushed on the timer, based on how recent request queue submissions went.
+ *
+ * Each submission updates moving averages of the round trip time, the throughput and the success rate.
+ * The worst of them decides where between the configured bounds the values are placed:
+ * on a fast and reliable connection events are sent in small batches and often,
+ * on a slow or failing connection they are collected into large batches and sent rarely.
+ * Until the first submission the values are in the middle of the bounds.
+ */
+class EventBatchingPolicy {
+    //weight of the newest sample in the moving averages
+    static final double SAMPLE_WEIGHT = 0.3;
+
+    //round trip times at or below the first value are good, at or above the second are poor
+    static final long GOOD_RTT_MS = 300;
+    static final long POOR_RTT_MS = 3000;
+
+    //throughput in bytes per second, it is only taken into account for payloads of at least the given size
+    static final double GOOD_THROUGHPUT = 100 * 1024;
+    static final double POOR_THROUGHPUT = 5 * 1024;
+    static final int THROUGHPUT_MIN_PAYLOAD = 4 * 1024;
+
+    //success rates at or above the first value are good, at or below the second are poor
+    static final double GOOD_SUCCESS_RATE = 0.95;
+    static final double POOR_SUCCESS_RATE = 0.5;
+
+    final int minEventThreshold;
+    final int maxEventThreshold;
+    final long minFlushIntervalMs;
+    final long maxFlushIntervalMs;
+
+    int samples = 0;
+    double averageRttMs = -1;
+    double averageThroughput = -1;
+    double successRate = 1;
+
+    //0 for the best and 1 for the worst network conditions
+    double networkCost = 0.5;
+    int eventThreshold;
+    long flushIntervalMs;
+
+    long lastFlushTimestampMs;
+
+    ModuleLog L;
+
+    EventBatchingPolicy(int minEventThreshold, int maxEventThreshold, long minFlushIntervalMs, long maxFlushIntervalMs, long currentTimestampMs, @NonNull ModuleLog logModule) {
+        this.minEventThreshold = Math.max(1, minEventThreshold);
+        this.maxEventThreshold = Math.max(this.minEventThreshold, maxEventThreshold);
+        this.minFlushIntervalMs = Math.max(0, minFlushIntervalMs);
+        this.maxFlushIntervalMs = Math.max(this.minFlushIntervalMs, maxFlushIntervalMs);
+        lastFlushTimestampMs = currentTimestampMs;
+        L = logModule;
+        updateDecision();
+    }
+
+    /**
+     * Records the outcome of a request queue submission
+     *
+     * @param durationMs time from opening the connection until the response was read
+     * @param payloadBytes size of the sent request
+     * @param success 'true' if the server accepted the request
+     */
+    synchronized void onRequestCompleted(long durationMs, int payloadBytes, boolean success) {
+        samples++;
+        successRate = average(successRate, success ? 1 : 0);
+
+        //failed requests often end with a timeout, their duration says little about the connection
+        if (success) {
+            averageRttMs = averageRttMs < 0 ? durationMs : average(averageRttMs, durationMs);
+
+            if (payloadBytes >= THROUGHPUT_MIN_PAYLOAD) {
+                double throughput = payloadBytes * 1000.0 / Math.max(1, durationMs);
+                averageThroughput = averageThroughput < 0 ? throughput : average(averageThroughput, throughput);
+            }
+        }
+
+        updateDecision();
+    }
+
+    /**
+     * Amount of events in the event queue at which they are turned into a request
+     */
+    synchronized int eventThreshold() {
+        return eventThreshold;
+    }
+
+    /**
+     * Returns 'true' if enough time has passed since the last flush for the timer to flush the event queue
+     */
+    synchronized boolean shouldFlushOnTimer(long currentTimestampMs) {
+        return currentTimestampMs - lastFlushTimestampMs >= flushIntervalMs;
+    }
+
+    synchronized void onEventsFlushed(long currentTimestampMs) {
+        lastFlushTimestampMs = currentTimestampMs;
+    }
+
+    /**
+     * Current decisions and the measurements they are based on, for debugging
+     */
+    @Override
+    public synchronized String toString() {
+        return "threshold:[" + eventThreshold + "] flush interval:[" + flushIntervalMs + " ms] network cost:[" + Math.round(networkCost * 100) / 100.0
+            + "] samples:[" + samples + "] rtt:[" + Math.round(averageRttMs) + " ms] throughput:[" + Math.round(averageThroughput) + " B/s] success rate:["
+            + Math.round(successRate * 100) / 100.0 + "]";
+    }
+
+    private void updateDecision() {
+        if (samples > 0) {
+            double cost = scale(successRate, GOOD_SUCCESS_RATE, POOR_SUCCESS_RATE);
+            if (averageRttMs >= 0) {
+                cost = Math.max(cost, scale(averageRttMs, GOOD_RTT_MS, POOR_RTT_MS));
+            }
+            if (averageThroughput >= 0) {
+                cost = Math.max(cost, scale(averageThroughput, GOOD_THROUGHPUT, POOR_THROUGHPUT));
+            }
+            networkCost = cost;
+        }
+
+        int newThreshold = (int) Math.round(minEventThreshold + networkCost * (maxEventThreshold - minEventThreshold));
+        long newInterval = Math.round(minFlushIntervalMs + networkCost * (maxFlushIntervalMs - minFlushIntervalMs));
+
+        if (newThreshold != eventThreshold || newInterval != flushIntervalMs) {
+            eventThreshold = newThreshold;
+            flushIntervalMs = newInterval;
+            L.d("[EventBatchingPolicy] updateDecision, " + this);
+        }
+    }
+
+    private static double average(double average, double sample) {
+        return average + SAMPLE_WEIGHT * (sample - average);
+    }
+
+    /**
+     * Places the value between 0 at the 'good' end and 1 at the 'poor' end, works in both directions
+     */
+    static double scale(double value, double good, double poor) {
+        double scaled = (value - good) / (poor - good);
+        return Math.max(0, Math.min(1, scaled));
+    }
+}
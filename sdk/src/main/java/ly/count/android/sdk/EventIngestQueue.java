@@ -0,0 +1,138 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands recorded events from any thread over to a single SDK thread that writes them to the event queue.
+ *
+ * Producers only add the event to a lock-free queue. The writer thread is only woken up
+ * when the queue goes from empty to not empty, so a burst of events is written in one pass.
+ * The events are always written in the order they were added, either by the writer thread
+ * or by a thread that needs the event queue to be complete, see {@link #drain()}.
+ */
+class EventIngestQueue {
+    interface EventWriter {
+        void writeEvent(@NonNull PendingEvent event);
+    }
+
+    static final class PendingEvent {
+        final String key;
+        final Map<String, Object> segmentation;
+        final int count;
+        final double sum;
+        final double dur;
+        final UtilsTime.Instant instant;
+
+        PendingEvent(@NonNull String key, @Nullable Map<String, Object> segmentation, int count, double sum, double dur, @NonNull UtilsTime.Instant instant) {
+            this.key = key;
+            this.segmentation = segmentation;
+            this.count = count;
+            this.sum = sum;
+            this.dur = dur;
+            this.instant = instant;
+        }
+    }
+
+    final ConcurrentLinkedQueue<PendingEvent> pendingEvents = new ConcurrentLinkedQueue<>();
+    final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+    //the events are written while holding this lock, so that they are not interleaved with other SDK calls
+    final Object writeLock;
+    final EventWriter eventWriter;
+    ExecutorService writerExecutor = null;
+
+    ModuleLog L;
+
+    final Runnable drainTask = new Runnable() {
+        @Override public void run() {
+            drainScheduled.set(false);
+            drain();
+        }
+    };
+
+    EventIngestQueue(@NonNull Object writeLock, @NonNull EventWriter eventWriter, @NonNull ModuleLog logModule) {
+        this.writeLock = writeLock;
+        this.eventWriter = eventWriter;
+        L = logModule;
+    }
+
+    /**
+     * Adds the event to the queue and wakes up the writer thread if it is not already going to run
+     */
+    void add(@NonNull PendingEvent event) {
+        pendingEvents.offer(event);
+
+        if (drainScheduled.compareAndSet(false, true)) {
+            writerExecutor().execute(drainTask);
+        }
+    }
+
+    /**
+     * Writes all pending events on the calling thread
+     *
+     * @return amount of written events
+     */
+    int drain() {
+        if (pendingEvents.isEmpty()) {
+            return 0;
+        }
+
+        int written = 0;
+        synchronized (writeLock) {
+            PendingEvent event;
+            while ((event = pendingEvents.poll()) != null) {
+                try {
+                    eventWriter.writeEvent(event);
+                    written++;
+                } catch (Exception ex) {
+                    L.e("[EventIngestQueue] drain, failed to write event [" + event.key + "], " + ex);
+                }
+            }
+        }
+        return written;
+    }
+
+    int size() {
+        return pendingEvents.size();
+    }
+
+    /**
+     * Drops the pending events without writing them
+     */
+    void clear() {
+        pendingEvents.clear();
+    }
+
+    /**
+     * Writes the pending events and stops the writer thread.
+     * A new writer thread is started if events are added afterwards.
+     */
+    synchronized void halt() {
+        drain();
+
+        if (writerExecutor != null) {
+            writerExecutor.shutdown();
+            writerExecutor = null;
+        }
+    }
+
+    private synchronized @NonNull ExecutorService writerExecutor() {
+        if (writerExecutor == null) {
+            writerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Countly-EventWriter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return writerExecutor;
+    }
+}
@@ -0,0 +1,528 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.HashMap;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reads a stored event JSON into an Event without creating JSONObjects.
+ *
+ * The result is the same as 'Event.fromJSON(new JSONObject(json))', including the way org.json
+ * turns number literals into Integer, Long or Double values. Only the JSON that the SDK writes itself is read directly.
+ * Anything else, like duplicate fields, unexpected value types or the lenient syntax that org.json accepts,
+ * is handed to org.json so that the result doesn't change.
+ */
+class EventJsonReader {
+    /**
+     * Thrown when the input has to be read by org.json, it doesn't record a stack trace
+     */
+    static final class UnsupportedJsonException extends Exception {
+        @Override public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static final UnsupportedJsonException UNSUPPORTED = new UnsupportedJsonException();
+
+    //bits of the event fields that were already read
+    private static final int FIELD_KEY = 1;
+    private static final int FIELD_COUNT = 1 << 1;
+    private static final int FIELD_SUM = 1 << 2;
+    private static final int FIELD_DUR = 1 << 3;
+    private static final int FIELD_TIMESTAMP = 1 << 4;
+    private static final int FIELD_HOUR = 1 << 5;
+    private static final int FIELD_DOW = 1 << 6;
+    private static final int FIELD_ID = 1 << 7;
+    private static final int FIELD_PV_ID = 1 << 8;
+    private static final int FIELD_CV_ID = 1 << 9;
+    private static final int FIELD_PE_ID = 1 << 10;
+    private static final int FIELD_SEGMENTATION = 1 << 11;
+
+    //value types of the last read value
+    private static final int VALUE_NULL = 0;
+    private static final int VALUE_STRING = 1;
+    private static final int VALUE_INTEGRAL = 2;
+    private static final int VALUE_DOUBLE = 3;
+    private static final int VALUE_BOOLEAN = 4;
+    private static final int VALUE_OTHER = 5;
+
+    final String json;
+    int position = 0;
+
+    //the last read value
+    int valueType;
+    String stringValue;
+    long longValue;
+    double doubleValue;
+    boolean booleanValue;
+
+    //reused for reading strings
+    final StringBuilder stringBuilder = new StringBuilder(32);
+
+    EventJsonReader(@NonNull String json) {
+        this.json = json;
+    }
+
+    /**
+     * Reads the event from its JSON
+     *
+     * @return the event or 'null' if it has no key, the same as 'Event.fromJSON'
+     * @throws JSONException if the JSON is not valid
+     */
+    static @Nullable Event readEvent(@NonNull String json) throws JSONException {
+        try {
+            return new EventJsonReader(json).readEvent();
+        } catch (UnsupportedJsonException ignored) {
+            return Event.fromJSON(new JSONObject(json));
+        }
+    }
+
+    @Nullable Event readEvent() throws UnsupportedJsonException {
+        final Event event = new Event();
+        int readFields = 0;
+
+        expect('{');
+        if (peekClean() == '}') {
+            position++;
+            return null;
+        }
+
+        while (true) {
+            final String name = readString();
+            expect(':');
+
+            final int field = fieldOf(name);
+            if ((readFields & field) != 0) {
+                //org.json keeps the last value of a duplicate name
+                throw UNSUPPORTED;
+            }
+            readFields |= field;
+
+            if (field == FIELD_SEGMENTATION) {
+                readSegmentation(event);
+            } else {
+                //only values of unknown fields may be objects or arrays
+                readValue(field == 0);
+
+                switch (field) {
+                    case FIELD_KEY:
+                        event.key = optionalString();
+                        break;
+                    case FIELD_ID:
+                        event.id = optionalString();
+                        break;
+                    case FIELD_PV_ID:
+                        event.pvid = optionalString();
+                        break;
+                    case FIELD_CV_ID:
+                        event.cvid = optionalString();
+                        break;
+                    case FIELD_PE_ID:
+                        event.peid = optionalString();
+                        break;
+                    case FIELD_COUNT:
+                        event.count = numberAsInt();
+                        break;
+                    case FIELD_TIMESTAMP:
+                        event.timestamp = numberAsLong();
+                        break;
+                    case FIELD_HOUR:
+                        event.hour = numberAsInt();
+                        break;
+                    case FIELD_DOW:
+                        event.dow = numberAsInt();
+                        break;
+                    case FIELD_SUM:
+                        event.sum = numberAsDouble();
+                        break;
+                    case FIELD_DUR:
+                        event.dur = numberAsDouble();
+                        break;
+                    default:
+                        //fields that are not part of the event are ignored
+                        break;
+                }
+            }
+
+            final char c = nextClean();
+            if (c == '}') {
+                break;
+            } else if (c != ',') {
+                throw UNSUPPORTED;
+            }
+        }
+
+        if (event.key == null || event.key.length() == 0) {
+            return null;
+        }
+        return event;
+    }
+
+    private static int fieldOf(@NonNull String name) {
+        switch (name) {
+            case Event.KEY_KEY:
+                return FIELD_KEY;
+            case Event.COUNT_KEY:
+                return FIELD_COUNT;
+            case Event.SUM_KEY:
+                return FIELD_SUM;
+            case Event.DUR_KEY:
+                return FIELD_DUR;
+            case Event.TIMESTAMP_KEY:
+                return FIELD_TIMESTAMP;
+            case Event.HOUR_KEY:
+                return FIELD_HOUR;
+            case Event.DAY_OF_WEEK_KEY:
+                return FIELD_DOW;
+            case Event.ID_KEY:
+                return FIELD_ID;
+            case Event.PV_ID_KEY:
+                return FIELD_PV_ID;
+            case Event.CV_ID_KEY:
+                return FIELD_CV_ID;
+            case Event.PE_ID_KEY:
+                return FIELD_PE_ID;
+            case Event.SEGMENTATION_KEY:
+                return FIELD_SEGMENTATION;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Reads the segmentation object into the typed maps, the same way as 'Event.fromJSON'
+     */
+    private void readSegmentation(@NonNull Event event) throws UnsupportedJsonException {
+        if (peekClean() != '{') {
+            readValue(false);
+            if (valueType != VALUE_NULL) {
+                throw UNSUPPORTED;
+            }
+            return;
+        }
+
+        position++;
+        if (peekClean() == '}') {
+            position++;
+            return;
+        }
+
+        HashMap<String, String> segmentation = null;
+        HashMap<String, Integer> segmentationInt = null;
+        HashMap<String, Double> segmentationDouble = null;
+        HashMap<String, Boolean> segmentationBoolean = null;
+        HashMap<String, Object> seenNames = new HashMap<>();
+
+        while (true) {
+            final String name = readString();
+            expect(':');
+            if (seenNames.put(name, Boolean.TRUE) != null) {
+                throw UNSUPPORTED;
+            }
+
+            readValue(true);
+            switch (valueType) {
+                case VALUE_STRING:
+                    if (segmentation == null) {
+                        segmentation = new HashMap<>();
+                    }
+                    segmentation.put(name, stringValue);
+                    break;
+                case VALUE_INTEGRAL:
+                    //org.json reads integral numbers outside of the int range as Long, those are left out
+                    if (longValue >= Integer.MIN_VALUE && longValue <= Integer.MAX_VALUE) {
+                        if (segmentationInt == null) {
+                            segmentationInt = new HashMap<>();
+                        }
+                        segmentationInt.put(name, (int) longValue);
+                    }
+                    break;
+                case VALUE_DOUBLE:
+                    if (segmentationDouble == null) {
+                        segmentationDouble = new HashMap<>();
+                    }
+                    segmentationDouble.put(name, doubleValue);
+                    break;
+                case VALUE_BOOLEAN:
+                    if (segmentationBoolean == null) {
+                        segmentationBoolean = new HashMap<>();
+                    }
+                    segmentationBoolean.put(name, booleanValue);
+                    break;
+                default:
+                    //null values, objects and arrays are left out
+                    break;
+            }
+
+            final char c = nextClean();
+            if (c == '}') {
+                break;
+            } else if (c != ',') {
+                throw UNSUPPORTED;
+            }
+        }
+
+        event.segmentation = segmentation;
+        event.segmentationInt = segmentationInt;
+        event.segmentationDouble = segmentationDouble;
+        event.segmentationBoolean = segmentationBoolean;
+    }
+
+    private @Nullable String optionalString() throws UnsupportedJsonException {
+        if (valueType == VALUE_NULL) {
+            return null;
+        } else if (valueType == VALUE_STRING) {
+            return stringValue;
+        }
+        //org.json would convert the value to a string
+        throw UNSUPPORTED;
+    }
+
+    private int numberAsInt() throws UnsupportedJsonException {
+        if (valueType == VALUE_INTEGRAL) {
+            return (int) longValue;
+        } else if (valueType == VALUE_DOUBLE) {
+            return (int) doubleValue;
+        }
+        throw UNSUPPORTED;
+    }
+
+    private long numberAsLong() throws UnsupportedJsonException {
+        if (valueType == VALUE_INTEGRAL) {
+            return longValue;
+        } else if (valueType == VALUE_DOUBLE) {
+            return (long) doubleValue;
+        }
+        throw UNSUPPORTED;
+    }
+
+    private double numberAsDouble() throws UnsupportedJsonException {
+        if (valueType == VALUE_INTEGRAL) {
+            return longValue;
+        } else if (valueType == VALUE_DOUBLE) {
+            return doubleValue;
+        }
+        throw UNSUPPORTED;
+    }
+
+    /**
+     * Reads the next value and sets its type
+     *
+     * @param skipNested if 'true' objects and arrays are skipped, otherwise they are not supported
+     */
+    private void readValue(boolean skipNested) throws UnsupportedJsonException {
+        final char c = peekClean();
+
+        if (c == '"') {
+            stringValue = readString();
+            valueType = VALUE_STRING;
+        } else if (c == '{' || c == '[') {
+            if (!skipNested) {
+                throw UNSUPPORTED;
+            }
+            skipNested();
+            valueType = VALUE_OTHER;
+        } else if (json.startsWith("null", position)) {
+            position += 4;
+            valueType = VALUE_NULL;
+        } else if (json.startsWith("true", position)) {
+            position += 4;
+            booleanValue = true;
+            valueType = VALUE_BOOLEAN;
+        } else if (json.startsWith("false", position)) {
+            position += 5;
+            booleanValue = false;
+            valueType = VALUE_BOOLEAN;
+        } else {
+            readNumber();
+        }
+
+        //a literal has to end here, otherwise org.json would read it differently
+        if (valueType != VALUE_STRING && valueType != VALUE_OTHER && position < json.length()) {
+            final char next = json.charAt(position);
+            if (next != ',' && next != '}' && next != ']' && next != ' ' && next != '\t' && next != '\n' && next != '\r') {
+                throw UNSUPPORTED;
+            }
+        }
+    }
+
+    /**
+     * Reads a number the same way org.json does: literals without a '.' are read as a long if they fit,
+     * everything else as a double
+     */
+    private void readNumber() throws UnsupportedJsonException {
+        final int start = position;
+        boolean hasDecimalPoint = false;
+
+        while (position < json.length()) {
+            final char c = json.charAt(position);
+            if (c == '.') {
+                hasDecimalPoint = true;
+            } else if (!((c >= '0' && c <= '9') || c == '-' || c == '+' || c == 'e' || c == 'E')) {
+                break;
+            }
+            position++;
+        }
+
+        if (position == start) {
+            throw UNSUPPORTED;
+        }
+
+        final String literal = json.substring(start, position);
+        //a leading zero makes org.json read the number as octal
+        final int firstDigit = literal.charAt(0) == '-' ? 1 : 0;
+        if (literal.length() > firstDigit + 1 && literal.charAt(firstDigit) == '0' && literal.charAt(firstDigit + 1) != '.') {
+            throw UNSUPPORTED;
+        }
+
+        if (!hasDecimalPoint) {
+            try {
+                longValue = Long.parseLong(literal);
+                valueType = VALUE_INTEGRAL;
+                return;
+            } catch (NumberFormatException ignored) {
+                //exponents and numbers outside of the long range are read as doubles
+            }
+        }
+
+        try {
+            doubleValue = Double.parseDouble(literal);
+            valueType = VALUE_DOUBLE;
+        } catch (NumberFormatException ignored) {
+            throw UNSUPPORTED;
+        }
+    }
+
+    /**
+     * Reads a quoted string, with the same escapes as org.json
+     */
+    private @NonNull String readString() throws UnsupportedJsonException {
+        if (nextClean() != '"') {
+            throw UNSUPPORTED;
+        }
+
+        final int length = json.length();
+        final int start = position;
+
+        //most strings have no escapes and can be taken as they are
+        while (position < length) {
+            final char c = json.charAt(position);
+            if (c == '"') {
+                return json.substring(start, position++);
+            } else if (c == '\\') {
+                break;
+            }
+            position++;
+        }
+
+        stringBuilder.setLength(0);
+        stringBuilder.append(json, start, position);
+
+        while (position < length) {
+            final char c = json.charAt(position++);
+            if (c == '"') {
+                return stringBuilder.toString();
+            } else if (c != '\\') {
+                stringBuilder.append(c);
+                continue;
+            }
+
+            if (position >= length) {
+                throw UNSUPPORTED;
+            }
+
+            final char escaped = json.charAt(position++);
+            switch (escaped) {
+                case 'u':
+                    if (position + 4 > length) {
+                        throw UNSUPPORTED;
+                    }
+                    int codeUnit = 0;
+                    for (int a = 0; a < 4; a++) {
+                        final int digit = Character.digit(json.charAt(position++), 16);
+                        if (digit < 0) {
+                            throw UNSUPPORTED;
+                        }
+                        codeUnit = (codeUnit << 4) | digit;
+                    }
+                    stringBuilder.append((char) codeUnit);
+                    break;
+                case 't':
+                    stringBuilder.append('\t');
+                    break;
+                case 'b':
+                    stringBuilder.append('\b');
+                    break;
+                case 'n':
+                    stringBuilder.append('\n');
+                    break;
+                case 'r':
+                    stringBuilder.append('\r');
+                    break;
+                case 'f':
+                    stringBuilder.append('\f');
+                    break;
+                default:
+                    stringBuilder.append(escaped);
+                    break;
+            }
+        }
+
+        //the string was not closed
+        throw UNSUPPORTED;
+    }
+
+    /**
+     * Skips a nested object or array, including the strings in it
+     */
+    private void skipNested() throws UnsupportedJsonException {
+        int depth = 0;
+        while (position < json.length()) {
+            final char c = json.charAt(position);
+            if (c == '"') {
+                readString();
+                continue;
+            }
+
+            position++;
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                if (depth == 0) {
+                    return;
+                }
+            }
+        }
+        throw UNSUPPORTED;
+    }
+
+    private void expect(char expected) throws UnsupportedJsonException {
+        if (nextClean() != expected) {
+            throw UNSUPPORTED;
+        }
+    }
+
+    private char nextClean() throws UnsupportedJsonException {
+        final char c = peekClean();
+        position++;
+        return c;
+    }
+
+    /**
+     * Skips whitespace and returns the next character without consuming it
+     */
+    private char peekClean() throws UnsupportedJsonException {
+        while (position < json.length()) {
+            final char c = json.charAt(position);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                position++;
+            } else {
+                return c;
+            }
+        }
+        throw UNSUPPORTED;
+    }
+}
@@ -0,0 +1,415 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes events in the same JSON format as 'Event.toJSON().toString()' without creating JSONObjects.
+ *
+ * The output can optionally be URL-encoded while it is being written,
+ * giving the same result as passing the JSON string through 'URLEncoder.encode(json, "UTF-8")'.
+ * This way a whole event batch is written into a single buffer.
+ *
+ * The quirks of org.json are mirrored so that the output stays byte-identical:
+ * 'null' values are left out, integral doubles are written without a fraction,
+ * and if a value would make org.json throw, the remaining fields of that event are not written.
+ */
+class EventJsonWriter {
+    final StringBuilder out;
+    final boolean urlEncode;
+
+    //high surrogate that is waiting for its pair before it can be URL-encoded
+    char pendingHighSurrogate = 0;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    EventJsonWriter(@NonNull StringBuilder out, boolean urlEncode) {
+        this.out = out;
+        this.urlEncode = urlEncode;
+    }
+
+    /**
+     * Returns the URL-encoded JSON array of the given events
+     */
+    static @NonNull String urlEncodedEventArray(@NonNull Collection<Event> events) {
+        //most characters of an event JSON don't need encoding, the quotes and brackets take 3 characters
+        EventJsonWriter writer = new EventJsonWriter(new StringBuilder(64 + events.size() * 320), true);
+        writer.writeEventArray(events);
+        return writer.out.toString();
+    }
+
+    /**
+     * Returns the JSON of a single event, the same as 'Event.toJSON().toString()'
+     */
+    static @NonNull String eventJson(@NonNull Event event) {
+        EventJsonWriter writer = new EventJsonWriter(new StringBuilder(256), false);
+        writer.writeEvent(event);
+        return writer.out.toString();
+    }
+
+    void writeEventArray(@NonNull Collection<Event> events) {
+        write('[');
+        boolean first = true;
+        for (Event event : events) {
+            if (!first) {
+                write(',');
+            }
+            first = false;
+            writeEvent(event);
+        }
+        write(']');
+        finish();
+    }
+
+    void writeEvent(@NonNull Event event) {
+        write('{');
+        boolean first = true;
+
+        if (event.key != null) {
+            writeName(Event.KEY_KEY, first);
+            writeString(event.key);
+            first = false;
+        }
+
+        writeName(Event.COUNT_KEY, first);
+        writeRaw(Integer.toString(event.count));
+
+        writeName(Event.TIMESTAMP_KEY, false);
+        writeRaw(Long.toString(event.timestamp));
+
+        writeName(Event.HOUR_KEY, false);
+        writeRaw(Integer.toString(event.hour));
+
+        writeName(Event.DAY_OF_WEEK_KEY, false);
+        writeRaw(Integer.toString(event.dow));
+
+        writeOptionalString(Event.ID_KEY, event.id);
+        writeOptionalString(Event.PV_ID_KEY, event.pvid);
+        writeOptionalString(Event.CV_ID_KEY, event.cvid);
+        writeOptionalString(Event.PE_ID_KEY, event.peid);
+
+        //org.json would throw on these, which ends the event at this point
+        if (!writeSegmentation(event) || !isFinite(event.sum)) {
+            write('}');
+            return;
+        }
+
+        writeName(Event.SUM_KEY, false);
+        writeRaw(numberToString(event.sum));
+
+        if (event.dur > 0 && isFinite(event.dur)) {
+            writeName(Event.DUR_KEY, false);
+            writeRaw(numberToString(event.dur));
+        }
+
+        write('}');
+    }
+
+    /**
+     * Writes the segmentation object if any of the segmentation maps has entries
+     *
+     * @return 'false' if the segmentation contains a value that can't be written
+     */
+    private boolean writeSegmentation(@NonNull Event event) {
+        if (!hasWritableSegmentation(event)) {
+            return false;
+        }
+        if (event.compactSegmentation != null) {
+            return writeCompactSegmentation(event.compactSegmentation);
+        }
+
+        int filledMaps = 0;
+        Map<String, ?> filledMap = null;
+        Map<?, ?>[] maps = { event.segmentation, event.segmentationInt, event.segmentationDouble, event.segmentationBoolean };
+
+        for (Map<?, ?> map : maps) {
+            if (map == null || map.isEmpty()) {
+                continue;
+            }
+
+            filledMaps++;
+            //noinspection unchecked
+            filledMap = (Map<String, ?>) map;
+        }
+
+        if (filledMaps == 0) {
+            return true;
+        }
+
+        if (filledMaps > 1) {
+            //a later map overrides the value of a key set by an earlier one, but keeps its position
+            LinkedHashMap<String, Object> merged = new LinkedHashMap<>();
+            for (Map<?, ?> map : maps) {
+                if (map == null) {
+                    continue;
+                }
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    if (entry.getValue() == null) {
+                        merged.remove(entry.getKey());
+                    } else {
+                        merged.put((String) entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            filledMap = merged;
+        }
+
+        writeName(Event.SEGMENTATION_KEY, false);
+        write('{');
+        boolean first = true;
+        for (Map.Entry<String, ?> entry : filledMap.entrySet()) {
+            Object value = entry.getValue();
+            if (value == null) {
+                continue;
+            }
+
+            writeName(entry.getKey(), first);
+            writeValue(value);
+            first = false;
+        }
+        write('}');
+
+        return true;
+    }
+
+    /**
+     * Returns 'false' if the segmentation of the event contains a value that org.json can't write,
+     * the event then ends before its segmentation
+     */
+    static boolean hasWritableSegmentation(@NonNull Event event) {
+        if (event.compactSegmentation != null) {
+            return event.compactSegmentation.hasOnlyFiniteValues();
+        }
+
+        Map<?, ?>[] maps = { event.segmentation, event.segmentationInt, event.segmentationDouble, event.segmentationBoolean };
+        for (Map<?, ?> map : maps) {
+            if (map == null) {
+                continue;
+            }
+
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                Object value = entry.getValue();
+                if (value != null && (entry.getKey() == null || (value instanceof Number && !isFinite(((Number) value).doubleValue())))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the compact segmentation straight from its columns, without boxing the values
+     *
+     * @return 'false' if the segmentation contains a value that can't be written
+     */
+    private boolean writeCompactSegmentation(@NonNull EventSegmentation segmentation) {
+        if (segmentation.size == 0) {
+            return true;
+        }
+
+        writeName(Event.SEGMENTATION_KEY, false);
+        write('{');
+        for (int a = 0; a < segmentation.size; a++) {
+            writeName(segmentation.keys[a], a == 0);
+            switch (segmentation.types[a]) {
+                case EventSegmentation.TYPE_INT:
+                    writeRaw(Integer.toString(segmentation.intValues[a]));
+                    break;
+                case EventSegmentation.TYPE_DOUBLE:
+                    writeRaw(numberToString(segmentation.doubleValues[a]));
+                    break;
+                case EventSegmentation.TYPE_BOOLEAN:
+                    writeRaw(segmentation.booleanValues[a] ? "true" : "false");
+                    break;
+                default:
+                    writeString(segmentation.stringValues[a]);
+                    break;
+            }
+        }
+        write('}');
+
+        return true;
+    }
+
+    private void writeOptionalString(@NonNull String name, @Nullable String value) {
+        if (value != null) {
+            writeName(name, false);
+            writeString(value);
+        }
+    }
+
+    private void writeName(@NonNull String name, boolean first) {
+        if (!first) {
+            write(',');
+        }
+        writeString(name);
+        write(':');
+    }
+
+    private void writeValue(@NonNull Object value) {
+        if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Number) {
+            writeRaw(numberToString((Number) value));
+        } else if (value instanceof Boolean) {
+            writeRaw(value.toString());
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    /**
+     * Writes a quoted string with the same escaping as org.json
+     */
+    private void writeString(@NonNull String value) {
+        write('"');
+        for (int a = 0, length = value.length(); a < length; a++) {
+            char c = value.charAt(a);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    write('\\');
+                    write(c);
+                    break;
+                case '\t':
+                    writeRaw("\\t");
+                    break;
+                case '\b':
+                    writeRaw("\\b");
+                    break;
+                case '\n':
+                    writeRaw("\\n");
+                    break;
+                case '\r':
+                    writeRaw("\\r");
+                    break;
+                case '\f':
+                    writeRaw("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        writeRaw("\\u00");
+                        write(Character.forDigit(c >> 4, 16));
+                        write(Character.forDigit(c & 0xF, 16));
+                    } else {
+                        write(c);
+                    }
+                    break;
+            }
+        }
+        write('"');
+    }
+
+    /**
+     * Same as 'JSONObject.numberToString'
+     */
+    static @NonNull String numberToString(@NonNull Number number) {
+        if (number instanceof Double && number.equals(-0d)) {
+            return "-0";
+        }
+
+        double doubleValue = number.doubleValue();
+        long longValue = number.longValue();
+        if (doubleValue == (double) longValue) {
+            return Long.toString(longValue);
+        }
+
+        return number.toString();
+    }
+
+    /**
+     * Same as 'JSONObject.numberToString' for a double, without boxing it
+     */
+    static @NonNull String numberToString(double value) {
+        if (value == 0 && Double.doubleToRawLongBits(value) != 0) {
+            return "-0";
+        }
+
+        long longValue = (long) value;
+        if (value == (double) longValue) {
+            return Long.toString(longValue);
+        }
+
+        return Double.toString(value);
+    }
+
+    static boolean isFinite(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    private void writeRaw(@NonNull String value) {
+        for (int a = 0, length = value.length(); a < length; a++) {
+            write(value.charAt(a));
+        }
+    }
+
+    private void write(char c) {
+        if (!urlEncode) {
+            out.append(c);
+            return;
+        }
+
+        if (pendingHighSurrogate != 0) {
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+
+            if (Character.isLowSurrogate(c)) {
+                appendUtf8(Character.toCodePoint(high, c));
+                return;
+            }
+
+            //an unpaired surrogate is encoded as '?', like URLEncoder does
+            appendEncodedByte('?');
+        }
+
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*' || c == '_') {
+            out.append(c);
+        } else if (c == ' ') {
+            out.append('+');
+        } else if (Character.isHighSurrogate(c)) {
+            pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            appendEncodedByte('?');
+        } else {
+            appendUtf8(c);
+        }
+    }
+
+    /**
+     * Writes out anything that is still pending, has to be called after the last write
+     */
+    void finish() {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            appendEncodedByte('?');
+        }
+    }
+
+    private void appendUtf8(int codePoint) {
+        if (codePoint < 0x80) {
+            appendEncodedByte(codePoint);
+        } else if (codePoint < 0x800) {
+            appendEncodedByte(0xC0 | (codePoint >> 6));
+            appendEncodedByte(0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            appendEncodedByte(0xE0 | (codePoint >> 12));
+            appendEncodedByte(0x80 | ((codePoint >> 6) & 0x3F));
+            appendEncodedByte(0x80 | (codePoint & 0x3F));
+        } else {
+            appendEncodedByte(0xF0 | (codePoint >> 18));
+            appendEncodedByte(0x80 | ((codePoint >> 12) & 0x3F));
+            appendEncodedByte(0x80 | ((codePoint >> 6) & 0x3F));
+            appendEncodedByte(0x80 | (codePoint & 0x3F));
+        }
+    }
+
+    private void appendEncodedByte(int b) {
+        out.append('%');
+        out.append(HEX_DIGITS[(b >> 4) & 0xF]);
+        out.append(HEX_DIGITS[b & 0xF]);
+    }
+}
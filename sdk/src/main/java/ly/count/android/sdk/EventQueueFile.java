@@ -0,0 +1,317 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * File that can back the event queue instead of a SharedPreferences JSON value.
+ *
+ * The file starts with 'BinaryRecordFormat.EVENT_QUEUE_HEADER', followed by the events as records of the binary record format,
+ * each prefixed with its length as a varint. New events are appended to the end of the file.
+ * The string table of the records is kept in memory, so a new record only contains the strings that the file doesn't have yet.
+ *
+ * Changes other than appending rewrite the file to a temporary file that then replaces the current one,
+ * which also starts a new string table. Partially written trailing records are cut off when the file is opened.
+ *
+ * A in-memory mirror of the stored events is kept, therefore reading the queue does not touch the disk.
+ */
+class EventQueueFile {
+    static final String QUEUE_FILE = "countly_event_queue.bin";
+    static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    final File file;
+    final ModuleLog L;
+
+    final ArrayList<Event> events = new ArrayList<>();
+    final BinaryRecordFormat.StringTable strings = new BinaryRecordFormat.StringTable();
+
+    RandomAccessFile queueFile = null;
+    long tailOffset = 0;
+
+    EventQueueFile(@NonNull File file, @NonNull ModuleLog logModule) {
+        this.file = file;
+        L = logModule;
+    }
+
+    /**
+     * Returns the file that would be used for the event queue of the given files directory
+     */
+    static @NonNull File queueFile(@NonNull File filesDir) {
+        return new File(filesDir, QUEUE_FILE);
+    }
+
+    /**
+     * Opens the file and loads the stored events.
+     * A file with a different header or format version is not read.
+     *
+     * @return 'true' if the file could be opened
+     */
+    synchronized boolean open() {
+        try {
+            queueFile = new RandomAccessFile(file, "rw");
+            byte[] content = new byte[(int) queueFile.length()];
+            queueFile.readFully(content);
+
+            if (content.length == 0) {
+                writeHeader();
+            } else if (!hasHeader(content)) {
+                L.e("[EventQueueFile] open, unsupported event queue file format");
+                close();
+                return false;
+            } else {
+                loadEvents(content);
+            }
+
+            L.d("[EventQueueFile] open, loaded [" + events.size() + "] events, strings:[" + strings.size() + "] size:[" + tailOffset + "]");
+            return true;
+        } catch (IOException e) {
+            L.e("[EventQueueFile] open, failed to open event queue file, " + e);
+            close();
+            return false;
+        }
+    }
+
+    synchronized void close() {
+        try {
+            if (queueFile != null) {
+                queueFile.close();
+            }
+        } catch (IOException e) {
+            L.w("[EventQueueFile] close, failed to close event queue file, " + e);
+        }
+        queueFile = null;
+    }
+
+    private static boolean hasHeader(@NonNull byte[] content) {
+        int headerLength = BinaryRecordFormat.EVENT_QUEUE_HEADER.length;
+        return content.length >= headerLength && Arrays.equals(Arrays.copyOf(content, headerLength), BinaryRecordFormat.EVENT_QUEUE_HEADER);
+    }
+
+    private void loadEvents(@NonNull byte[] content) throws IOException {
+        events.clear();
+        strings.clear();
+
+        int offset = BinaryRecordFormat.EVENT_QUEUE_HEADER.length;
+        BinaryRecordFormat.Input in = new BinaryRecordFormat.Input(content, offset, content.length - offset);
+
+        while (in.hasRemaining()) {
+            int stringCount = strings.size();
+            try {
+                int recordLength = in.readLength();
+                BinaryRecordFormat.Input record = new BinaryRecordFormat.Input(content, in.position, recordLength);
+                events.add(BinaryRecordFormat.readEvent(record, strings, false));
+                in.position += recordLength;
+                offset = in.position;
+            } catch (IOException e) {
+                //partially written record, probably the app was killed while appending
+                forgetStringsFrom(stringCount);
+                break;
+            }
+        }
+
+        if (offset < content.length) {
+            L.w("[EventQueueFile] loadEvents, truncating [" + (content.length - offset) + "] bytes of incomplete records");
+            queueFile.setLength(offset);
+        }
+
+        tailOffset = offset;
+    }
+
+    synchronized int size() {
+        return events.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return events.isEmpty();
+    }
+
+    /**
+     * Returns the stored events, oldest first
+     */
+    synchronized @NonNull List<Event> readAll() {
+        return new ArrayList<>(events);
+    }
+
+    /**
+     * Appends an event to the end of the file.
+     * The in-memory mirror holds the event as it is read back from the file.
+     * If the record can't be written, the event is dropped and the file and string table are left as they were.
+     */
+    synchronized void append(@NonNull Event event) {
+        int stringCount = strings.size();
+        BinaryRecordFormat.Output record = new BinaryRecordFormat.Output(128);
+        BinaryRecordFormat.writeEvent(event, strings, record);
+
+        Event storedEvent;
+        try {
+            storedEvent = BinaryRecordFormat.readEvent(new BinaryRecordFormat.Input(record.bytes, 0, record.size), strings, true);
+        } catch (IOException e) {
+            L.e("[EventQueueFile] append, failed to read back event record, " + e);
+            forgetStringsFrom(stringCount);
+            return;
+        }
+
+        if (queueFile != null) {
+            BinaryRecordFormat.Output framed = new BinaryRecordFormat.Output(record.size + 5);
+            framed.writeVarint(record.size);
+            framed.writeBytes(record.bytes, 0, record.size);
+
+            try {
+                queueFile.seek(tailOffset);
+                queueFile.write(framed.bytes, 0, framed.size);
+            } catch (IOException e) {
+                L.e("[EventQueueFile] append, failed to write event to file, " + e);
+                discardFrom(tailOffset);
+                forgetStringsFrom(stringCount);
+                return;
+            }
+
+            tailOffset += framed.size;
+        }
+
+        events.add(storedEvent);
+    }
+
+    /**
+     * Cuts off whatever part of a failed append made it into the file
+     */
+    private void discardFrom(long offset) {
+        try {
+            queueFile.setLength(offset);
+        } catch (IOException e) {
+            L.w("[EventQueueFile] discardFrom, failed to cut off partially written record, " + e);
+        }
+    }
+
+    /**
+     * Removes the strings that were added to the table after it had the given size
+     */
+    private void forgetStringsFrom(int stringCount) {
+        while (strings.size() > stringCount) {
+            strings.references.remove(strings.strings.remove(strings.size() - 1));
+        }
+    }
+
+    /**
+     * Replaces the whole content of the file
+     */
+    synchronized void replaceAll(@NonNull Collection<Event> newEvents) {
+        strings.clear();
+        BinaryRecordFormat.Output content = new BinaryRecordFormat.Output(BinaryRecordFormat.EVENT_QUEUE_HEADER.length + newEvents.size() * 64);
+        content.writeBytes(BinaryRecordFormat.EVENT_QUEUE_HEADER, 0, BinaryRecordFormat.EVENT_QUEUE_HEADER.length);
+        BinaryRecordFormat.Output record = new BinaryRecordFormat.Output(128);
+
+        for (Event event : newEvents) {
+            if (event != null) {
+                record.size = 0;
+                BinaryRecordFormat.writeEvent(event, strings, record);
+                content.writeVarint(record.size);
+                content.writeBytes(record.bytes, 0, record.size);
+            }
+        }
+
+        try {
+            //the mirror is read from the written content, so that it matches what a later 'open' would load
+            readBackEvents(content);
+        } catch (IOException e) {
+            L.e("[EventQueueFile] replaceAll, failed to read back event records, " + e);
+        }
+
+        if (queueFile == null) {
+            return;
+        }
+
+        File tempFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
+        RandomAccessFile newQueueFile = null;
+
+        try {
+            newQueueFile = new RandomAccessFile(tempFile, "rw");
+            newQueueFile.setLength(0);
+            newQueueFile.write(content.bytes, 0, content.size);
+            newQueueFile.getFD().sync();
+            newQueueFile.close();
+            newQueueFile = null;
+
+            //the current file is replaced only after the new content has been fully written
+            queueFile.close();
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Failed to replace event queue file");
+            }
+            queueFile = new RandomAccessFile(file, "rw");
+            tailOffset = content.size;
+        } catch (IOException e) {
+            L.e("[EventQueueFile] replaceAll, failed to rewrite event queue file, " + e);
+            reopenAfterFailure();
+        } finally {
+            if (newQueueFile != null) {
+                try {
+                    newQueueFile.close();
+                } catch (IOException ignored) {
+                }
+            }
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    private void readBackEvents(@NonNull BinaryRecordFormat.Output content) throws IOException {
+        events.clear();
+        int offset = BinaryRecordFormat.EVENT_QUEUE_HEADER.length;
+        BinaryRecordFormat.Input in = new BinaryRecordFormat.Input(content.bytes, offset, content.size - offset);
+
+        while (in.hasRemaining()) {
+            int recordLength = in.readLength();
+            events.add(BinaryRecordFormat.readEvent(new BinaryRecordFormat.Input(content.bytes, in.position, recordLength), strings, true));
+            in.position += recordLength;
+        }
+    }
+
+    /**
+     * Opens the file again after a failed rewrite, the mirror is then loaded from what is stored
+     */
+    private void reopenAfterFailure() {
+        close();
+        if (!open()) {
+            events.clear();
+            strings.clear();
+        }
+    }
+
+    synchronized void clear() {
+        events.clear();
+        strings.clear();
+
+        if (queueFile == null) {
+            return;
+        }
+
+        try {
+            writeHeader();
+        } catch (IOException e) {
+            L.e("[EventQueueFile] clear, failed to clear event queue file, " + e);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        queueFile.setLength(0);
+        queueFile.seek(0);
+        queueFile.write(BinaryRecordFormat.EVENT_QUEUE_HEADER);
+        tailOffset = BinaryRecordFormat.EVENT_QUEUE_HEADER.length;
+    }
+
+    /**
+     * Deletes the event queue file and a possibly left over temporary file
+     */
+    static void deleteFile(@NonNull File file) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(file.getPath() + TEMP_FILE_SUFFIX).delete();
+    }
+}
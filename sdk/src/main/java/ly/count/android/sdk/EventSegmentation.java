@@ -0,0 +1,126 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * Compact event segmentation with the keys in one array and the values in primitive columns.
+ *
+ * Entry 'i' has the key 'keys[i]', its type in 'types[i]' and its value at index 'i' of the column of that type.
+ * A column is only created if an entry of its type exists. Values are not boxed
+ * and, unlike splitting the segmentation into a map per type, there are no map entries to allocate.
+ * The entries keep the iteration order of the map they were created from.
+ */
+class EventSegmentation {
+    static final byte TYPE_STRING = 0;
+    static final byte TYPE_INT = 1;
+    static final byte TYPE_DOUBLE = 2;
+    static final byte TYPE_BOOLEAN = 3;
+
+    final String[] keys;
+    final byte[] types;
+    int size = 0;
+
+    String[] stringValues;
+    int[] intValues;
+    double[] doubleValues;
+    boolean[] booleanValues;
+
+    private EventSegmentation(int capacity) {
+        keys = new String[capacity];
+        types = new byte[capacity];
+    }
+
+    /**
+     * Creates the segmentation from String, Integer, Double and Boolean values of the map.
+     * Entries with other value types or with a 'null' key are left out.
+     *
+     * @return 'null' if there are no usable entries
+     */
+    static @Nullable EventSegmentation from(@Nullable Map<String, Object> segmentation) {
+        if (segmentation == null || segmentation.isEmpty()) {
+            return null;
+        }
+
+        final int capacity = segmentation.size();
+        EventSegmentation result = new EventSegmentation(capacity);
+        int index = 0;
+
+        for (Map.Entry<String, Object> entry : segmentation.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (key == null) {
+                continue;
+            }
+
+            if (value instanceof String) {
+                if (result.stringValues == null) {
+                    result.stringValues = new String[capacity];
+                }
+                result.stringValues[index] = (String) value;
+                result.types[index] = TYPE_STRING;
+            } else if (value instanceof Integer) {
+                if (result.intValues == null) {
+                    result.intValues = new int[capacity];
+                }
+                result.intValues[index] = (Integer) value;
+                result.types[index] = TYPE_INT;
+            } else if (value instanceof Double) {
+                if (result.doubleValues == null) {
+                    result.doubleValues = new double[capacity];
+                }
+                result.doubleValues[index] = (Double) value;
+                result.types[index] = TYPE_DOUBLE;
+            } else if (value instanceof Boolean) {
+                if (result.booleanValues == null) {
+                    result.booleanValues = new boolean[capacity];
+                }
+                result.booleanValues[index] = (Boolean) value;
+                result.types[index] = TYPE_BOOLEAN;
+            } else {
+                continue;
+            }
+
+            result.keys[index] = key;
+            index++;
+        }
+
+        if (index == 0) {
+            return null;
+        }
+        result.size = index;
+        return result;
+    }
+
+    /**
+     * Returns 'false' if a double value is NaN or infinite, these can't be written as JSON
+     */
+    boolean hasOnlyFiniteValues() {
+        if (doubleValues == null) {
+            return true;
+        }
+        for (int a = 0; a < size; a++) {
+            if (types[a] == TYPE_DOUBLE && !EventJsonWriter.isFinite(doubleValues[a])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the boxed value of the entry
+     */
+    @NonNull Object value(int index) {
+        switch (types[index]) {
+            case TYPE_INT:
+                return intValues[index];
+            case TYPE_DOUBLE:
+                return doubleValues[index];
+            case TYPE_BOOLEAN:
+                return booleanValues[index];
+            default:
+                return stringValues[index];
+        }
+    }
+}
@@ -9,16 +9,22 @@ public class HealthCheckCounter implements HealthTracker {
     public long countLogError = 0;
     public int statusCode = -1;
     public String errorMessage = "";
+    public long countCompressedRequests = 0;
+    public long compressionSavedBytes = 0;
 
     final String keyLogError = "LErr";
     final String keyLogWarning = "LWar";
     final String keyStatusCode = "RStatC";
     final String keyErrorMessage = "REMsg";
+    final String keyCompressedRequests = "CReq";
+    final String keyCompressionSaved = "CSav";
 
     final String requestKeyErrorCount = "el";
     final String requestKeyWarningCount = "wl";
     final String requestKeyStatusCode = "sc";
     final String requestKeyRequestError = "em";
+    final String requestKeyCompressedRequests = "cr";
+    final String requestKeyCompressionSaved = "cs";
 
     StorageProvider storageProvider;
     ModuleLog L;
@@ -41,6 +47,8 @@ public class HealthCheckCounter implements HealthTracker {
             countLogError = jsonObject.optLong(keyLogError, 0);
             statusCode = jsonObject.optInt(keyStatusCode, -1);
             errorMessage = jsonObject.optString(keyErrorMessage, "");
+            countCompressedRequests = jsonObject.optLong(keyCompressedRequests, 0);
+            compressionSavedBytes = jsonObject.optLong(keyCompressionSaved, 0);
 
             L.d("[HealthCheckCounter] Loaded initial health check state: [" + jsonObject.toString() + "]");
         } catch (Exception e) {
@@ -70,6 +78,11 @@ public class HealthCheckCounter implements HealthTracker {
         saveState();
     }
 
+    @Override public void logCompressedRequest(long uncompressedSize, long compressedSize) {
+        countCompressedRequests++;
+        compressionSavedBytes += uncompressedSize - compressedSize;
+    }
+
     @Override public void clearAndSave() {
         clearValues();//clear values
         storageProvider.setHealthCheckCounterState("");//clear stored State
@@ -82,6 +95,8 @@ public class HealthCheckCounter implements HealthTracker {
             jsonObject.put(keyLogError, countLogError);
             jsonObject.put(keyStatusCode, statusCode);
             jsonObject.put(keyErrorMessage, errorMessage);
+            jsonObject.put(keyCompressedRequests, countCompressedRequests);
+            jsonObject.put(keyCompressionSaved, compressionSavedBytes);
 
             storageProvider.setHealthCheckCounterState(jsonObject.toString());
         } catch (Exception e) {
@@ -95,6 +110,8 @@ public class HealthCheckCounter implements HealthTracker {
         countLogError = 0;
         statusCode = -1;
         errorMessage = "";
+        countCompressedRequests = 0;
+        compressionSavedBytes = 0;
     }
 
     String createRequestParam() {
@@ -108,6 +125,8 @@ public class HealthCheckCounter implements HealthTracker {
             jsonObject.put(requestKeyWarningCount, countLogWarning);
             jsonObject.put(requestKeyStatusCode, statusCode);
             jsonObject.put(requestKeyRequestError, errorMessage);
+            jsonObject.put(requestKeyCompressedRequests, countCompressedRequests);
+            jsonObject.put(requestKeyCompressionSaved, compressionSavedBytes);
         } catch (JSONException e) {
             L.w("[HealthCheckCounter] Failed to create param for hc request, " + e);
         }
@@ -7,6 +7,8 @@ interface HealthTracker {
 
     void logFailedNetworkRequest(int statusCode, String errorResponse);
 
+    void logCompressedRequest(long uncompressedSize, long compressedSize);
+
     void clearAndSave();
 
     void saveState();
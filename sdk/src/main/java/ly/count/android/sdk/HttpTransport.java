@@ -0,0 +1,25 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens the connections the SDK uses to communicate with the server.
+ *
+ * It is used for the request queue and for the immediate requests, like remote config
+ * and feedback widget downloads. Providing a single implementation backed by a client with
+ * its own connection pool, for example one that supports HTTP/2 multiplexing, lets all of them share it.
+ */
+public interface HttpTransport {
+    /**
+     * Creates a new, not yet connected connection for the given URL.
+     * The SDK sets the request method, headers and timeouts itself.
+     * If certificate pinning is used, the returned connection must be a 'HttpsURLConnection'.
+     *
+     * @param url full URL of the request
+     * @return connection to the given URL
+     */
+    @NonNull HttpURLConnection openConnection(@NonNull URL url) throws IOException;
+}
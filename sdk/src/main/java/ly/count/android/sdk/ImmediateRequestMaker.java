@@ -1,18 +1,46 @@
 package ly.count.android.sdk;
 
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
-import org.json.JSONArray;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.json.JSONObject;
 
 /**
- * Async task for making immediate server requests
+ * Makes immediate server requests on a dedicated SDK executor.
+ * The result is delivered to the callback on the main thread.
+ *
+ * The executor has a limited amount of threads and queued requests so that
+ * SDK requests don't block, or get blocked by, other background work of the app.
  */
-class ImmediateRequestMaker extends AsyncTask<Object, Void, JSONObject> implements ImmediateRequestI {
+class ImmediateRequestMaker implements ImmediateRequestI {
+    static final int MAX_THREADS = 2;
+    static final int MAX_QUEUED_REQUESTS = 32;
+    static final int DEFAULT_TIMEOUT_MS = 30000;
+
+    //connect and read timeout of a single request
+    static int requestTimeoutMs = DEFAULT_TIMEOUT_MS;
+
+    private static ThreadPoolExecutor executor = null;
+    private static final Set<ImmediateRequestMaker> activeRequests = new HashSet<>();
+
+    Future<?> future;
+    volatile HttpURLConnection connection;
+    volatile boolean cancelled = false;
 
     /**
      * Used for callback from async task
@@ -25,29 +53,100 @@ class ImmediateRequestMaker extends AsyncTask<Object, Void, JSONObject> implemen
     ModuleLog L;
 
     @Override
-    public void doWork(String requestData, String customEndpoint, ConnectionProcessor cp, boolean requestShouldBeDelayed, boolean networkingIsEnabled, InternalImmediateRequestCallback callback, ModuleLog log) {
-        this.execute(requestData, customEndpoint, cp, requestShouldBeDelayed, networkingIsEnabled, callback, log);
+    public void doWork(final String requestData, final String customEndpoint, final ConnectionProcessor cp, final boolean requestShouldBeDelayed, final boolean networkingIsEnabled, InternalImmediateRequestCallback callback, ModuleLog log) {
+        this.callback = callback;
+        L = log;
+
+        synchronized (activeRequests) {
+            try {
+                future = getExecutor().submit(new Runnable() {
+                    @Override public void run() {
+                        JSONObject result = null;
+                        try {
+                            result = performRequest(requestData, customEndpoint, cp, requestShouldBeDelayed, networkingIsEnabled);
+                        } finally {
+                            finishRequest(result);
+                        }
+                    }
+                });
+                activeRequests.add(this);
+            } catch (RejectedExecutionException ex) {
+                L.w("[ImmediateRequestMaker] doWork, too many pending requests, request dropped. Endpoint[" + customEndpoint + "]");
+                deliverResult(null);
+            }
+        }
+    }
+
+    static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS), new ThreadFactory() {
+                final AtomicInteger threadCount = new AtomicInteger(1);
+
+                @Override public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Countly-ImmediateRequest-" + threadCount.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
     }
 
     /**
-     * params fields:
-     * 0 - requestData
-     * 1 - custom endpoint
-     * 2 - connection processor
-     * 3 - requestShouldBeDelayed
-     * 4 - networkingIsEnabled
-     * 5 - callback
-     * 6 - log module
+     * Cancels all pending and running requests, their callbacks will not be called
      */
-    protected JSONObject doInBackground(Object... params) {
-        final String requestData = (String) params[0];
-        final String customEndpoint = (String) params[1];
-        final ConnectionProcessor cp = (ConnectionProcessor) params[2];
-        final boolean requestShouldBeDelayed = (boolean) params[3];
-        final boolean networkingIsEnabled = (boolean) params[4];
-        callback = (InternalImmediateRequestCallback) params[5];
-        L = (ModuleLog) params[6];
+    static void cancelAll() {
+        List<ImmediateRequestMaker> requests;
+        synchronized (activeRequests) {
+            requests = new ArrayList<>(activeRequests);
+            activeRequests.clear();
+        }
+
+        for (ImmediateRequestMaker request : requests) {
+            request.cancel();
+        }
+    }
+
+    void cancel() {
+        cancelled = true;
+        if (future != null) {
+            future.cancel(true);
+        }
+
+        HttpURLConnection activeConnection = connection;
+        if (activeConnection != null) {
+            //aborts blocking network calls
+            activeConnection.disconnect();
+        }
+    }
+
+    private void finishRequest(final JSONObject result) {
+        synchronized (activeRequests) {
+            activeRequests.remove(this);
+        }
+
+        if (cancelled) {
+            L.v("[ImmediateRequestMaker] Request was cancelled, not calling the callback");
+            return;
+        }
+
+        deliverResult(result);
+    }
+
+    private void deliverResult(final JSONObject result) {
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override public void run() {
+                L.v("[ImmediateRequestMaker] Delivering result");
 
+                if (callback != null) {
+                    callback.callback(result);
+                }
+            }
+        });
+    }
+
+    JSONObject performRequest(final String requestData, final String customEndpoint, final ConnectionProcessor cp, final boolean requestShouldBeDelayed, final boolean networkingIsEnabled) {
         if (!networkingIsEnabled) {
             L.w("[ImmediateRequestMaker] ImmediateRequestMaker, Networking config is disabled, request cancelled. Endpoint[" + customEndpoint + "] request[" + requestData + "]");
 
@@ -56,9 +155,9 @@ class ImmediateRequestMaker extends AsyncTask<Object, Void, JSONObject> implemen
 
         L.v("[ImmediateRequestMaker] Starting request");
 
-        HttpURLConnection connection = null;
         BufferedReader reader = null;
         boolean wasSuccess = true;
+        boolean responseConsumed = false;
 
         try {
             L.d("[ImmediateRequestMaker] delayed[" + requestShouldBeDelayed + "] hasCallback[" + (callback != null) + "] endpoint[" + customEndpoint + "] request[" + requestData + "] url[" + cp.getServerURL() + "]");
@@ -74,8 +173,14 @@ class ImmediateRequestMaker extends AsyncTask<Object, Void, JSONObject> implemen
                 }
             }
 
+            if (cancelled) {
+                return null;
+            }
+
             //getting connection ready
             try {
+                cp.connectTimeoutMs = requestTimeoutMs;
+                cp.readTimeoutMs = requestTimeoutMs;
                 connection = (HttpURLConnection) cp.urlConnectionForServerRequest(requestData, customEndpoint);
             } catch (IOException e) {
                 L.e("[ImmediateRequestMaker] IOException while preparing remote config update request :[" + e.toString() + "]");
@@ -113,6 +218,7 @@ class ImmediateRequestMaker extends AsyncTask<Object, Void, JSONObject> implemen
             while ((line = reader.readLine()) != null) {
                 buffer.append(line).append("\n");
             }
+            responseConsumed = true;
 
             final String receivedBuffer = buffer.toString();
 
@@ -132,9 +238,6 @@ class ImmediateRequestMaker extends AsyncTask<Object, Void, JSONObject> implemen
         } catch (Exception e) {
             L.e("[ImmediateRequestMaker] Received exception while making a immediate server request", e);
         } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
             try {
                 if (reader != null) {
                     reader.close();
@@ -142,18 +245,13 @@ class ImmediateRequestMaker extends AsyncTask<Object, Void, JSONObject> implemen
             } catch (IOException e) {
                 L.e("[ImmediateRequestMaker] ", e);
             }
+            //a fully read connection is not disconnected so that it can be reused
+            if (connection != null && !responseConsumed) {
+                connection.disconnect();
+            }
+            connection = null;
         }
         L.v("[ImmediateRequestMaker] Finished request");
         return null;
     }
-
-    @Override
-    protected void onPostExecute(JSONObject result) {
-        super.onPostExecute(result);
-        L.v("[ImmediateRequestMaker] onPostExecute");
-
-        if (callback != null) {
-            callback.callback(result);
-        }
-    }
 }
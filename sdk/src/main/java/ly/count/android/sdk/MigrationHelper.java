@@ -17,9 +17,10 @@ class MigrationHelper {
      * 1 - version where the device ID is guaranteed and advertising ID is deprecated/removed as a type
      * 2 - transitioning old RC store to one that supports metadata
      * 3 - removing messaging mode info
+     * 4 - events and requests can be stored in the binary record format
      * x - adding device ID to all requests
      */
-    static final int DATA_SCHEMA_VERSIONS = 3;
+    static final int DATA_SCHEMA_VERSIONS = 4;
 
     static final public String key_from_0_to_1_custom_id_set = "0_1_custom_id_set";
 
@@ -56,6 +57,37 @@ class MigrationHelper {
 
             currentVersion = getCurrentSchemaVersion();
         }
+
+        performRequestQueueStorageMigration();
+        performRecordFormatMigration();
+    }
+
+    /**
+     * Moves stored requests to the request queue storage that is currently in use.
+     * This is not tied to a schema version, since the file backed request queue can be enabled or disabled between app runs.
+     * After the requests are moved once, the previous storage is empty and this does nothing.
+     */
+    void performRequestQueueStorageMigration() {
+        int movedRequests = storage.migrateRequestQueueStorage();
+
+        if (movedRequests > 0) {
+            L.i("[MigrationHelper] performRequestQueueStorageMigration, moved [" + movedRequests + "] requests to the current request queue storage");
+        }
+    }
+
+    /**
+     * Converts stored events and requests if the binary record format was enabled or disabled since the last run.
+     * The conversion of data stored by earlier versions is done once by 'performMigration3To4',
+     * on other runs only the stored format is compared with the configured one.
+     * It has to run after the request queue storage migration, so that moved requests are converted as well.
+     */
+    void performRecordFormatMigration() {
+        if (!storage.recordFormatChanged()) {
+            return;
+        }
+
+        int convertedRecords = storage.migrateRecordFormat();
+        L.i("[MigrationHelper] performRecordFormatMigration, record format changed, converted [" + convertedRecords + "] stored events and requests");
     }
 
     /**
@@ -98,6 +130,10 @@ class MigrationHelper {
                 performMigration2To3(migrationParams);
                 newVersion = newVersion + 1;
                 break;
+            case 3:
+                performMigration3To4(migrationParams);
+                newVersion = newVersion + 1;
+                break;
             case DATA_SCHEMA_VERSIONS:
                 L.w("[MigrationHelper] performMigrationStep, attempting to perform migration while already having the latest schema version, skipping [" + currentVersion + "]");
                 break;
@@ -232,4 +268,16 @@ class MigrationHelper {
         SharedPreferences sp = CountlyStore.createPreferencesPush(cachedContext);
         sp.edit().remove(legacyCACHED_PUSH_MESSAGING_MODE).apply();
     }
+
+    /**
+     * Converting events and requests stored by earlier versions to the record format in use.
+     * Data stored with the binary record format can't be read by versions before this one.
+     * Requests that are still in preferences are converted when the request queue storage migration moves them to the log.
+     *
+     * @param migrationParams
+     */
+    void performMigration3To4(@NonNull Map<String, Object> migrationParams) {
+        int convertedRecords = storage.migrateRecordFormat();
+        L.d("[MigrationHelper] performMigration3To4, converted [" + convertedRecords + "] stored events and requests");
+    }
 }
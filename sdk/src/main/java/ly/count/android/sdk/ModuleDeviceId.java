@@ -53,23 +53,24 @@ public class ModuleDeviceId extends ModuleBase implements OpenUDIDProvider, Devi
         deviceIdInterface = new DeviceId();
     }
 
-    void replaceTempIDWithRealIDinRQ(@NonNull String targetDeviceId) {
-        String[] storedRequests = storageProvider.getRequests();
-        String temporaryIdTag = "&device_id=" + ly.count.android.sdk.DeviceId.temporaryCountlyDeviceId;
-        String newIdTag = "&device_id=" + targetDeviceId;
-
-        boolean foundOne = false;
-        for (int a = 0; a < storedRequests.length; a++) {
-            if (storedRequests[a].contains(temporaryIdTag)) {
-                L.d("[ModuleDeviceId] [exitTemporaryIdMode] Found a tag to replace in: [" + storedRequests[a] + "]");
-                storedRequests[a] = storedRequests[a].replace(temporaryIdTag, newIdTag);
-                foundOne = true;
+    /**
+     * Replaces the temporary device ID in the stored requests with the given one
+     */
+    @NonNull RequestRewriter temporaryIdReplacer(@NonNull final String targetDeviceId) {
+        return new RequestRewriter() {
+            @Override public @NonNull String rewrite(@NonNull String request, @NonNull RequestMetadata metadata) {
+                if (!metadata.has(RequestMetadata.FLAG_TEMPORARY_DEVICE_ID)) {
+                    return request;
+                }
+
+                L.d("[ModuleDeviceId] [exitTemporaryIdMode] Found a tag to replace in: [" + request + "]");
+                return metadata.replaceDeviceId(request, targetDeviceId);
             }
-        }
+        };
+    }
 
-        if (foundOne) {
-            storageProvider.replaceRequests(storedRequests);
-        }
+    void replaceTempIDWithRealIDinRQ(@NonNull String targetDeviceId) {
+        storageProvider.rewriteRequests(temporaryIdReplacer(targetDeviceId));
     }
 
     void exitTemporaryIdMode(@NonNull String deviceId) {
@@ -82,13 +83,16 @@ public class ModuleDeviceId extends ModuleBase implements OpenUDIDProvider, Devi
         //start by changing stored ID
         deviceIdInstance.changeToCustomId(deviceId);
 
-        //update stored request for ID change to use this new ID
-        replaceTempIDWithRealIDinRQ(deviceId);
-
         //update remote config_ values if automatic update is enabled
         _cly.moduleRemoteConfig.RCAutomaticDownloadTrigger(false);
 
-        _cly.requestQueue().attemptToSendStoredRequests();
+        //update stored request for ID change to use this new ID
+        //the queue is rewritten in the background and sent after that
+        storageProvider.rewriteRequestsInBackground(new RequestRewriter.Callback() {
+            @Override public void onRequestsRewritten(int changedRequests) {
+                _cly.requestQueue().attemptToSendStoredRequests();
+            }
+        }, temporaryIdReplacer(deviceId));
     }
 
     /**
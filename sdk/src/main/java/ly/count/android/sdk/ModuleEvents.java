@@ -2,6 +2,7 @@ package ly.count.android.sdk;
 
 import androidx.annotation.NonNull;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import ly.count.android.sdk.messaging.ModulePush;
@@ -22,6 +23,12 @@ public class ModuleEvents extends ModuleBase implements EventProvider {
 
     SafeIDGenerator safeEventIDGenerator;
 
+    //merges identical custom events, null if event aggregation is disabled
+    EventAggregator eventAggregator = null;
+
+    //hands events recorded with 'recordEvent' over to the writer thread, null if they are written on the calling thread
+    EventIngestQueue eventIngestQueue = null;
+
     ModuleEvents(Countly cly, CountlyConfig config) {
         super(cly, config);
         L.v("[ModuleEvents] Initialising");
@@ -31,6 +38,26 @@ public class ModuleEvents extends ModuleBase implements EventProvider {
         eventQueueProvider = config.eventQueueProvider;
         safeEventIDGenerator = config.safeEventIDGenerator;
 
+        if (config.eventAggregationWindowSeconds > 0) {
+            L.d("[ModuleEvents] Enabling event aggregation, window:[" + config.eventAggregationWindowSeconds + "] seconds");
+            eventAggregator = new EventAggregator(eventQueueProvider, config.eventAggregationWindowSeconds * 1000L, L);
+        }
+
+        if (config.asyncEventRecordingEnabled) {
+            L.d("[ModuleEvents] Enabling asynchronous event recording");
+            eventIngestQueue = new EventIngestQueue(cly, new EventIngestQueue.EventWriter() {
+                @Override public void writeEvent(@NonNull EventIngestQueue.PendingEvent event) {
+                    if (!_cly.isInitialized()) {
+                        //the SDK was halted after the event was recorded
+                        return;
+                    }
+
+                    Utils.truncateSegmentationValues(event.segmentation, _cly.config_.maxSegmentationValues, "[Events] recordEvent,", L);
+                    recordEventInternal(event.key, event.segmentation, event.count, event.sum, event.dur, event.instant, null, false);
+                }
+            }, L);
+        }
+
         eventsInterface = new Events();
     }
 
@@ -66,6 +93,15 @@ public class ModuleEvents extends ModuleBase implements EventProvider {
      * @param eventIdOverride
      */
     public void recordEventInternal(@NonNull final String key, final Map<String, Object> segmentation, final int count, final double sum, final double dur, UtilsTime.Instant instant, final String eventIdOverride) {
+        //if a past event is recorded, instant value will not be null
+        recordEventInternal(key, segmentation, count, sum, dur, instant, eventIdOverride, instant != null);
+    }
+
+    /**
+     * @param isPastEvent 'true' if the event happened before it was provided to the SDK
+     */
+    void recordEventInternal(@NonNull final String key, final Map<String, Object> segmentation, final int count, final double sum, final double dur, UtilsTime.Instant instant, final String eventIdOverride,
+        final boolean isPastEvent) {
         L.v("[ModuleEvents] calling 'recordEventInternal'");
         if (key == null || key.length() == 0) {
             throw new IllegalArgumentException("Valid Countly event key is required");
@@ -85,7 +121,6 @@ public class ModuleEvents extends ModuleBase implements EventProvider {
         }
 
         //record the current event timestamps
-        //if a past event is recorded, instant value will not be null
         if (instant == null) {
             instant = UtilsTime.getCurrentInstant();
         }
@@ -154,8 +189,16 @@ public class ModuleEvents extends ModuleBase implements EventProvider {
                 break;
             default:
                 if (consentProvider.getConsent(Countly.CountlyFeatureNames.events)) {
-                    eventQueueProvider.recordEventToEventQueue(key, segmentation, count, sum, dur, timestamp, hour, dow, eventId, pvid, cvid, previousEventId);
-                    previousEventId = eventId;
+                    if (eventAggregator != null && !isPastEvent && eventIdOverride == null) {
+                        //past events and events with a provided ID are never merged
+                        //events merged into an existing group don't take part in the previous event ID chain
+                        if (eventAggregator.record(key, segmentation, count, sum, dur, timestamp, hour, dow, eventId, cvid, previousEventId)) {
+                            previousEventId = eventId;
+                        }
+                    } else {
+                        eventQueueProvider.recordEventToEventQueue(key, segmentation, count, sum, dur, timestamp, hour, dow, eventId, pvid, cvid, previousEventId);
+                        previousEventId = eventId;
+                    }
                     _cly.moduleRequestQueue.sendEventsIfNeeded(false);
                 }
                 break;
@@ -223,9 +266,37 @@ public class ModuleEvents extends ModuleBase implements EventProvider {
         checkCachedPushData(_cly.countlyStore);
     }
 
+    /**
+     * Writes the aggregated events to the event queue if their window has ended or if it is forced.
+     * If it is forced, events that are waiting for the writer thread are written first.
+     */
+    void flushPendingEvents(boolean force) {
+        if (force && eventIngestQueue != null) {
+            eventIngestQueue.drain();
+        }
+        if (eventAggregator != null) {
+            eventAggregator.flush(UtilsTime.currentTimestampMs(), force);
+        }
+    }
+
+    @Override
+    void onConsentChanged(@NonNull final List<String> consentChangeDelta, final boolean newConsent, @NonNull final ModuleConsent.ConsentChangeSource changeSource) {
+        if (consentChangeDelta.contains(Countly.CountlyFeatureNames.events) && !newConsent) {
+            //the aggregated events were recorded while consent was given, treat them like the rest of the event queue
+            flushPendingEvents(true);
+        }
+    }
+
     @Override
     void halt() {
         timedEvents.clear();
+        if (eventAggregator != null) {
+            eventAggregator.clear();
+        }
+        if (eventIngestQueue != null) {
+            //the SDK is no longer initialized, so the writer drops the pending events
+            eventIngestQueue.halt();
+        }
     }
 
     public class Events {
@@ -343,9 +414,7 @@ public class ModuleEvents extends ModuleBase implements EventProvider {
          * @throws IllegalArgumentException if key is null or empty
          */
         public void recordEvent(final String key) {
-            synchronized (_cly) {
-                recordEvent(key, null, 1, 0);
-            }
+            recordEvent(key, null, 1, 0);
         }
 
         /**
@@ -357,9 +426,7 @@ public class ModuleEvents extends ModuleBase implements EventProvider {
          * @throws IllegalArgumentException if key is null or empty
          */
         public void recordEvent(final String key, final int count) {
-            synchronized (_cly) {
-                recordEvent(key, null, count, 0);
-            }
+            recordEvent(key, null, count, 0);
         }
 
         /**
@@ -372,9 +439,7 @@ public class ModuleEvents extends ModuleBase implements EventProvider {
          * @throws IllegalArgumentException if key is null or empty
          */
         public void recordEvent(final String key, final int count, final double sum) {
-            synchronized (_cly) {
-                recordEvent(key, null, count, sum);
-            }
+            recordEvent(key, null, count, sum);
         }
 
         /**
@@ -386,9 +451,7 @@ public class ModuleEvents extends ModuleBase implements EventProvider {
          * @throws IllegalArgumentException if key is null or empty
          */
         public void recordEvent(final String key, final Map<String, Object> segmentation) {
-            synchronized (_cly) {
-                recordEvent(key, segmentation, 1, 0);
-            }
+            recordEvent(key, segmentation, 1, 0);
         }
 
         /**
@@ -401,9 +464,7 @@ public class ModuleEvents extends ModuleBase implements EventProvider {
          * @throws IllegalArgumentException if key is null or empty
          */
         public void recordEvent(final String key, final Map<String, Object> segmentation, final int count) {
-            synchronized (_cly) {
-                recordEvent(key, segmentation, count, 0);
-            }
+            recordEvent(key, segmentation, count, 0);
         }
 
         /**
@@ -417,9 +478,7 @@ public class ModuleEvents extends ModuleBase implements EventProvider {
          * @throws IllegalArgumentException if key is null or empty, count is less than 1, or if segmentation contains null or empty keys or values
          */
         public void recordEvent(final String key, final Map<String, Object> segmentation, final int count, final double sum) {
-            synchronized (_cly) {
-                recordEvent(key, segmentation, count, sum, 0);
-            }
+            recordEvent(key, segmentation, count, sum, 0);
         }
 
         /**
@@ -434,6 +493,11 @@ public class ModuleEvents extends ModuleBase implements EventProvider {
          * @throws IllegalArgumentException if key is null or empty, count is less than 1, or if segmentation contains null or empty keys or values
          */
         public void recordEvent(final String key, final Map<String, Object> segmentation, final int count, final double sum, final double dur) {
+            if (eventIngestQueue != null) {
+                recordEventAsync(key, segmentation, count, sum, dur);
+                return;
+            }
+
             synchronized (_cly) {
                 if (!_cly.isInitialized()) {
                     throw new IllegalStateException("Countly.sharedInstance().init must be called before recordEvent");
@@ -446,5 +510,27 @@ public class ModuleEvents extends ModuleBase implements EventProvider {
                 eventProvider.recordEventInternal(key, segmentation, count, sum, dur, null, null);
             }
         }
+
+        /**
+         * Validates and timestamps the event on the calling thread without taking the SDK lock,
+         * the rest is done on the writer thread
+         */
+        private void recordEventAsync(final String key, final Map<String, Object> segmentation, final int count, final double sum, final double dur) {
+            if (!_cly.isInitialized()) {
+                throw new IllegalStateException("Countly.sharedInstance().init must be called before recordEvent");
+            }
+            if (key == null || key.length() == 0) {
+                throw new IllegalArgumentException("Valid Countly event key is required");
+            }
+            if (count < 1) {
+                throw new IllegalArgumentException("Countly event count should be greater than zero");
+            }
+
+            L.i("[Events] Calling recordEvent: [" + key + "]");
+
+            //the segmentation is copied, the caller may change it before the event is written
+            Map<String, Object> segmentationCopy = segmentation == null ? null : new HashMap<>(segmentation);
+            eventIngestQueue.add(new EventIngestQueue.PendingEvent(key, segmentationCopy, count, sum, dur, UtilsTime.getCurrentInstant()));
+        }
     }
 }
@@ -15,6 +15,8 @@ public class ModuleRequestQueue extends ModuleBase implements BaseInfoProvider {
     @NonNull String appKey;
     @NonNull String serverURL;
 
+    EventBatchingPolicy eventBatchingPolicy = null;
+
     //app crawlers
     private boolean shouldIgnoreCrawlers = true;//ignore app crawlers by default
     private boolean deviceIsAppCrawler = false;//by default assume that device is not a app crawler
@@ -56,6 +58,12 @@ public class ModuleRequestQueue extends ModuleBase implements BaseInfoProvider {
 
         checkIfDeviceIsAppCrawler();
 
+        if (config.adaptiveEventBatchingEnabled) {
+            eventBatchingPolicy = new EventBatchingPolicy(config.adaptiveEventBatchingMinThreshold, config.adaptiveEventBatchingMaxThreshold,
+                config.adaptiveEventBatchingMinIntervalSeconds * 1000L, config.adaptiveEventBatchingMaxIntervalSeconds * 1000L, System.currentTimeMillis(), L);
+            L.d("[ModuleRequestQueue] Adaptive event batching enabled, " + eventBatchingPolicy);
+        }
+
         requestQueueInterface = new RequestQueue();
     }
 
@@ -76,34 +84,14 @@ public class ModuleRequestQueue extends ModuleBase implements BaseInfoProvider {
                 return filteredRequests;
             }
 
-            String replacementPart = "app_key=" + UtilsNetworking.urlEncodeString(targetAppKey);
+            RequestRewriter rewriter = appKeyReplacer(targetAppKey);
 
             for (String storedRequest : storedRequests) {
                 if (storedRequest == null) {
                     continue;
                 }
 
-                boolean found = false;
-                String[] parts = storedRequest.split("&");
-
-                for (int b = 0; b < parts.length; b++) {
-                    if (parts[b].contains("app_key=")) {
-                        parts[b] = replacementPart;
-                        found = true;
-                        break;
-                    }
-                }
-
-                //recombine and add
-                StringBuilder stringBuilder = new StringBuilder(storedRequest.length());//todo make the lenght larger to take into account the app key size increase
-
-                for (int c = 0; c < parts.length; c++) {
-                    if (c != 0) {
-                        stringBuilder.append("&");
-                    }
-                    stringBuilder.append(parts[c]);
-                }
-                filteredRequests.add(stringBuilder.toString());
+                filteredRequests.add(rewriter.rewrite(storedRequest, RequestMetadata.of(storageProvider, storedRequest)));
             }
 
             return filteredRequests;
@@ -123,16 +111,14 @@ public class ModuleRequestQueue extends ModuleBase implements BaseInfoProvider {
             return filteredRequests;
         }
 
-        String searchablePart = "app_key=" + targetAppKey;
+        RequestRewriter rewriter = otherAppKeyRemover(targetAppKey);
 
         for (String storedRequest : storedRequests) {
             if (storedRequest == null) {
                 continue;
             }
 
-            if (!storedRequest.contains(searchablePart)) {
-                L.d("[ModuleRequestQueue] requestQueueEraseAppKeysRequests, Found a entry to remove: [" + storedRequest + "]");
-            } else {
+            if (rewriter.rewrite(storedRequest, RequestMetadata.of(storageProvider, storedRequest)) != null) {
                 filteredRequests.add(storedRequest);
             }
         }
@@ -140,19 +126,82 @@ public class ModuleRequestQueue extends ModuleBase implements BaseInfoProvider {
         return filteredRequests;
     }
 
+    /**
+     * Replaces the app key of requests with the given one
+     */
+    @NonNull RequestRewriter appKeyReplacer(@NonNull String targetAppKey) {
+        final String encodedAppKey = UtilsNetworking.urlEncodeString(targetAppKey);
+
+        return new RequestRewriter() {
+            @Override public @NonNull String rewrite(@NonNull String request, @NonNull RequestMetadata metadata) {
+                return metadata.replaceAppKey(request, encodedAppKey);
+            }
+        };
+    }
+
+    /**
+     * Removes requests that don't have the given app key
+     */
+    @NonNull RequestRewriter otherAppKeyRemover(@NonNull String targetAppKey) {
+        final String encodedAppKey = UtilsNetworking.urlEncodeString(targetAppKey);
+
+        return new RequestRewriter() {
+            @Override public @Nullable String rewrite(@NonNull String request, @NonNull RequestMetadata metadata) {
+                if (!encodedAppKey.equals(metadata.appKey(request))) {
+                    L.d("[ModuleRequestQueue] requestQueueEraseAppKeysRequests, Found a entry to remove: [" + request + "]");
+                    return null;
+                }
+                return request;
+            }
+        };
+    }
+
+    /**
+     * Sends the stored requests once the request queue was rewritten in the background
+     */
+    @NonNull RequestRewriter.Callback sendAfterRewrite() {
+        return new RequestRewriter.Callback() {
+            @Override public void onRequestsRewritten(int changedRequests) {
+                synchronized (_cly) {
+                    attemptToSendStoredRequestsInternal();
+                }
+            }
+        };
+    }
+
     /**
      * Check if events from event queue need to be added to the request queue
      * They will be sent either if the exceed the Threshold size or if their sending is forced
      */
     protected void sendEventsIfNeeded(boolean forceSendingEvents) {
+        if (_cly.moduleEvents != null) {
+            _cly.moduleEvents.flushPendingEvents(forceSendingEvents);
+        }
+
         int eventsInEventQueue = storageProvider.getEventQueueSize();
-        L.v("[ModuleRequestQueue] forceSendingEvents, forced:[" + forceSendingEvents + "], event count:[" + eventsInEventQueue + "]");
+        int threshold = eventBatchingPolicy != null ? eventBatchingPolicy.eventThreshold() : Countly.EVENT_QUEUE_SIZE_THRESHOLD;
+        L.v("[ModuleRequestQueue] forceSendingEvents, forced:[" + forceSendingEvents + "], event count:[" + eventsInEventQueue + "], threshold:[" + threshold + "]");
 
-        if ((forceSendingEvents && eventsInEventQueue > 0) || eventsInEventQueue >= Countly.EVENT_QUEUE_SIZE_THRESHOLD) {
+        if ((forceSendingEvents && eventsInEventQueue > 0) || eventsInEventQueue >= threshold) {
             requestQueueProvider.recordEvents(storageProvider.getEventsForRequestAndEmptyEventQueue());
+            if (eventBatchingPolicy != null) {
+                eventBatchingPolicy.onEventsFlushed(System.currentTimeMillis());
+            }
         }
     }
 
+    /**
+     * Flushes the event queue on a timer tick. With adaptive batching the flush is skipped
+     * until the current flush interval has passed, unless the threshold is reached.
+     */
+    void sendEventsOnTimer() {
+        boolean force = eventBatchingPolicy == null || eventBatchingPolicy.shouldFlushOnTimer(System.currentTimeMillis());
+        if (!force) {
+            L.v("[ModuleRequestQueue] sendEventsOnTimer, waiting for the flush interval, " + eventBatchingPolicy);
+        }
+        sendEventsIfNeeded(force);
+    }
+
     boolean isHttpPostForcedInternal() {
         return _cly.isHttpPostForced;
     }
@@ -179,18 +228,8 @@ public class ModuleRequestQueue extends ModuleBase implements BaseInfoProvider {
     public void flushQueuesInternal() {
         CountlyStore store = _cly.countlyStore;
 
-        int count = 0;
-
-        while (true) {
-            final String[] storedEvents = store.getRequests();
-            if (storedEvents == null || storedEvents.length == 0) {
-                // currently no data to send, we are done for now
-                break;
-            }
-            //remove stored data
-            store.removeRequest(storedEvents[0]);
-            count++;
-        }
+        int count = store.getRequestQueueSize();
+        store.replaceRequestList(new ArrayList<String>());
 
         L.d("[ModuleRequestQueue] flushRequestQueues removed [" + count + "] requests");
     }
@@ -205,8 +244,8 @@ public class ModuleRequestQueue extends ModuleBase implements BaseInfoProvider {
         //combine all available events into a request
         sendEventsIfNeeded(true);
 
-        //trigger the processing of the request queue
-        requestQueueProvider.tick();
+        //trigger the processing of the request queue, a manual attempt does not wait for the retry delay
+        requestQueueProvider.tick(true);
     }
 
     /**
@@ -215,11 +254,7 @@ public class ModuleRequestQueue extends ModuleBase implements BaseInfoProvider {
     synchronized public void requestQueueOverwriteAppKeysInternal() {
         L.i("[ModuleRequestQueue] Calling requestQueueOverwriteAppKeys");
 
-        List<String> filteredRequests = requestQueueReplaceWithAppKey(storageProvider.getRequests(), baseInfoProvider.getAppKey());
-        if (filteredRequests != null) {
-            storageProvider.replaceRequestList(filteredRequests);
-            attemptToSendStoredRequestsInternal();
-        }
+        storageProvider.rewriteRequestsInBackground(sendAfterRewrite(), appKeyReplacer(baseInfoProvider.getAppKey()));
     }
 
     /**
@@ -228,9 +263,7 @@ public class ModuleRequestQueue extends ModuleBase implements BaseInfoProvider {
     synchronized public void requestQueueEraseAppKeysRequestsInternal() {
         L.i("[ModuleRequestQueue] Calling requestQueueEraseAppKeysRequests");
 
-        List<String> filteredRequests = requestQueueRemoveWithoutAppKey(storageProvider.getRequests(), baseInfoProvider.getAppKey());
-        storageProvider.replaceRequestList(filteredRequests);
-        attemptToSendStoredRequestsInternal();
+        storageProvider.rewriteRequestsInBackground(sendAfterRewrite(), otherAppKeyRemover(baseInfoProvider.getAppKey()));
     }
 
     /**
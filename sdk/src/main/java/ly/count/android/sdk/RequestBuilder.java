@@ -0,0 +1,101 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Builds query string formatted requests in a single buffer.
+ *
+ * Values can be URL-encoded straight into the buffer with the same result as 'UtilsNetworking.urlEncodeString'.
+ * Builders are pooled per thread. 'build()' returns the finished request and gives the builder back
+ * to the pool, so a builder must not be used after that.
+ */
+class RequestBuilder {
+    static final int DEFAULT_CAPACITY = 512;
+
+    //builders that had to grow larger than this are not kept around
+    static final int MAX_POOLED_CAPACITY = 16 * 1024;
+
+    private static final ThreadLocal<RequestBuilder> pool = new ThreadLocal<>();
+
+    final StringBuilder sb;
+
+    private RequestBuilder(int capacity) {
+        sb = new StringBuilder(capacity);
+    }
+
+    static @NonNull RequestBuilder obtain() {
+        return obtain(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Returns the pooled builder of this thread or a new one if it is already in use
+     *
+     * @param expectedLength expected length of the request, used to size the buffer
+     */
+    static @NonNull RequestBuilder obtain(int expectedLength) {
+        RequestBuilder builder = pool.get();
+        if (builder == null) {
+            return new RequestBuilder(Math.max(expectedLength, 16));
+        }
+
+        pool.set(null);
+        builder.sb.ensureCapacity(expectedLength);
+        return builder;
+    }
+
+    /**
+     * Appends an already formatted part of a request
+     */
+    @NonNull RequestBuilder append(@NonNull String requestPart) {
+        sb.append(requestPart);
+        return this;
+    }
+
+    /**
+     * Adds a parameter with a value that is already encoded or doesn't need encoding
+     */
+    @NonNull RequestBuilder add(@NonNull String key, @NonNull String value) {
+        appendKey(key);
+        sb.append(value);
+        return this;
+    }
+
+    @NonNull RequestBuilder add(@NonNull String key, long value) {
+        appendKey(key);
+        sb.append(value);
+        return this;
+    }
+
+    /**
+     * Adds a parameter and URL-encodes its value
+     */
+    @NonNull RequestBuilder addEncoded(@NonNull String key, @NonNull String value) {
+        appendKey(key);
+        UtilsNetworking.appendUrlEncoded(sb, value);
+        return this;
+    }
+
+    private void appendKey(@NonNull String key) {
+        if (sb.length() > 0) {
+            sb.append('&');
+        }
+        sb.append(key).append('=');
+    }
+
+    int length() {
+        return sb.length();
+    }
+
+    /**
+     * Returns the request and releases the builder
+     */
+    @NonNull String build() {
+        String result = sb.toString();
+        sb.setLength(0);
+
+        if (sb.capacity() <= MAX_POOLED_CAPACITY) {
+            pool.set(this);
+        }
+        return result;
+    }
+}
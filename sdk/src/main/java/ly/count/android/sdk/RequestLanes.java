@@ -0,0 +1,130 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+
+/**
+ * Index of the stored requests by priority lane, so that the next request to send and the request to drop
+ * when the queue is full are found without going over the whole request queue.
+ *
+ * Every lane holds its requests in queue order, so the oldest request of a lane is always at its front.
+ * Requests that are ordering barriers are also kept in a separate list, since nothing that was added
+ * after the oldest of them can be sent before it.
+ *
+ * Entries are found by the request instances held by the queue.
+ */
+class RequestLanes {
+    static class Entry {
+        final String request;
+        final int priority;
+        final boolean barrier;
+        final long sequence;//position in the queue, only used for comparing entries
+        Entry duplicate = null;//the next entry of the same request instance, if it is in the queue more than once
+
+        Entry(@NonNull String request, int priority, boolean barrier, long sequence) {
+            this.request = request;
+            this.priority = priority;
+            this.barrier = barrier;
+            this.sequence = sequence;
+        }
+    }
+
+    //indexed by priority
+    final ArrayDeque<Entry>[] lanes;
+    final ArrayDeque<Entry> barriers = new ArrayDeque<>();
+    final IdentityHashMap<String, Entry> entries = new IdentityHashMap<>();
+
+    long nextSequence = 0;
+
+    @SuppressWarnings("unchecked")
+    RequestLanes() {
+        lanes = new ArrayDeque[RequestMetadata.PRIORITY_BULK + 1];
+        for (int a = 0; a < lanes.length; a++) {
+            lanes[a] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Adds a request that was added to the end of the queue
+     */
+    void add(@NonNull String request, @NonNull RequestMetadata metadata) {
+        Entry entry = new Entry(request, metadata.priority(), metadata.isOrderingBarrier(), nextSequence++);
+        lanes[entry.priority].addLast(entry);
+        if (entry.barrier) {
+            barriers.addLast(entry);
+        }
+
+        Entry existing = entries.get(request);
+        if (existing == null) {
+            entries.put(request, entry);
+        } else {
+            while (existing.duplicate != null) {
+                existing = existing.duplicate;
+            }
+            existing.duplicate = entry;
+        }
+    }
+
+    /**
+     * Removes the oldest entry of the given request instance
+     *
+     * @return 'false' if the instance is not in the index
+     */
+    boolean remove(@NonNull String request) {
+        Entry entry = entries.remove(request);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.duplicate != null) {
+            entries.put(request, entry.duplicate);
+        }
+
+        removeEntry(lanes[entry.priority], entry);
+        if (entry.barrier) {
+            removeEntry(barriers, entry);
+        }
+        return true;
+    }
+
+    private static void removeEntry(@NonNull ArrayDeque<Entry> lane, @NonNull Entry entry) {
+        //requests are usually taken from the front of their lane
+        if (lane.peekFirst() == entry) {
+            lane.pollFirst();
+        } else {
+            lane.removeFirstOccurrence(entry);
+        }
+    }
+
+    /**
+     * Returns the oldest request of the most important lane that was added before the oldest barrier,
+     * or the oldest barrier if there is no such request
+     */
+    @Nullable String next() {
+        Entry barrier = barriers.peekFirst();
+        long barrierSequence = barrier == null ? Long.MAX_VALUE : barrier.sequence;
+
+        for (ArrayDeque<Entry> lane : lanes) {
+            Entry first = lane.peekFirst();
+            if (first != null && first.sequence < barrierSequence) {
+                return first.request;
+            }
+        }
+
+        return barrier == null ? null : barrier.request;
+    }
+
+    /**
+     * Returns the oldest request of the least important lane that is not empty
+     */
+    @Nullable String evictionCandidate() {
+        for (int a = lanes.length - 1; a >= 0; a--) {
+            Entry first = lanes[a].peekFirst();
+            if (first != null) {
+                return first.request;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,211 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * The parts of a stored request that are needed for routing and rewriting it.
+ *
+ * It is created with a single pass over the request, so that the request queue does not have to be
+ * searched for each tag separately. The values are kept in their URL-encoded form,
+ * the same way they appear in the request.
+ */
+class RequestMetadata {
+    static final String KEY_APP_KEY = "app_key";
+    static final String KEY_DEVICE_ID = "device_id";
+    static final String KEY_OVERRIDE_ID = "override_id";
+    static final String KEY_CRASH = "crash";
+    static final String KEY_CONSENT = "consent";
+    static final String KEY_EVENTS = "events";
+    static final String KEY_APM = "apm";
+
+    //priority lanes of the request queue, a lower value is sent earlier
+    static final int PRIORITY_CRITICAL = 0;
+    static final int PRIORITY_NORMAL = 1;
+    static final int PRIORITY_BULK = 2;
+
+    //the request contains a device ID, which means the device ID is being changed with merge
+    static final int FLAG_DEVICE_ID = 1;
+    //the request contains the device ID that has to be used instead of the current one
+    static final int FLAG_OVERRIDE_ID = 1 << 1;
+    static final int FLAG_CRASH = 1 << 2;
+    static final int FLAG_PICTURE_PATH = 1 << 3;
+    static final int FLAG_TEMPORARY_DEVICE_ID = 1 << 4;
+    static final int FLAG_TEMPORARY_OVERRIDE_ID = 1 << 5;
+    static final int FLAG_CONSENT = 1 << 6;
+    static final int FLAG_EVENTS = 1 << 7;
+    static final int FLAG_APM = 1 << 8;
+
+    final int flags;
+
+    //start and end of the app key value, -1 if there is no app key
+    final int appKeyStart;
+    final int appKeyEnd;
+
+    //start and end of the value of the first device ID parameter, -1 if there is none
+    final int deviceIdStart;
+    final int deviceIdEnd;
+
+    RequestMetadata(int flags, int appKeyStart, int appKeyEnd, int deviceIdStart, int deviceIdEnd) {
+        this.flags = flags;
+        this.appKeyStart = appKeyStart;
+        this.appKeyEnd = appKeyEnd;
+        this.deviceIdStart = deviceIdStart;
+        this.deviceIdEnd = deviceIdEnd;
+    }
+
+    boolean has(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * Crashes, consent changes and device ID changes are critical,
+     * event batches and APM traces are bulk traffic, everything else is normal
+     */
+    int priority() {
+        if (has(FLAG_CRASH | FLAG_CONSENT | FLAG_DEVICE_ID | FLAG_OVERRIDE_ID)) {
+            return PRIORITY_CRITICAL;
+        } else if (has(FLAG_EVENTS | FLAG_APM)) {
+            return PRIORITY_BULK;
+        }
+        return PRIORITY_NORMAL;
+    }
+
+    /**
+     * Requests that change the device ID are never reordered.
+     * Everything recorded before them is sent first and everything recorded after them is sent after them.
+     */
+    boolean isOrderingBarrier() {
+        return has(FLAG_DEVICE_ID | FLAG_OVERRIDE_ID);
+    }
+
+    /**
+     * Returns the app key of the request as it is written in it
+     */
+    @Nullable String appKey(@NonNull String request) {
+        if (appKeyStart < 0) {
+            return null;
+        }
+        return request.substring(appKeyStart, appKeyEnd);
+    }
+
+    /**
+     * Returns the device ID of the request as it is written in it
+     */
+    @Nullable String deviceId(@NonNull String request) {
+        if (deviceIdStart < 0) {
+            return null;
+        }
+        return request.substring(deviceIdStart, deviceIdEnd);
+    }
+
+    /**
+     * Returns the request with its app key replaced, or the same request if it has no app key
+     *
+     * @param encodedAppKey URL-encoded app key
+     */
+    @NonNull String replaceAppKey(@NonNull String request, @NonNull String encodedAppKey) {
+        return replaceRange(request, appKeyStart, appKeyEnd, encodedAppKey);
+    }
+
+    /**
+     * Returns the request with the value of the first device ID parameter replaced
+     */
+    @NonNull String replaceDeviceId(@NonNull String request, @NonNull String deviceIdValue) {
+        return replaceRange(request, deviceIdStart, deviceIdEnd, deviceIdValue);
+    }
+
+    private static @NonNull String replaceRange(@NonNull String request, int start, int end, @NonNull String replacement) {
+        if (start < 0) {
+            return request;
+        }
+
+        return new StringBuilder(request.length() - (end - start) + replacement.length())
+            .append(request, 0, start)
+            .append(replacement)
+            .append(request, end, request.length())
+            .toString();
+    }
+
+    /**
+     * Returns the metadata kept by the storage for a stored request or parses it if the storage doesn't provide it
+     */
+    static @NonNull RequestMetadata of(@NonNull StorageProvider storageProvider, @NonNull String request) {
+        RequestMetadata metadata = storageProvider.getRequestMetadata(request);
+        return metadata != null ? metadata : parse(request);
+    }
+
+    /**
+     * Parses the request in a single pass
+     */
+    static @NonNull RequestMetadata parse(@NonNull String request) {
+        int flags = 0;
+        int appKeyStart = -1;
+        int appKeyEnd = -1;
+        int deviceIdStart = -1;
+        int deviceIdEnd = -1;
+
+        final int length = request.length();
+        int paramStart = 0;
+
+        while (paramStart <= length) {
+            int paramEnd = request.indexOf('&', paramStart);
+            if (paramEnd < 0) {
+                paramEnd = length;
+            }
+
+            int separator = paramStart;
+            while (separator < paramEnd && request.charAt(separator) != '=') {
+                separator++;
+            }
+
+            if (separator < paramEnd) {
+                int keyLength = separator - paramStart;
+                int valueStart = separator + 1;
+                //device ID tags only count when they are not the first parameter
+                boolean firstParam = paramStart == 0;
+
+                if (appKeyStart < 0 && keyMatches(request, paramStart, keyLength, KEY_APP_KEY)) {
+                    appKeyStart = valueStart;
+                    appKeyEnd = paramEnd;
+                } else if (!firstParam && keyMatches(request, paramStart, keyLength, KEY_DEVICE_ID)) {
+                    if (deviceIdStart < 0) {
+                        deviceIdStart = valueStart;
+                        deviceIdEnd = paramEnd;
+                    }
+                    flags |= FLAG_DEVICE_ID;
+                    if (valueMatches(request, valueStart, paramEnd, DeviceId.temporaryCountlyDeviceId)) {
+                        flags |= FLAG_TEMPORARY_DEVICE_ID;
+                    }
+                } else if (!firstParam && keyMatches(request, paramStart, keyLength, KEY_OVERRIDE_ID)) {
+                    flags |= FLAG_OVERRIDE_ID;
+                    if (valueMatches(request, valueStart, paramEnd, DeviceId.temporaryCountlyDeviceId)) {
+                        flags |= FLAG_TEMPORARY_OVERRIDE_ID;
+                    }
+                } else if (!firstParam && keyMatches(request, paramStart, keyLength, KEY_CRASH)) {
+                    flags |= FLAG_CRASH;
+                } else if (!firstParam && keyMatches(request, paramStart, keyLength, KEY_CONSENT)) {
+                    flags |= FLAG_CONSENT;
+                } else if (!firstParam && keyMatches(request, paramStart, keyLength, KEY_EVENTS)) {
+                    flags |= FLAG_EVENTS;
+                } else if (!firstParam && keyMatches(request, paramStart, keyLength, KEY_APM)) {
+                    flags |= FLAG_APM;
+                } else if (keyMatches(request, paramStart, keyLength, ModuleUserProfile.PICTURE_PATH_KEY)) {
+                    flags |= FLAG_PICTURE_PATH;
+                }
+            }
+
+            paramStart = paramEnd + 1;
+        }
+
+        return new RequestMetadata(flags, appKeyStart, appKeyEnd, deviceIdStart, deviceIdEnd);
+    }
+
+    private static boolean keyMatches(@NonNull String request, int keyStart, int keyLength, @NonNull String key) {
+        return keyLength == key.length() && request.regionMatches(keyStart, key, 0, keyLength);
+    }
+
+    private static boolean valueMatches(@NonNull String request, int valueStart, int valueEnd, @NonNull String value) {
+        return valueEnd - valueStart == value.length() && request.regionMatches(valueStart, value, 0, value.length());
+    }
+}
@@ -0,0 +1,701 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Append-only file log that can back the request queue instead of a single SharedPreferences string.
+ *
+ * Requests are written to a segment file as length prefixed records:
+ * a 4 byte big endian payload length followed by the UTF-8 encoded request.
+ * If compact records are enabled, the highest bit of the length is set and the payload is the request
+ * encoded with 'BinaryRecordFormat.encodeRequest' instead. Both kinds of records can be read,
+ * new records are written in the enabled format and a rewrite converts all live records to it.
+ * Records are only ever appended. Removing the oldest request just moves the head pointer forward.
+ * The head pointer and the generation of the current segment are kept in a separate, fixed size head file.
+ * Removing a request from the middle of the queue sets the second highest bit of its length,
+ * such records are skipped when the log is loaded.
+ *
+ * Once enough dead space has accumulated in front of the head and in removed records, the live records are copied
+ * to a segment of the next generation (compaction). The head file is switched over to the new
+ * generation only after the new segment is completely written, so an interrupted compaction
+ * leaves the previous segment intact.
+ *
+ * A in-memory mirror of the live records is kept, therefore adding, peeking and removing the oldest request
+ * are O(1) and reading the queue does not touch the disk.
+ */
+class RequestQueueFileLog {
+    static final String LOG_DIRECTORY = "countly_request_queue";
+    static final String HEAD_FILE = "rq.head";
+    static final String SEGMENT_FILE_PREFIX = "rq.";
+    static final String SEGMENT_FILE_SUFFIX = ".seg";
+
+    static final int RECORD_HEADER_SIZE = 4;
+    static final int COMPACT_RECORD_FLAG = 0x80000000;
+    static final int REMOVED_RECORD_FLAG = 0x40000000;
+    static final int PAYLOAD_LENGTH_MASK = 0x3FFFFFFF;
+    static final int HEAD_FILE_SIZE = 12;//int generation + long head offset
+
+    //compaction is only considered after this amount of dead bytes is in the segment
+    static final long COMPACTION_MIN_DEAD_BYTES = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    interface RequestMapper {
+        /**
+         * @return the new request, the same request to keep it or 'null' to remove it
+         */
+        @Nullable String map(@NonNull String request);
+    }
+
+    static class Record {
+        String request;
+        long offset;
+        int size;//size of the whole record in bytes, including the header
+        boolean compact;//'true' if the record is stored in the binary record format
+
+        Record(@NonNull String request, long offset, int size, boolean compact) {
+            this.request = request;
+            this.offset = offset;
+            this.size = size;
+            this.compact = compact;
+        }
+    }
+
+    final File directory;
+    final ModuleLog L;
+
+    final ArrayDeque<Record> records = new ArrayDeque<>();
+
+    //if enabled, new records are written in the binary record format
+    boolean compactRecordsEnabled = false;
+
+    RandomAccessFile headFile = null;
+    RandomAccessFile segmentFile = null;
+
+    int generation = 0;
+    long headOffset = 0;
+    long tailOffset = 0;
+    long liveRecordBytes = 0;//size of the live records, the rest of the segment after the head are removed records
+
+    RequestQueueFileLog(@NonNull File directory, @NonNull ModuleLog logModule) {
+        this.directory = directory;
+        L = logModule;
+    }
+
+    /**
+     * Returns the directory that would be used for the request queue log of the given files directory
+     */
+    static @NonNull File logDirectory(@NonNull File filesDir) {
+        return new File(filesDir, LOG_DIRECTORY);
+    }
+
+    /**
+     * Opens the log and loads the live records.
+     * Partially written trailing records are cut off, records that can't be decoded are skipped.
+     *
+     * @return 'true' if the log could be opened
+     */
+    synchronized boolean open() {
+        try {
+            if (!directory.exists() && !directory.mkdirs()) {
+                L.e("[RequestQueueFileLog] open, failed to create log directory [" + directory.getAbsolutePath() + "]");
+                return false;
+            }
+
+            headFile = new RandomAccessFile(new File(directory, HEAD_FILE), "rw");
+            if (headFile.length() >= HEAD_FILE_SIZE) {
+                headFile.seek(0);
+                generation = headFile.readInt();
+                headOffset = headFile.readLong();
+            } else {
+                generation = 0;
+                headOffset = 0;
+                writeHead();
+            }
+
+            segmentFile = new RandomAccessFile(segmentFileForGeneration(generation), "rw");
+            deleteStaleSegments();
+            loadRecords();
+
+            L.d("[RequestQueueFileLog] open, loaded [" + records.size() + "] requests, generation:[" + generation + "] head:[" + headOffset + "] tail:[" + tailOffset + "]");
+            return true;
+        } catch (IOException e) {
+            L.e("[RequestQueueFileLog] open, failed to open request queue log, " + e);
+            close();
+            return false;
+        }
+    }
+
+    synchronized void close() {
+        try {
+            if (segmentFile != null) {
+                segmentFile.close();
+            }
+            if (headFile != null) {
+                headFile.close();
+            }
+        } catch (IOException e) {
+            L.w("[RequestQueueFileLog] close, failed to close log files, " + e);
+        }
+        segmentFile = null;
+        headFile = null;
+    }
+
+    private void loadRecords() throws IOException {
+        records.clear();
+        liveRecordBytes = 0;
+
+        long fileLength = segmentFile.length();
+        if (headOffset > fileLength) {
+            //head points outside of the segment, nothing valid can be read
+            L.w("[RequestQueueFileLog] loadRecords, head offset is outside of the segment, dropping the segment content");
+            headOffset = fileLength;
+            writeHead();
+        }
+
+        long offset = headOffset;
+        segmentFile.seek(offset);
+
+        while (offset + RECORD_HEADER_SIZE <= fileLength) {
+            int header = segmentFile.readInt();
+            boolean compact = (header & COMPACT_RECORD_FLAG) != 0;
+            int payloadLength = header & PAYLOAD_LENGTH_MASK;
+            int recordSize = RECORD_HEADER_SIZE + payloadLength;
+
+            if (offset + recordSize > fileLength) {
+                //partially written record, probably the app was killed while appending
+                break;
+            }
+
+            if ((header & REMOVED_RECORD_FLAG) != 0) {
+                offset += recordSize;
+                segmentFile.seek(offset);
+                continue;
+            }
+
+            byte[] payload = new byte[payloadLength];
+            segmentFile.readFully(payload);
+
+            String request;
+            if (compact) {
+                try {
+                    request = BinaryRecordFormat.decodeRequest(payload, 0, payloadLength);
+                } catch (IOException e) {
+                    //records don't depend on each other, so only this one is lost, it is dropped by the next compaction
+                    L.w("[RequestQueueFileLog] loadRecords, skipping compact record that can't be decoded at [" + offset + "], " + e);
+                    offset += recordSize;
+                    continue;
+                }
+            } else {
+                request = new String(payload, UTF8);
+            }
+
+            records.add(new Record(request, offset, recordSize, compact));
+            liveRecordBytes += recordSize;
+            offset += recordSize;
+        }
+
+        if (offset < fileLength) {
+            L.w("[RequestQueueFileLog] loadRecords, truncating [" + (fileLength - offset) + "] bytes of incomplete records");
+            segmentFile.setLength(offset);
+        }
+
+        tailOffset = offset;
+    }
+
+    synchronized int size() {
+        return records.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return records.isEmpty();
+    }
+
+    /**
+     * Returns the oldest request without removing it
+     */
+    synchronized @Nullable String peek() {
+        Record first = records.peekFirst();
+        return first == null ? null : first.request;
+    }
+
+    /**
+     * Returns up to the given amount of the oldest requests without removing them
+     */
+    synchronized @NonNull String[] peek(int maxCount) {
+        String[] result = new String[Math.max(0, Math.min(maxCount, records.size()))];
+        Iterator<Record> iterator = records.iterator();
+        for (int a = 0; a < result.length; a++) {
+            result[a] = iterator.next().request;
+        }
+        return result;
+    }
+
+    synchronized @NonNull String[] readAll() {
+        String[] result = new String[records.size()];
+        int a = 0;
+        for (Record record : records) {
+            result[a++] = record.request;
+        }
+        return result;
+    }
+
+    /**
+     * Iterates over the live requests, oldest first. The log must not be changed while iterating.
+     */
+    synchronized @NonNull Iterator<String> requestIterator() {
+        final Iterator<Record> iterator = records.iterator();
+        return new Iterator<String>() {
+            @Override public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override public String next() {
+                return iterator.next().request;
+            }
+
+            @Override public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Encodes a request as a record in the currently enabled format.
+     * The length of the result is the amount of bytes the request takes up in the log.
+     */
+    synchronized @NonNull byte[] createRecord(@NonNull String request) {
+        return createRecordBytes(encodePayload(request), compactRecordsEnabled);
+    }
+
+    /**
+     * Appends a request to the end of the log
+     *
+     * @param request request to add
+     * @param writeInSync if 'true', the segment is flushed to the storage device before returning
+     * @return 'true' if the request was added, 'false' if it could not be written
+     */
+    synchronized boolean append(@NonNull String request, boolean writeInSync) {
+        return append(request, createRecord(request), writeInSync);
+    }
+
+    /**
+     * @param record the request encoded with 'createRecord'
+     */
+    synchronized boolean append(@NonNull String request, @NonNull byte[] record, boolean writeInSync) {
+        int recordSize = record.length;
+
+        if (segmentFile == null) {
+            records.addLast(new Record(request, tailOffset, recordSize, compactRecordsEnabled));
+            liveRecordBytes += recordSize;
+            return true;
+        }
+
+        try {
+            segmentFile.seek(tailOffset);
+            segmentFile.write(record);
+            if (writeInSync) {
+                segmentFile.getFD().sync();
+            }
+        } catch (IOException e) {
+            //the record is not added, so the next append starts at the same offset and replaces what was partially written
+            L.e("[RequestQueueFileLog] append, failed to write request to log, " + e);
+            discardFrom(tailOffset);
+            return false;
+        }
+
+        records.addLast(new Record(request, tailOffset, recordSize, compactRecordsEnabled));
+        tailOffset += recordSize;
+        liveRecordBytes += recordSize;
+        return true;
+    }
+
+    /**
+     * Cuts off whatever was written after the given offset, a failure is only logged
+     * since the next append at that offset overwrites it anyway
+     */
+    private void discardFrom(long offset) {
+        try {
+            segmentFile.setLength(offset);
+        } catch (IOException e) {
+            L.w("[RequestQueueFileLog] discardFrom, failed to cut off partially written record, " + e);
+        }
+    }
+
+    /**
+     * Removes the oldest request
+     *
+     * @return the removed request or 'null' if the log was empty
+     */
+    synchronized @Nullable String removeFirst() {
+        Record first = records.pollFirst();
+        if (first == null) {
+            return null;
+        }
+
+        headOffset = first.offset + first.size;
+        liveRecordBytes -= first.size;
+
+        try {
+            if (records.isEmpty()) {
+                //nothing alive is left, the segment can be reset without copying anything
+                truncate();
+            } else {
+                writeHead();
+                compactIfNeeded();
+            }
+        } catch (IOException e) {
+            L.e("[RequestQueueFileLog] removeFirst, failed to move head, " + e);
+        }
+
+        return first.request;
+    }
+
+    /**
+     * Removes the first request that matches the provided one.
+     * Removing the oldest request moves the head, removing from the middle of the queue marks the record as removed.
+     *
+     * @return 'true' if a matching request was found and removed
+     */
+    synchronized boolean remove(@NonNull String request) {
+        Record first = records.peekFirst();
+        if (first == null) {
+            return false;
+        }
+
+        if (first.request.equals(request)) {
+            removeFirst();
+            return true;
+        }
+
+        Iterator<Record> iterator = records.iterator();
+        while (iterator.hasNext()) {
+            Record record = iterator.next();
+            if (record.request.equals(request)) {
+                iterator.remove();
+                markRemoved(record);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Marks a record in the middle of the log as removed, the space is reclaimed by a later compaction
+     */
+    private void markRemoved(@NonNull Record record) {
+        liveRecordBytes -= record.size;
+
+        if (segmentFile == null) {
+            return;
+        }
+
+        int header = (record.compact ? COMPACT_RECORD_FLAG : 0) | REMOVED_RECORD_FLAG | (record.size - RECORD_HEADER_SIZE);
+
+        try {
+            //only the first byte of the header changes, so the record can't end up partially marked
+            segmentFile.seek(record.offset);
+            segmentFile.write(header >>> 24);
+            compactIfNeeded();
+        } catch (IOException e) {
+            L.e("[RequestQueueFileLog] markRemoved, failed to mark record as removed, " + e);
+        }
+    }
+
+    /**
+     * Replaces the whole content of the log
+     *
+     * @return 'false' if the log could not be rewritten, the previous content is then kept
+     */
+    synchronized boolean replaceAll(@NonNull Collection<String> requests) {
+        ArrayDeque<Record> newRecords = new ArrayDeque<>(requests.size());
+        for (String request : requests) {
+            if (request != null) {
+                //offset and size are set while rewriting
+                newRecords.add(new Record(request, 0, 0, compactRecordsEnabled));
+            }
+        }
+
+        return rewrite(newRecords);
+    }
+
+    /**
+     * Maps every request in a single pass. The log is rewritten once, only if anything was changed.
+     *
+     * @return amount of changed or removed requests, 0 if the log could not be rewritten and was left unchanged
+     */
+    synchronized int mapAll(@NonNull RequestMapper mapper) {
+        int changed = 0;
+        ArrayDeque<Record> newRecords = new ArrayDeque<>(records.size());
+        for (Record record : records) {
+            String result = mapper.map(record.request);
+
+            if (result == null) {
+                changed++;
+            } else if (result != record.request) {
+                newRecords.add(new Record(result, 0, 0, compactRecordsEnabled));
+                changed++;
+            } else {
+                newRecords.add(record);
+            }
+        }
+
+        if (changed > 0 && !rewrite(newRecords)) {
+            return 0;
+        }
+        return changed;
+    }
+
+    /**
+     * Rewrites the log if any live record is not in the currently enabled record format
+     *
+     * @return amount of converted records, 0 if the log could not be rewritten
+     */
+    synchronized int convertRecords() {
+        int converted = 0;
+        for (Record record : records) {
+            if (record.compact != compactRecordsEnabled) {
+                converted++;
+            }
+        }
+
+        if (converted > 0 && !rewrite(records)) {
+            return 0;
+        }
+        return converted;
+    }
+
+    synchronized void clear() {
+        records.clear();
+        headOffset = 0;
+        liveRecordBytes = 0;
+
+        try {
+            truncate();
+        } catch (IOException e) {
+            L.e("[RequestQueueFileLog] clear, failed to clear log, " + e);
+        }
+    }
+
+    /**
+     * Size of the live records in the segment, including their headers
+     */
+    synchronized long liveBytes() {
+        return liveRecordBytes;
+    }
+
+    private void compactIfNeeded() throws IOException {
+        long liveBytes = liveRecordBytes;
+        long deadBytes = tailOffset - liveBytes;
+
+        if (deadBytes >= COMPACTION_MIN_DEAD_BYTES && deadBytes > liveBytes) {
+            L.v("[RequestQueueFileLog] compactIfNeeded, compacting log, dead:[" + deadBytes + "] live:[" + liveBytes + "]");
+            rewrite(records);
+        }
+    }
+
+    /**
+     * Writes the given records to a segment of the next generation and switches over to it.
+     * The given records replace the current ones only if the switch succeeded.
+     *
+     * @return 'false' if the log could not be rewritten, the current segment and records are then kept
+     */
+    private boolean rewrite(@NonNull Collection<Record> newRecords) {
+        if (segmentFile == null) {
+            replaceRecords(newRecords);
+            liveRecordBytes = countRecordBytes();
+            return true;
+        }
+
+        int newGeneration = generation + 1;
+        File newSegment = segmentFileForGeneration(newGeneration);
+        RandomAccessFile newSegmentFile = null;
+        boolean headSwitched = false;
+
+        try {
+            newSegmentFile = new RandomAccessFile(newSegment, "rw");
+            newSegmentFile.setLength(0);
+
+            //the new positions are only applied once the switch succeeded, until then the records describe the current segment
+            int[] newSizes = new int[newRecords.size()];
+            long offset = 0;
+            int index = 0;
+            for (Record record : newRecords) {
+                byte[] recordBytes = createRecordBytes(encodePayload(record.request), compactRecordsEnabled);
+                newSegmentFile.write(recordBytes);
+                newSizes[index++] = recordBytes.length;
+                offset += recordBytes.length;
+            }
+            newSegmentFile.getFD().sync();
+
+            //switch over to the new segment only after it has been fully written,
+            //the head has to reach the storage device before the segment it pointed to is deleted
+            headSwitched = true;
+            writeHead(newGeneration, 0);
+            syncHead();
+
+            RandomAccessFile oldSegmentFile = segmentFile;
+            int oldGeneration = generation;
+
+            segmentFile = newSegmentFile;
+            newSegmentFile = null;
+            generation = newGeneration;
+            headOffset = 0;
+            tailOffset = offset;
+            liveRecordBytes = offset;
+
+            long recordOffset = 0;
+            index = 0;
+            for (Record record : newRecords) {
+                record.offset = recordOffset;
+                record.size = newSizes[index++];
+                record.compact = compactRecordsEnabled;
+                recordOffset += record.size;
+            }
+            replaceRecords(newRecords);
+
+            closeQuietly(oldSegmentFile);
+            //noinspection ResultOfMethodCallIgnored
+            segmentFileForGeneration(oldGeneration).delete();
+            return true;
+        } catch (IOException e) {
+            L.e("[RequestQueueFileLog] rewrite, failed to rewrite log, " + e);
+            if (headSwitched) {
+                //the new segment is deleted below, so the head has to point to the current one again
+                try {
+                    writeHead();
+                    syncHead();
+                } catch (IOException restoreException) {
+                    L.e("[RequestQueueFileLog] rewrite, failed to restore head, " + restoreException);
+                }
+            }
+            return false;
+        } finally {
+            if (newSegmentFile != null) {
+                closeQuietly(newSegmentFile);
+                //noinspection ResultOfMethodCallIgnored
+                newSegment.delete();
+            }
+        }
+    }
+
+    private void replaceRecords(@NonNull Collection<Record> newRecords) {
+        if (newRecords != records) {
+            records.clear();
+            records.addAll(newRecords);
+        }
+    }
+
+    private long countRecordBytes() {
+        long bytes = 0;
+        for (Record record : records) {
+            bytes += record.size;
+        }
+        return bytes;
+    }
+
+    private void truncate() throws IOException {
+        headOffset = 0;
+        tailOffset = 0;
+        liveRecordBytes = 0;
+
+        if (segmentFile != null) {
+            segmentFile.setLength(0);
+            writeHead();
+        }
+    }
+
+    private void writeHead() throws IOException {
+        writeHead(generation, headOffset);
+    }
+
+    private void writeHead(int headGeneration, long offset) throws IOException {
+        if (headFile == null) {
+            return;
+        }
+
+        byte[] head = new byte[HEAD_FILE_SIZE];
+        writeInt(head, 0, headGeneration);
+        writeInt(head, 4, (int) (offset >>> 32));
+        writeInt(head, 8, (int) offset);
+
+        headFile.seek(0);
+        headFile.write(head);
+    }
+
+    private void syncHead() throws IOException {
+        if (headFile != null) {
+            headFile.getFD().sync();
+        }
+    }
+
+    private static void closeQuietly(@NonNull RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void deleteStaleSegments() {
+        File current = segmentFileForGeneration(generation);
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX) && !file.equals(current)) {
+                L.d("[RequestQueueFileLog] deleteStaleSegments, deleting [" + name + "]");
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private @NonNull File segmentFileForGeneration(int generation) {
+        return new File(directory, SEGMENT_FILE_PREFIX + generation + SEGMENT_FILE_SUFFIX);
+    }
+
+    private @NonNull byte[] encodePayload(@NonNull String request) {
+        return compactRecordsEnabled ? BinaryRecordFormat.encodeRequest(request) : request.getBytes(UTF8);
+    }
+
+    private static byte[] createRecordBytes(byte[] payload, boolean compact) {
+        byte[] record = new byte[RECORD_HEADER_SIZE + payload.length];
+        writeInt(record, 0, compact ? payload.length | COMPACT_RECORD_FLAG : payload.length);
+        System.arraycopy(payload, 0, record, RECORD_HEADER_SIZE, payload.length);
+        return record;
+    }
+
+    private static void writeInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Deletes all log files in the given directory
+     */
+    static void deleteLog(@NonNull File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+}
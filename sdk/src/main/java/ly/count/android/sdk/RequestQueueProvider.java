@@ -48,6 +48,8 @@ interface RequestQueueProvider {
 
     void tick();
 
+    void tick(boolean bypassBackoff);
+
     ConnectionProcessor createConnectionProcessor();
 
     String prepareRemoteConfigRequestLegacy(@Nullable String keysInclude, @Nullable String keysExclude, @NonNull String preparedMetrics);
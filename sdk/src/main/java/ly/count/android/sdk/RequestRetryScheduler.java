@@ -0,0 +1,127 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Keeps track of consecutive failed request queue submissions and decides
+ * when the next attempt is allowed.
+ *
+ * The delay doubles with every failure up to the given maximum. Half of it is randomised
+ * so that devices that failed at the same time don't all retry at the same moment.
+ * If the server provided a 'Retry-After' header, that delay is used instead, limited to the same maximum.
+ */
+class RequestRetryScheduler {
+    final long baseDelayMs;
+    final long maxDelayMs;
+
+    int consecutiveFailures = 0;
+    long nextAttemptTimestampMs = 0;
+
+    final Random random;
+    ModuleLog L;
+
+    RequestRetryScheduler(long baseDelayMs, long maxDelayMs, @NonNull ModuleLog logModule) {
+        this(baseDelayMs, maxDelayMs, logModule, new Random());
+    }
+
+    RequestRetryScheduler(long baseDelayMs, long maxDelayMs, @NonNull ModuleLog logModule, @NonNull Random random) {
+        this.baseDelayMs = Math.max(1, baseDelayMs);
+        this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+        this.random = random;
+        L = logModule;
+    }
+
+    /**
+     * Returns 'true' if the backoff delay of the last failure has passed
+     */
+    synchronized boolean canAttempt(long currentTimestampMs) {
+        return currentTimestampMs >= nextAttemptTimestampMs;
+    }
+
+    synchronized void onSuccess() {
+        if (consecutiveFailures > 0) {
+            L.d("[RequestRetryScheduler] onSuccess, resetting after [" + consecutiveFailures + "] failures");
+        }
+        consecutiveFailures = 0;
+        nextAttemptTimestampMs = 0;
+    }
+
+    /**
+     * Records a failed submission and schedules the next attempt
+     *
+     * @param currentTimestampMs current time
+     * @param retryAfterHeader value of the 'Retry-After' response header, if there was one
+     * @return the delay until the next attempt in milliseconds
+     */
+    synchronized long onFailure(long currentTimestampMs, @Nullable String retryAfterHeader) {
+        consecutiveFailures++;
+
+        long delay = parseRetryAfter(retryAfterHeader, currentTimestampMs);
+        if (delay < 0) {
+            delay = backoffDelay(consecutiveFailures);
+        } else {
+            //a server asking for a longer delay should not stop sending for longer than the configured maximum
+            delay = Math.min(delay, maxDelayMs);
+        }
+
+        nextAttemptTimestampMs = currentTimestampMs + delay;
+        L.d("[RequestRetryScheduler] onFailure, failures:[" + consecutiveFailures + "] retry after:[" + retryAfterHeader + "] next attempt in [" + delay + "] ms");
+        return delay;
+    }
+
+    /**
+     * Exponential delay for the given amount of failures, where the upper half is random
+     */
+    long backoffDelay(int failures) {
+        long delay = maxDelayMs;
+        //avoid overflowing the shift
+        if (failures <= 30) {
+            delay = Math.min(maxDelayMs, baseDelayMs << (failures - 1));
+        }
+
+        long half = delay / 2;
+        return delay - half + (long) (random.nextDouble() * half);
+    }
+
+    /**
+     * Parses the 'Retry-After' header, which is either a delay in seconds or a HTTP date
+     *
+     * @return the delay in milliseconds or -1 if the header was missing or invalid
+     */
+    static long parseRetryAfter(@Nullable String header, long currentTimestampMs) {
+        if (header == null) {
+            return -1;
+        }
+
+        header = header.trim();
+        if (header.isEmpty()) {
+            return -1;
+        }
+
+        try {
+            long seconds = Long.parseLong(header);
+            if (seconds < 0) {
+                return -1;
+            }
+            //avoid overflowing the conversion to milliseconds
+            return seconds > Long.MAX_VALUE / 1000L ? Long.MAX_VALUE : seconds * 1000L;
+        } catch (NumberFormatException ignored) {
+        }
+
+        try {
+            SimpleDateFormat httpDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            Date date = httpDateFormat.parse(header);
+            if (date == null) {
+                return -1;
+            }
+            return Math.max(0, date.getTime() - currentTimestampMs);
+        } catch (Exception ignored) {
+            return -1;
+        }
+    }
+}
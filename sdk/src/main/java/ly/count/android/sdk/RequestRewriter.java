@@ -0,0 +1,25 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A substitution that is applied to the stored requests while the request queue is rewritten
+ */
+interface RequestRewriter {
+    /**
+     * @param request the stored request
+     * @param metadata metadata of the stored request
+     * @return the rewritten request, the same request to keep it unchanged or 'null' to remove it from the queue
+     */
+    @Nullable String rewrite(@NonNull String request, @NonNull RequestMetadata metadata);
+
+    interface Callback {
+        /**
+         * Called on the storage thread after the request queue was rewritten
+         *
+         * @param changedRequests amount of requests that were changed or removed
+         */
+        void onRequestsRewritten(int changedRequests);
+    }
+}
@@ -0,0 +1,67 @@
+package ly.count.android.sdk;
+
+import androidx.annotation.NonNull;
+import java.security.SecureRandom;
+
+/**
+ * Generates event and view IDs: 6 random bytes encoded as 8 base64 characters followed by the current timestamp in milliseconds.
+ *
+ * A single SecureRandom is shared by all threads and each thread draws its random bytes
+ * from its own buffer, which is refilled in large blocks. This avoids seeding a new SecureRandom
+ * for every ID. The base64 encoding is done directly into the result.
+ */
+class SecureIDGenerator implements SafeIDGenerator {
+    static final int RANDOM_BYTES_PER_ID = 6;
+    static final int IDS_PER_REFILL = 64;
+
+    static final char[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    static final SecureIDGenerator shared = new SecureIDGenerator();
+
+    //SecureRandom is thread safe, it is only created once it is needed
+    private static final class RandomHolder {
+        static final SecureRandom random = new SecureRandom();
+    }
+
+    private static final class RandomBuffer {
+        final byte[] bytes = new byte[RANDOM_BYTES_PER_ID * IDS_PER_REFILL];
+        final char[] chars = new char[(RANDOM_BYTES_PER_ID / 3) * 4];
+        int position = bytes.length;
+    }
+
+    private final ThreadLocal<RandomBuffer> buffers = new ThreadLocal<RandomBuffer>() {
+        @Override protected RandomBuffer initialValue() {
+            return new RandomBuffer();
+        }
+    };
+
+    @NonNull @Override public String GenerateValue() {
+        RandomBuffer buffer = buffers.get();
+        if (buffer.position == buffer.bytes.length) {
+            RandomHolder.random.nextBytes(buffer.bytes);
+            buffer.position = 0;
+        }
+
+        encodeBase64(buffer.bytes, buffer.position, RANDOM_BYTES_PER_ID, buffer.chars);
+        buffer.position += RANDOM_BYTES_PER_ID;
+
+        return new StringBuilder(buffer.chars.length + 13)
+            .append(buffer.chars)
+            .append(System.currentTimeMillis())
+            .toString();
+    }
+
+    /**
+     * Encodes a length that is a multiple of 3 with the standard base64 alphabet, so no padding is needed
+     */
+    static void encodeBase64(@NonNull byte[] source, int offset, int length, @NonNull char[] target) {
+        int t = 0;
+        for (int a = offset; a < offset + length; a += 3) {
+            int bits = (source[a] & 0xff) << 16 | (source[a + 1] & 0xff) << 8 | (source[a + 2] & 0xff);
+            target[t++] = BASE64_ALPHABET[(bits >>> 18) & 0x3f];
+            target[t++] = BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+            target[t++] = BASE64_ALPHABET[(bits >>> 6) & 0x3f];
+            target[t++] = BASE64_ALPHABET[bits & 0x3f];
+        }
+    }
+}
@@ -15,6 +15,14 @@ interface StorageProvider {
 
     @NonNull String getRequestQueueRaw();
 
+    @Nullable String peekRequest();
+
+    @NonNull String[] peekRequests(int maxCount);
+
+    @NonNull RequestMetadata getRequestMetadata(@NonNull String request);
+
+    int getRequestQueueSize();
+
     void addRequest(final String requestStr, final boolean writeInSync);
 
     void removeRequest(final String requestStr);
@@ -23,6 +31,10 @@ interface StorageProvider {
 
     void replaceRequestList(final List<String> newConns);
 
+    int rewriteRequests(@NonNull final RequestRewriter... rewriters);
+
+    void rewriteRequestsInBackground(@Nullable final RequestRewriter.Callback callback, @NonNull final RequestRewriter... rewriters);
+
     void removeEvents(final Collection<Event> eventsToRemove);
 
     int getEventQueueSize();
@@ -62,6 +74,12 @@ interface StorageProvider {
 
     boolean anythingSetInStorage();
 
+    int migrateRequestQueueStorage();
+
+    int migrateRecordFormat();
+
+    boolean recordFormatChanged();
+
     String getHealthCheckCounterState();
 
     void setHealthCheckCounterState(String counterState);
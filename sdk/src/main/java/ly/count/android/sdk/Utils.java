@@ -4,7 +4,6 @@ import android.app.UiModeManager;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.os.Build;
-import android.util.Base64;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import java.io.BufferedReader;
@@ -12,7 +11,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.security.SecureRandom;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
@@ -170,12 +168,7 @@ public class Utils {
      * @return returns a random string value
      */
     public static String safeRandomVal() {
-        long timestamp = System.currentTimeMillis();
-        SecureRandom random = new SecureRandom();
-        byte[] value = new byte[6];
-        random.nextBytes(value);
-        String b64Value = Base64.encodeToString(value, Base64.NO_WRAP);
-        return b64Value + timestamp;
+        return SecureIDGenerator.shared.GenerateValue();
     }
 
     /**
@@ -240,7 +233,7 @@ public class Utils {
      * @param segmDouble
      * @param segmBoolean
      */
-    protected static synchronized void fillInSegmentation(Map<String, Object> allSegm, Map<String, String> segmStr, Map<String, Integer> segmInt, Map<String, Double> segmDouble, Map<String, Boolean> segmBoolean,
+    protected static void fillInSegmentation(Map<String, Object> allSegm, Map<String, String> segmStr, Map<String, Integer> segmInt, Map<String, Double> segmDouble, Map<String, Boolean> segmBoolean,
         Map<String, Object> reminder) {
         for (Map.Entry<String, Object> pair : allSegm.entrySet()) {
             String key = pair.getKey();
@@ -1,9 +1,12 @@
 package ly.count.android.sdk;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.MessageDigest;
+import java.util.zip.GZIPOutputStream;
 
 public class UtilsNetworking {
     // http://stackoverflow.com/questions/9655181/convert-from-byte-array-to-hex-string-in-java
@@ -21,6 +24,44 @@ public class UtilsNetworking {
         return result;
     }
 
+    /**
+     * Appends the URL-encoded value to the given builder.
+     * Gives the same result as 'urlEncodeString' without creating intermediate strings.
+     */
+    static void appendUrlEncoded(StringBuilder out, String value) {
+        for (int a = 0, length = value.length(); a < length; a++) {
+            char c = value.charAt(a);
+
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*' || c == '_') {
+                out.append(c);
+            } else if (c == ' ') {
+                out.append('+');
+            } else if (c < 0x80) {
+                appendEncodedByte(out, c);
+            } else if (c < 0x800) {
+                appendEncodedByte(out, 0xC0 | (c >> 6));
+                appendEncodedByte(out, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && a + 1 < length && Character.isLowSurrogate(value.charAt(a + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++a));
+                appendEncodedByte(out, 0xF0 | (codePoint >> 18));
+                appendEncodedByte(out, 0x80 | ((codePoint >> 12) & 0x3F));
+                appendEncodedByte(out, 0x80 | ((codePoint >> 6) & 0x3F));
+                appendEncodedByte(out, 0x80 | (codePoint & 0x3F));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                //an unpaired surrogate is encoded as '?', like URLEncoder does
+                appendEncodedByte(out, '?');
+            } else {
+                appendEncodedByte(out, 0xE0 | (c >> 12));
+                appendEncodedByte(out, 0x80 | ((c >> 6) & 0x3F));
+                appendEncodedByte(out, 0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private static void appendEncodedByte(StringBuilder out, int b) {
+        out.append('%').append(hexArray[(b >> 4) & 0xF]).append(hexArray[b & 0xF]);
+    }
+
     protected static String encodedArrayBuilder(String[] args) {
         StringBuilder encodedUrlBuilder = new StringBuilder();
 
@@ -66,6 +107,23 @@ public class UtilsNetworking {
         return hash;
     }
 
+    /**
+     * Compresses the given data in the gzip format
+     *
+     * @param data bytes to compress
+     * @return gzip compressed bytes
+     */
+    static byte[] gzipCompress(byte[] data) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(Math.max(32, data.length / 4));
+        GZIPOutputStream gzipStream = new GZIPOutputStream(byteStream);
+        try {
+            gzipStream.write(data);
+        } finally {
+            gzipStream.close();
+        }
+        return byteStream.toByteArray();
+    }
+
     /**
      * Get hexadecimal string representation of a byte array
      *
@@ -1,9 +1,7 @@
 package ly.count.android.sdk;
 
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UtilsTime {
 
@@ -22,21 +20,65 @@ public class UtilsTime {
             if (timestampInMillis < 0L) {
                 throw new IllegalArgumentException("timestampInMillis must be greater than or equal to zero");
             }
+
+            HourWindow window = hourWindow;
+            if (window == null || !window.contains(timestampInMillis)) {
+                window = HourWindow.of(timestampInMillis);
+                hourWindow = window;
+            }
+            return new Instant(timestampInMillis, window.hour, window.dow);
+        }
+    }
+
+    /**
+     * The local hour and day of week of a one hour window, so that a Calendar is only needed once per hour.
+     * A time zone change is picked up when the next window starts.
+     */
+    static final class HourWindow {
+        final long startMs;
+        final long endMs;
+        final int hour;
+        final int dow;
+
+        HourWindow(long startMs, long endMs, int hour, int dow) {
+            this.startMs = startMs;
+            this.endMs = endMs;
+            this.hour = hour;
+            this.dow = dow;
+        }
+
+        boolean contains(long timestampMs) {
+            return timestampMs >= startMs && timestampMs < endMs;
+        }
+
+        static HourWindow of(long timestampMs) {
             Calendar calendar = Calendar.getInstance();
-            calendar.setTimeInMillis(timestampInMillis);
+            calendar.setTimeInMillis(timestampMs);
             final int hour = calendar.get(Calendar.HOUR_OF_DAY);
             // Calendar days are 1-based, Countly days are 0-based
             final int dow = calendar.get(Calendar.DAY_OF_WEEK) - 1;
-            return new Instant(timestampInMillis, hour, dow);
+
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            final long startMs = calendar.getTimeInMillis();
+            calendar.add(Calendar.HOUR_OF_DAY, 1);
+            //the end is capped at one hour so that a daylight saving change can't make the window longer
+            final long endMs = Math.min(calendar.getTimeInMillis(), startMs + 3_600_000L);
+
+            return new HourWindow(startMs, endMs, hour, dow);
         }
     }
 
+    //window of the last created instant, it is immutable and replaced as a whole
+    static volatile HourWindow hourWindow = null;
+
     /**
      * Get's a instant for the current moment
      *
      * @return
      */
-    public static synchronized Instant getCurrentInstant() {
+    public static Instant getCurrentInstant() {
         long timestamp = currentTimestampMs();
         return Instant.get(timestamp);
     }
@@ -46,7 +88,7 @@ public class UtilsTime {
      *
      * @return
      */
-    public static synchronized long currentTimestampMs() {
+    public static long currentTimestampMs() {
         return timeGenerator.uniqueTimestamp();
     }
 
@@ -57,37 +99,45 @@ public class UtilsTime {
         return ((int) (System.currentTimeMillis() / 1000L));
     }
 
-    private static class TimeUniquesEnsurer {
-        final List<Long> lastTsMs = new ArrayList<>(10);
-        final long addition = 0;
+    /**
+     * Returns strictly increasing millisecond timestamps. If the clock returns a value that was already given out,
+     * the next unused millisecond is returned instead.
+     * If the clock goes back further than the last few given out values, it is assumed
+     * that the clock was changed and its value is returned as it is.
+     */
+    static class MonotonicClock {
+        //how far back the clock has to go, compared to the last given out value, to be taken as a clock change
+        static final long CLOCK_CHANGE_THRESHOLD_MS = 10;
+
+        final AtomicLong lastTimestampMs = new AtomicLong(0);
 
         long currentTimeMillis() {
-            return System.currentTimeMillis() + addition;
+            return System.currentTimeMillis();
         }
 
-        synchronized long uniqueTimestamp() {
-            long ms = currentTimeMillis();
+        long uniqueTimestamp() {
+            final long ms = currentTimeMillis();
+
+            while (true) {
+                final long last = lastTimestampMs.get();
+                final long next;
 
-            // change time back case
-            if (lastTsMs.size() > 2) {
-                long min = Collections.min(lastTsMs);
-                if (ms < min) {
-                    lastTsMs.clear();
-                    lastTsMs.add(ms);
-                    return ms;
+                if (ms > last) {
+                    next = ms;
+                } else if (ms <= last - CLOCK_CHANGE_THRESHOLD_MS) {
+                    // change time back case
+                    next = ms;
+                } else {
+                    // usual case
+                    next = last + 1;
+                }
+
+                if (lastTimestampMs.compareAndSet(last, next)) {
+                    return next;
                 }
             }
-            // usual case
-            while (lastTsMs.contains(ms)) {
-                ms += 1;
-            }
-            while (lastTsMs.size() >= 10) {
-                lastTsMs.remove(0);
-            }
-            lastTsMs.add(ms);
-            return ms;
         }
     }
 
-    private static final TimeUniquesEnsurer timeGenerator = new TimeUniquesEnsurer();
+    private static final MonotonicClock timeGenerator = new MonotonicClock();
 }